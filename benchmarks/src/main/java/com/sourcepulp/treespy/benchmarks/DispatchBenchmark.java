@@ -0,0 +1,125 @@
+package com.sourcepulp.treespy.benchmarks;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+import com.sourcepulp.treespy.jse7.AbstractWatchKey;
+import com.sourcepulp.treespy.jse7.TreeSpyJSE7StdLib;
+
+/**
+ * Throughput of handing the events drained from one WatchKey to many
+ * listeners, with and without globs. Events are offered to the key of a
+ * {@link SyntheticWatchService}, and taken by the spy's own watcher thread,
+ * on which callbacks run. Each invocation ends with an event every listener
+ * matches, and waits until all of them have received it.
+ *
+ * @author Will Faithfull
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	private static final int EVENTS = 64;
+	private static final Path LAST = Paths.get("Last.java");
+
+	@Param({ "1", "16", "256" })
+	public int listeners;
+
+	@Param({ "false", "true" })
+	public boolean globs;
+
+	private Path directory;
+	private ExecutorService daemon;
+	private TreeSpyJSE7StdLib spy;
+	private AbstractWatchKey key;
+	private List<WatchEvent.Kind<Path>> kinds;
+	private List<Path> names;
+
+	private final AtomicLong finished = new AtomicLong();
+	private long expected;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = SyntheticTree.scratchDirectory();
+		daemon = Executors.newSingleThreadExecutor(new TreeSpyThreadFactory());
+		spy = new TreeSpyJSE7StdLib(daemon, new SyntheticWatchService());
+
+		for (int i = 0; i < listeners; i++) {
+			TreeSpyListener listener = new TreeSpyListener() {
+				@Override
+				public void onChange(Path file, Events type) {
+					if (file.endsWith(LAST))
+						finished.incrementAndGet();
+				}
+			};
+			if (globs)
+				spy.watchJust(directory.toFile(), listener, "*.java", "src/**/*.xml", "!build");
+			else
+				spy.watchJust(directory.toFile(), listener);
+		}
+		key = (AbstractWatchKey) spy.getWatchKey(directory);
+
+		kinds = new ArrayList<WatchEvent.Kind<Path>>(EVENTS);
+		names = new ArrayList<Path>(EVENTS);
+		for (int i = 0; i < EVENTS - 1; i++) {
+			kinds.add(i % 4 == 0 ? ENTRY_CREATE : ENTRY_MODIFY);
+			names.add(Paths.get(i % 2 == 0 ? "Source" + i + ".java" : "notes" + i + ".txt"));
+		}
+		kinds.add(ENTRY_MODIFY);
+		names.add(LAST);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public long dispatch() {
+		for (int i = 0; i < EVENTS; i++) {
+			key.offer(kinds.get(i), names.get(i));
+		}
+		expected += listeners;
+		while (finished.get() < expected)
+			Thread.yield();
+		return expected;
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		spy.close();
+		daemon.shutdownNow();
+		Files.deleteIfExists(directory);
+	}
+}
@@ -0,0 +1,94 @@
+package com.sourcepulp.treespy.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.SpyFactory;
+import com.sourcepulp.treespy.TreeSpy;
+import com.sourcepulp.treespy.TreeSpyListener;
+
+/**
+ * Latency from creating a file to its listener hearing about it, through a
+ * real WatchService. The tree is on tmpfs where available, so that the disk
+ * plays no part.
+ *
+ * @author Will Faithfull
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndLatencyBenchmark {
+
+	@Param({ "standard", "inotify" })
+	public String engine;
+
+	private Path directory;
+	private TreeSpy spy;
+	private final BlockingQueue<Path> created = new LinkedBlockingQueue<Path>();
+	private long counter;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		directory = SyntheticTree.scratchDirectory();
+		spy = "inotify".equals(engine) ? SpyFactory.getInotifySpy() : SpyFactory.getSpy();
+		spy.watchRecursive(directory.toFile(), new TreeSpyListener() {
+			@Override
+			public void onChange(Path file, Events type) {
+				if (type == Events.CREATE)
+					created.offer(file);
+			}
+		});
+	}
+
+	@Benchmark
+	public Path createAndWait() throws IOException, InterruptedException {
+		Path file = Files.createFile(directory.resolve("f" + counter++));
+		while (true) {
+			Path seen = created.poll(5, TimeUnit.SECONDS);
+			if (seen == null)
+				throw new IllegalStateException("No event for " + file);
+			if (seen.equals(file))
+				return seen;
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void clean() throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				Files.delete(file);
+			}
+		}
+		created.clear();
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		spy.reset();
+		Files.deleteIfExists(directory);
+	}
+}
@@ -0,0 +1,98 @@
+package com.sourcepulp.treespy.benchmarks;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+import com.sourcepulp.treespy.glob.GlobIndex;
+
+/**
+ * Cost of matching a file name against the globs of every listener, both in
+ * one lookup for all listeners and one listener at a time.
+ *
+ * @author Will Faithfull
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GlobMatchBenchmark {
+
+	private static final String[] GLOBS = { "*.java", "*.xml", "*.{png,jpg,gif}", "pom.xml", "Makefile",
+			"*.[ch]", "build-*.log", "*Test.java" };
+
+	private static final String[] NAMES = { "Main.java", "pom.xml", "logo.png", "README.md", "build-42.log",
+			"TreeSpyTest.java", "main.c", "notes.txt" };
+
+	@Param({ "1", "16", "256" })
+	public int listeners;
+
+	private GlobIndex index;
+	private TreeSpyListener[] registered;
+	private Path[] names;
+	private int next;
+
+	@Setup
+	public void setup() {
+		index = new GlobIndex();
+		registered = new TreeSpyListener[listeners];
+		for (int i = 0; i < listeners; i++) {
+			registered[i] = new NoopListener();
+			index.add(registered[i], GLOBS[i % GLOBS.length]);
+			// Listeners beyond the first few get a glob of their own, so that
+			// the index holds patterns as well as literal names.
+			if (i >= GLOBS.length)
+				index.add(registered[i], "*." + i);
+		}
+
+		names = new Path[NAMES.length];
+		for (int i = 0; i < NAMES.length; i++) {
+			names[i] = Paths.get(NAMES[i]);
+		}
+	}
+
+	@Benchmark
+	public Set<TreeSpyListener> matchAllListeners() {
+		return index.match(nextName());
+	}
+
+	@Benchmark
+	public int matchesEachListener() {
+		Path name = nextName();
+		int matched = 0;
+		for (TreeSpyListener listener : registered) {
+			if (index.matches(listener, name))
+				matched++;
+		}
+		return matched;
+	}
+
+	private Path nextName() {
+		next = (next + 1) % names.length;
+		return names[next];
+	}
+
+	private static class NoopListener implements TreeSpyListener {
+		@Override
+		public void onChange(Path file, Events type) {
+		}
+	}
+}
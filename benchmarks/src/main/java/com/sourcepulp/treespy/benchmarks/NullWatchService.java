@@ -0,0 +1,77 @@
+package com.sourcepulp.treespy.benchmarks;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.sourcepulp.treespy.jse7.AbstractWatchKey;
+import com.sourcepulp.treespy.jse7.DirectoryRegistrar;
+
+/**
+ * A WatchService which accepts any number of directories and never signals
+ * anything. Benchmarks use it to measure treespy's own bookkeeping, without
+ * the cost or the limits of kernel watches.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class NullWatchService implements WatchService, DirectoryRegistrar {
+
+	private final CountDownLatch closed = new CountDownLatch(1);
+
+	@Override
+	public WatchKey register(Path directory, WatchEvent.Kind<?>... kinds) {
+		return new NullWatchKey(directory, kinds);
+	}
+
+	@Override
+	public WatchKey poll() {
+		if (closed.getCount() == 0)
+			throw new ClosedWatchServiceException();
+		return null;
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		if (closed.await(timeout, unit))
+			throw new ClosedWatchServiceException();
+		return null;
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		closed.await();
+		throw new ClosedWatchServiceException();
+	}
+
+	@Override
+	public void close() {
+		closed.countDown();
+	}
+
+	private class NullWatchKey extends AbstractWatchKey {
+
+		NullWatchKey(Path directory, WatchEvent.Kind<?>[] kinds) {
+			super(directory, new HashSet<WatchEvent.Kind<?>>(Arrays.asList(kinds)));
+		}
+
+		@Override
+		protected void enqueue() {
+		}
+
+		@Override
+		protected boolean isOpen() {
+			return closed.getCount() > 0;
+		}
+
+		@Override
+		protected void cancelled() {
+		}
+	}
+}
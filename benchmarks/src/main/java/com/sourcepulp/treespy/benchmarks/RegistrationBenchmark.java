@@ -0,0 +1,91 @@
+package com.sourcepulp.treespy.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+import com.sourcepulp.treespy.jse7.TreeSpyJSE7StdLib;
+
+/**
+ * Time to walk and register a whole tree with watchRecursive. Directories
+ * are registered with a {@link NullWatchService}, so the numbers are
+ * treespy's own walk and bookkeeping, whatever the kernel's watch limits.
+ *
+ * @author Will Faithfull
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RegistrationBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int directories;
+
+	@Param({ "1", "4" })
+	public int parallelism;
+
+	@Param({ "false", "true" })
+	public boolean snapshots;
+
+	private Path tree;
+	private ExecutorService daemon;
+	private TreeSpyJSE7StdLib spy;
+
+	private final TreeSpyListener listener = new TreeSpyListener() {
+		@Override
+		public void onChange(Path file, Events type) {
+		}
+	};
+
+	@Setup(Level.Trial)
+	public void createTree() throws IOException {
+		tree = SyntheticTree.create(directories);
+		daemon = Executors.newCachedThreadPool(new TreeSpyThreadFactory());
+	}
+
+	@Setup(Level.Iteration)
+	public void createSpy() throws IOException {
+		spy = new TreeSpyJSE7StdLib(daemon, new NullWatchService());
+		spy.setRegistrationParallelism(parallelism);
+		spy.setSnapshotting(snapshots);
+	}
+
+	@Benchmark
+	public int watchRecursive() throws IOException {
+		spy.watchRecursive(tree.toFile(), listener);
+		return spy.getWatchedDirectoryCount();
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeSpy() throws IOException {
+		spy.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void stopDaemon() {
+		daemon.shutdownNow();
+	}
+}
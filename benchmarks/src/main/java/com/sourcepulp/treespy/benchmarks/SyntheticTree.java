@@ -0,0 +1,82 @@
+package com.sourcepulp.treespy.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+
+/**
+ * Builds directory trees of a given size for benchmarks. Trees are built
+ * breadth first with a fixed fan-out under the directory named by the
+ * treespy.bench.dir system property (by default, the system temporary
+ * directory), and are kept between runs, since a million directories take a
+ * while to create.
+ *
+ * @author Will Faithfull
+ *
+ */
+public final class SyntheticTree {
+
+	private static final int FANOUT = 16;
+	private static final String COMPLETE = ".complete";
+
+	private SyntheticTree() {
+	}
+
+	/**
+	 * @return The directory under which benchmarks create their files.
+	 */
+	public static Path baseDirectory() {
+		String configured = System.getProperty("treespy.bench.dir");
+		if (configured != null)
+			return Paths.get(configured);
+		return Paths.get(System.getProperty("java.io.tmpdir"), "treespy-bench");
+	}
+
+	/**
+	 * @return A fresh, empty directory, on tmpfs if one is available.
+	 * @throws IOException
+	 *             If the directory cannot be created.
+	 */
+	public static Path scratchDirectory() throws IOException {
+		Path shm = Paths.get("/dev/shm");
+		if (System.getProperty("treespy.bench.dir") == null && Files.isWritable(shm))
+			return Files.createTempDirectory(shm, "treespy-bench");
+		Files.createDirectories(baseDirectory());
+		return Files.createTempDirectory(baseDirectory(), "scratch");
+	}
+
+	/**
+	 * Finds or creates a tree holding the specified number of directories,
+	 * including its root.
+	 *
+	 * @param directories
+	 *            The number of directories.
+	 * @return The root of the tree.
+	 * @throws IOException
+	 *             If the tree cannot be created.
+	 */
+	public static Path create(int directories) throws IOException {
+		Path root = baseDirectory().resolve("tree-" + directories);
+		if (Files.exists(root.resolve(COMPLETE)))
+			return root;
+
+		Files.createDirectories(root);
+		ArrayDeque<Path> parents = new ArrayDeque<Path>();
+		parents.add(root);
+		int created = 1;
+		while (created < directories) {
+			Path parent = parents.poll();
+			for (int i = 0; i < FANOUT && created < directories; i++, created++) {
+				Path child = parent.resolve("d" + i);
+				if (!Files.isDirectory(child))
+					Files.createDirectory(child);
+				parents.add(child);
+			}
+		}
+
+		Files.createFile(root.resolve(COMPLETE));
+		return root;
+	}
+}
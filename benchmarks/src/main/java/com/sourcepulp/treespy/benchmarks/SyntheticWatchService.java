@@ -0,0 +1,89 @@
+package com.sourcepulp.treespy.benchmarks;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.sourcepulp.treespy.jse7.AbstractWatchKey;
+import com.sourcepulp.treespy.jse7.DirectoryRegistrar;
+
+/**
+ * A WatchService whose keys are signalled by offering them events, rather
+ * than by the filesystem. Benchmarks use it to feed the spy's watcher thread
+ * exactly the events they want, through the same take and reset as a real
+ * WatchService.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class SyntheticWatchService implements WatchService, DirectoryRegistrar {
+
+	private final BlockingQueue<WatchKey> signalled = new LinkedBlockingQueue<WatchKey>();
+	private final SyntheticWatchKey closeSentinel = new SyntheticWatchKey(null, new WatchEvent.Kind<?>[0]);
+
+	private volatile boolean closed = false;
+
+	@Override
+	public WatchKey register(Path directory, WatchEvent.Kind<?>... kinds) {
+		return new SyntheticWatchKey(directory, kinds);
+	}
+
+	@Override
+	public WatchKey poll() {
+		return check(signalled.poll());
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return check(signalled.poll(timeout, unit));
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		return check(signalled.take());
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		signalled.offer(closeSentinel);
+	}
+
+	private WatchKey check(WatchKey key) {
+		if (closed) {
+			// Leave the sentinel for any other waiting thread.
+			signalled.offer(closeSentinel);
+			throw new ClosedWatchServiceException();
+		}
+		return key;
+	}
+
+	private class SyntheticWatchKey extends AbstractWatchKey {
+
+		SyntheticWatchKey(Path directory, WatchEvent.Kind<?>[] kinds) {
+			super(directory, new HashSet<WatchEvent.Kind<?>>(Arrays.asList(kinds)));
+		}
+
+		@Override
+		protected void enqueue() {
+			if (!closed)
+				signalled.offer(this);
+		}
+
+		@Override
+		protected boolean isOpen() {
+			return !closed;
+		}
+
+		@Override
+		protected void cancelled() {
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.sourcepulp.treespy;
+
+import java.nio.file.Path;
+
+/**
+ * Immutable record of a single change to a file or directory.
+ * 
+ * @author Will Faithfull
+ *
+ */
+public final class Change {
+
+	private final Path source;
+	private final Path path;
+	private final Events event;
+	private final long timestamp;
+
+	public Change(Path path, Events event) {
+		this(path, event, 0);
+	}
+
+	/**
+	 * @param path
+	 *            The path to the changed file.
+	 * @param event
+	 *            The type of event, which must not be MOVE.
+	 * @param timestamp
+	 *            The value of {@link System#nanoTime()} when the change was
+	 *            taken from the WatchService, or 0 if it is not known.
+	 */
+	public Change(Path path, Events event, long timestamp) {
+		if (path == null || event == null)
+			throw new IllegalArgumentException("Path and event must not be null");
+		if (event == Events.MOVE)
+			throw new IllegalArgumentException("A move needs a source");
+		this.source = null;
+		this.path = path;
+		this.event = event;
+		this.timestamp = timestamp;
+	}
+
+	private Change(Path source, Path target) {
+		if (source == null || target == null)
+			throw new IllegalArgumentException("Source and target must not be null");
+		this.source = source;
+		this.path = target;
+		this.event = Events.MOVE;
+		this.timestamp = 0;
+	}
+
+	/**
+	 * Creates a MOVE from the source path to the target path.
+	 * 
+	 * @param source
+	 *            The path the file was moved from.
+	 * @param target
+	 *            The path the file was moved to.
+	 * @return The change.
+	 */
+	public static Change move(Path source, Path target) {
+		return new Change(source, target);
+	}
+
+	/**
+	 * @return The path to the changed file; for a MOVE, the path it was moved
+	 *         to.
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return For a MOVE, the path the file was moved from; otherwise null.
+	 */
+	public Path getSource() {
+		return source;
+	}
+
+	/**
+	 * @return The type of event; CREATE, MODIFY, DELETE, OVERFLOW or MOVE.
+	 */
+	public Events getEvent() {
+		return event;
+	}
+
+	/**
+	 * @return The value of {@link System#nanoTime()} when the change was taken
+	 *         from the WatchService, or 0 if it is not known. Not part of the
+	 *         change's identity.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof Change))
+			return false;
+		Change other = (Change) obj;
+		return path.equals(other.path) && event == other.event
+				&& (source == null ? other.source == null : source.equals(other.source));
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * path.hashCode() + event.hashCode()) + (source == null ? 0 : source.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		if (source != null)
+			return String.format("%s %s -> %s", event, source, path);
+		return String.format("%s %s", event, path);
+	}
+}
@@ -10,7 +10,8 @@ public enum Events {
 	CREATE,
 	MODIFY,
 	DELETE,
-	OVERFLOW;
+	OVERFLOW,
+	MOVE;
 	
 	public static Events kindToEvent(@SuppressWarnings("rawtypes") WatchEvent.Kind kind) {
 		if(kind == StandardWatchEventKinds.OVERFLOW)
@@ -23,4 +24,31 @@ public enum Events {
 			return MODIFY;
 
 	}
+
+	/**
+	 * Merges two successive events for the same path into the single event
+	 * describing their net effect. For example, a CREATE followed by a MODIFY
+	 * is still a CREATE, whereas a CREATE followed by a DELETE cancels out.
+	 * OVERFLOW and MOVE carry more than can be merged, so the later event
+	 * stands.
+	 * 
+	 * @param earlier
+	 *            The event which happened first, or null if there was none.
+	 * @param later
+	 *            The event which happened second.
+	 * @return The net event, or null if the two events cancel out.
+	 */
+	public static Events coalesce(Events earlier, Events later) {
+		if (earlier == null || earlier == OVERFLOW || later == OVERFLOW || earlier == MOVE || later == MOVE)
+			return later;
+
+		switch (earlier) {
+		case CREATE:
+			return later == DELETE ? null : CREATE;
+		case DELETE:
+			return later == DELETE ? DELETE : MODIFY;
+		default:
+			return later == DELETE ? DELETE : MODIFY;
+		}
+	}
 }
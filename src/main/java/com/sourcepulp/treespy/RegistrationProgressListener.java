@@ -0,0 +1,20 @@
+package com.sourcepulp.treespy;
+
+import java.nio.file.Path;
+
+public interface RegistrationProgressListener {
+
+	/**
+	 * Method that is called periodically while a directory tree is being
+	 * registered, and once more when registration of the tree has finished.
+	 *
+	 * @param root
+	 *            The root of the tree being registered.
+	 * @param directoriesRegistered
+	 *            The number of directories registered so far.
+	 * @param complete
+	 *            True if this is the final notification for the tree.
+	 */
+	void onProgress(Path root, long directoriesRegistered, boolean complete);
+
+}
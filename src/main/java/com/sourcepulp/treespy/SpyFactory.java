@@ -5,13 +5,24 @@ import java.nio.file.FileSystems;
 import java.nio.file.WatchService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.sourcepulp.treespy.concurrent.TreeSpyExecutor;
 import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+import com.sourcepulp.treespy.concurrent.VirtualThreads;
+import com.sourcepulp.treespy.inotify.InotifyWatchService;
+import com.sourcepulp.treespy.inotify.TreeSpyInotify;
+import com.sourcepulp.treespy.jse7.SharedWatchEngine;
 import com.sourcepulp.treespy.jse7.TreeSpyJSE7StdLib;
+import com.sourcepulp.treespy.poll.PollingWatchService;
+import com.sourcepulp.treespy.poll.TreeSpyPoller;
 
 public class SpyFactory {
 
+	private static final int DEFAULT_SHARED_POLLERS = 2;
+
+	private static SharedWatchEngine sharedEngine;
+
 	/**
 	 * Build a TreeSpy implementation with default settings.
 	 * 
@@ -36,6 +47,114 @@ public class SpyFactory {
 		return new TreeSpyJSE7StdLib(getExecutor(), getWatchService(), callbackExecutorService);
 	}
 	
+	/**
+	 * Build a TreeSpy implementation which runs callbacks on virtual threads
+	 * where the JVM supports them, and on a cached pool of daemon threads
+	 * otherwise. Each listener still receives its changes in order and one
+	 * batch at a time. Choose this option for listeners which block.
+	 * 
+	 * @return a TreeSpy using the JSE7 API with virtual thread callbacks.
+	 * @throws IOException
+	 */
+	public static TreeSpy getVirtualThreadSpy() throws IOException {
+		return new TreeSpyJSE7StdLib(getExecutor(), getWatchService(), VirtualThreads.newPerTaskExecutor(), true);
+	}
+
+	/**
+	 * Build a TreeSpy implementation which shares a process-wide pool of
+	 * poller threads and one WatchService per filesystem with every other
+	 * shared spy. Choose this option when running many spies in one JVM.
+	 * 
+	 * @return a TreeSpy using the JSE7 API over the default shared engine.
+	 * @throws IOException
+	 */
+	public static TreeSpy getSharedSpy() throws IOException {
+		return new TreeSpyJSE7StdLib(getSharedEngine());
+	}
+
+	/**
+	 * Build a TreeSpy implementation which shares the poller threads and
+	 * WatchServices of the specified engine with other spies.
+	 * 
+	 * @param engine
+	 *            The engine to share.
+	 * @return a TreeSpy using the JSE7 API over the specified engine.
+	 * @throws IOException
+	 */
+	public static TreeSpy getSpy(SharedWatchEngine engine) throws IOException {
+		return new TreeSpyJSE7StdLib(engine);
+	}
+
+	/**
+	 * Build a TreeSpy implementation which shares the poller threads and
+	 * WatchServices of the specified engine with other spies, and carries out
+	 * callbacks with a custom ExecutorService.
+	 * 
+	 * @param engine
+	 *            The engine to share.
+	 * @param callbackExecutorService
+	 *            The ExecutorService to be used for carrying out the callbacks.
+	 * @return a TreeSpy using the JSE7 API over the specified engine.
+	 * @throws IOException
+	 */
+	public static TreeSpy getSpy(SharedWatchEngine engine, ExecutorService callbackExecutorService)
+			throws IOException {
+		return new TreeSpyJSE7StdLib(engine, callbackExecutorService);
+	}
+
+	/**
+	 * Build a TreeSpy implementation which polls for changes instead of
+	 * relying on the filesystem's WatchService. Choose this option for network
+	 * filesystems and mounts on which the WatchService reports nothing.
+	 * 
+	 * @return a TreeSpy which polls with the default intervals.
+	 * @throws IOException
+	 */
+	public static TreeSpy getPollingSpy() throws IOException {
+		return new TreeSpyPoller(getExecutor(), new PollingWatchService());
+	}
+
+	/**
+	 * Build a TreeSpy implementation which polls for changes, with custom
+	 * polling intervals.
+	 * 
+	 * @param minInterval
+	 *            The interval at which recently changed directories are
+	 *            polled.
+	 * @param maxInterval
+	 *            The longest interval between polls of an idle directory.
+	 * @param unit
+	 *            The unit of both intervals.
+	 * @return a TreeSpy which polls with the specified intervals.
+	 * @throws IOException
+	 */
+	public static TreeSpy getPollingSpy(long minInterval, long maxInterval, TimeUnit unit) throws IOException {
+		return new TreeSpyPoller(getExecutor(), new PollingWatchService(minInterval, maxInterval, unit,
+				Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Build a TreeSpy implementation which reads Linux inotify directly, for
+	 * very large trees. Where inotify cannot be used, because the platform is
+	 * not Linux or the native library is missing, this falls back to the JSE7
+	 * implementation.
+	 * 
+	 * @return a TreeSpy using inotify where available, and the JSE7 API
+	 *         otherwise.
+	 * @throws IOException
+	 */
+	public static TreeSpy getInotifySpy() throws IOException {
+		if (!InotifyWatchService.isAvailable())
+			return getSpy();
+		return new TreeSpyInotify(getExecutor(), new InotifyWatchService());
+	}
+
+	private static synchronized SharedWatchEngine getSharedEngine() {
+		if (sharedEngine == null)
+			sharedEngine = new SharedWatchEngine(DEFAULT_SHARED_POLLERS, getThreadFactory());
+		return sharedEngine;
+	}
+
 	private static WatchService getWatchService() throws IOException {
 		return FileSystems.getDefault().newWatchService();
 	}
@@ -1,9 +1,10 @@
 package com.sourcepulp.treespy;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 
-public interface TreeSpy {
+public interface TreeSpy extends Closeable {
 
 	/**
 	 * Watches the specified directory and all subdirectories, invoking the
@@ -25,6 +26,12 @@ public interface TreeSpy {
 	 *            The directory to be watched.
 	 * @param callback
 	 *            A TreeSpyListener compliant callback.
+	 * @param globs
+	 *            Glob expressions with which to restrict this listener. Globs
+	 *            containing a separator are matched against the path relative
+	 *            to the watched directory, others against the file name. Globs
+	 *            prefixed with "!" exclude matching files and directories, and
+	 *            excluded directories are not watched.
 	 * @throws IOException
 	 */
 	public void watchRecursive(File directory, TreeSpyListener callback, String... globs) throws IOException;
@@ -54,21 +61,56 @@ public interface TreeSpy {
 	 * @param callback
 	 *            A TreeSpyListener compliant callback.
 	 * @param globs
-	 *            Glob expressions with which to restrict this listener.
+	 *            Glob expressions with which to restrict this listener. Globs
+	 *            containing a separator are matched against the path relative
+	 *            to the watched directory, others against the file name. Globs
+	 *            prefixed with "!" exclude matching files and directories, and
+	 *            excluded directories are not watched.
 	 * @throws IOException
 	 */
 	public void watchJust(File directory, TreeSpyListener callback, String... globs) throws IOException;
 
+	/**
+	 * Stops notifying the callback of changes in the specified directory and
+	 * its subdirectories. Directories which no other callback needs are no
+	 * longer watched.
+	 * 
+	 * @param directory
+	 *            A directory previously passed to one of the watch methods.
+	 * @param callback
+	 *            The callback to detach.
+	 */
+	public void unwatch(File directory, TreeSpyListener callback);
+
+	/**
+	 * Stops notifying the callback of any changes, and frees its globs.
+	 * Directories which no other callback needs are no longer watched.
+	 * 
+	 * @param callback
+	 *            The callback to remove.
+	 */
+	public void removeListener(TreeSpyListener callback);
+
 	/**
 	 * Manually starts the service.
 	 */
 	public void start();
 
 	/**
-	 * Manually stops the service.
+	 * Manually stops the service. Returns once the watching thread has
+	 * stopped, so that the service can be started again without a second
+	 * thread.
 	 */
 	public void stop();
 
+	/**
+	 * Stops the service for good, releasing all WatchKeys and closing the
+	 * underlying WatchService.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+
 	/**
 	 * Clears all stored WatchKeys and callbacks.
 	 * 
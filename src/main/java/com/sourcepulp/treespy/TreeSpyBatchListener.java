@@ -0,0 +1,44 @@
+package com.sourcepulp.treespy;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A listener which receives changes in batches rather than one at a time.
+ * Each batch holds the changes drained from a single watched directory, or
+ * flushed together when coalescing is enabled, in the order they occurred.
+ * Batch listeners are registered exactly like any other TreeSpyListener.
+ * 
+ * @author Will Faithfull
+ *
+ */
+public interface TreeSpyBatchListener extends TreeSpyListener {
+
+	/**
+	 * Method that is called with a batch of file change events.
+	 * 
+	 * @param changes
+	 *            An immutable, non-empty list of changes.
+	 */
+	void onChanges(List<Change> changes);
+
+	/**
+	 * Delivers a single change as a batch of one. A MOVE reported this way
+	 * names only its target, so is delivered as a CREATE of the target, as
+	 * it would be without move detection.
+	 */
+	@Override
+	default void onChange(Path file, Events type) {
+		onChanges(Collections.singletonList(new Change(file, type == Events.MOVE ? Events.CREATE : type)));
+	}
+
+	/**
+	 * Delivers a single move as a batch of one.
+	 */
+	@Override
+	default void onMove(Path source, Path target) {
+		onChanges(Collections.singletonList(Change.move(source, target)));
+	}
+
+}
@@ -10,8 +10,22 @@ public interface TreeSpyListener {
 	 * @param file
 	 *            The path to the changed file
 	 * @param type
-	 *            The type of event; CREATE, MODIFY, DELETE or OVERFLOW.
+	 *            The type of event; CREATE, MODIFY, DELETE, OVERFLOW or MOVE.
 	 */
 	void onChange(Path file, Events type);
 
+	/**
+	 * Method that is called when a file or directory is detected to have been
+	 * moved or renamed, if move detection is enabled. By default this reports
+	 * a MOVE of the target to {@link #onChange(Path, Events)}.
+	 * 
+	 * @param source
+	 *            The path the file was moved from
+	 * @param target
+	 *            The path the file was moved to
+	 */
+	default void onMove(Path source, Path target) {
+		onChange(target, Events.MOVE);
+	}
+
 }
@@ -0,0 +1,36 @@
+package com.sourcepulp.treespy.concurrent;
+
+/**
+ * What a listener's dispatch queue does with a new change when it is full.
+ * 
+ * @author Will Faithfull
+ *
+ */
+public enum BackpressurePolicy {
+
+	/**
+	 * Block the watcher thread until the listener has caught up. Nothing is
+	 * lost, but every other listener waits too.
+	 */
+	BLOCK,
+
+	/**
+	 * Discard the oldest queued change to make room.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Merge the change into a change already queued for the same path. If
+	 * there is none, collapse the queue as for {@link #OVERFLOW}.
+	 */
+	COALESCE,
+
+	/**
+	 * Discard everything queued and queue an OVERFLOW in its place for each
+	 * directory in which changes were lost, so that the listener knows what
+	 * to rescan. Should there be more such directories than fit in the queue,
+	 * a single OVERFLOW for the deepest directory holding them all is queued
+	 * instead.
+	 */
+	OVERFLOW;
+}
@@ -0,0 +1,474 @@
+package com.sourcepulp.treespy.concurrent;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+
+/**
+ * Dispatches changes to listeners on a shared Executor while keeping each
+ * listener's changes in order. Every listener has its own queue, and at most
+ * one task per listener is running or waiting on the executor at any time,
+ * so a listener never sees its changes reordered or delivered concurrently.
+ * Different listeners are served in parallel.
+ * 
+ * Queues may be bounded, in which case a {@link BackpressurePolicy} decides
+ * what happens to changes for a listener which has fallen behind, so that one
+ * stuck listener cannot exhaust memory. Dispatching never blocks; under
+ * {@link BackpressurePolicy#BLOCK} the caller waits in
+ * {@link #awaitCapacity()} instead, once it holds no locks a listener might
+ * need.
+ * 
+ * @author Will Faithfull
+ *
+ */
+public class ListenerDispatcher {
+
+	private static final Logger log = LoggerFactory.getLogger(ListenerDispatcher.class);
+
+	/**
+	 * Carries out the delivery of a batch of changes to a listener.
+	 */
+	public interface Delivery {
+
+		void deliver(TreeSpyListener listener, List<Change> changes);
+	}
+
+	private final Executor executor;
+	private final Delivery delivery;
+
+	private volatile int maxBatchSize;
+
+	private final int capacity;
+	private final BackpressurePolicy policy;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final ConcurrentMap<TreeSpyListener, ListenerQueue> queues = new ConcurrentHashMap<TreeSpyListener, ListenerQueue>();
+
+	// Set on threads while they deliver, which must never wait for room.
+	private final ThreadLocal<Boolean> delivering = new ThreadLocal<Boolean>();
+
+	/**
+	 * Constructs a dispatcher with unbounded queues.
+	 * 
+	 * @param executor
+	 *            The executor on which deliveries run.
+	 * @param delivery
+	 *            Carries out each delivery.
+	 * @param maxBatchSize
+	 *            The largest number of changes handed over in one delivery.
+	 */
+	public ListenerDispatcher(Executor executor, Delivery delivery, int maxBatchSize) {
+		this(executor, delivery, maxBatchSize, Integer.MAX_VALUE, BackpressurePolicy.BLOCK);
+	}
+
+	/**
+	 * Constructs a dispatcher whose queues hold at most the specified number
+	 * of changes per listener.
+	 * 
+	 * @param executor
+	 *            The executor on which deliveries run.
+	 * @param delivery
+	 *            Carries out each delivery.
+	 * @param maxBatchSize
+	 *            The largest number of changes handed over in one delivery.
+	 * @param capacity
+	 *            The most changes queued for any one listener.
+	 * @param policy
+	 *            What to do with changes for a listener whose queue is full.
+	 */
+	public ListenerDispatcher(Executor executor, Delivery delivery, int maxBatchSize, int capacity,
+			BackpressurePolicy policy) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		this.executor = executor;
+		this.delivery = delivery;
+		this.capacity = capacity;
+		this.policy = policy;
+		setMaxBatchSize(maxBatchSize);
+	}
+
+	/**
+	 * @param maxBatchSize
+	 *            The largest number of changes handed over in one delivery.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Queues changes for delivery to the specified listener, after any changes
+	 * already queued for it. Never blocks; under
+	 * {@link BackpressurePolicy#BLOCK} a queue may briefly exceed its
+	 * capacity, until the caller waits in {@link #awaitCapacity()}.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 * @param changes
+	 *            The changes, in order.
+	 */
+	public void dispatch(TreeSpyListener listener, List<Change> changes) {
+		if (changes.isEmpty())
+			return;
+
+		while (true) {
+			ListenerQueue queue = queues.get(listener);
+			if (queue == null) {
+				ListenerQueue created = new ListenerQueue(listener);
+				queue = queues.putIfAbsent(listener, created);
+				if (queue == null)
+					queue = created;
+			}
+			// A removed queue has finished draining and left the map, so the
+			// next one cannot overtake it.
+			if (queue.offer(changes))
+				return;
+		}
+	}
+
+	/**
+	 * Under {@link BackpressurePolicy#BLOCK}, waits until no listener has more
+	 * changes queued than the capacity. Callers should hold no lock which a
+	 * listener's callback might take. Returns at once under other policies,
+	 * and when called from a delivery, since a listener waiting for its own
+	 * queue to drain would wait forever.
+	 */
+	public void awaitCapacity() {
+		if (policy != BackpressurePolicy.BLOCK || delivering.get() != null)
+			return;
+
+		for (ListenerQueue queue : queues.values()) {
+			try {
+				queue.awaitRoom();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @param listener
+	 *            A listener.
+	 * @return The number of changes waiting to be delivered to the listener.
+	 */
+	public int getQueueDepth(TreeSpyListener listener) {
+		ListenerQueue queue = queues.get(listener);
+		return queue == null ? 0 : queue.depth();
+	}
+
+	/**
+	 * @return The number of changes waiting to be delivered to all listeners.
+	 */
+	public long getTotalQueueDepth() {
+		long depth = 0;
+		for (ListenerQueue queue : queues.values()) {
+			depth += queue.depth();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return The number of changes discarded by backpressure so far.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Forgets the queue of a listener which will receive no more changes.
+	 * Changes already queued are still delivered, and the queue is only
+	 * forgotten once they have been, so that should the listener be added
+	 * again its changes stay in order.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 */
+	public void remove(TreeSpyListener listener) {
+		ListenerQueue queue = queues.get(listener);
+		if (queue != null)
+			queue.retire();
+	}
+
+	/**
+	 * A queued change. Changes are held in mutable slots so that coalescing
+	 * can replace a change in place.
+	 */
+	private static final class Slot {
+
+		Change change;
+
+		Slot(Change change) {
+			this.change = change;
+		}
+	}
+
+	/**
+	 * A listener's queue, which schedules itself on the executor whenever it
+	 * has changes and is not already scheduled.
+	 */
+	private class ListenerQueue implements Runnable {
+
+		private final TreeSpyListener listener;
+		private final ArrayDeque<Slot> pending = new ArrayDeque<Slot>();
+		private final Map<Path, Slot> latest = policy == BackpressurePolicy.COALESCE ? new HashMap<Path, Slot>()
+				: null;
+		private int size = 0;
+		private boolean scheduled = false;
+		private boolean retired = false;
+		private boolean removed = false;
+
+		ListenerQueue(TreeSpyListener listener) {
+			this.listener = listener;
+		}
+
+		synchronized int depth() {
+			return size;
+		}
+
+		/**
+		 * @return False if the queue has been removed, and a new one is
+		 *         needed.
+		 */
+		boolean offer(List<Change> changes) {
+			synchronized (this) {
+				if (removed)
+					return false;
+				retired = false;
+				for (Change change : changes) {
+					enqueue(change);
+				}
+				if (scheduled)
+					return true;
+				scheduled = true;
+			}
+			execute();
+			return true;
+		}
+
+		/**
+		 * Schedules the queue, which is marked scheduled. Should the executor
+		 * refuse, the mark is cleared, so that the next offer tries again
+		 * rather than the queue being stranded.
+		 */
+		private void execute() {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException ex) {
+				synchronized (this) {
+					scheduled = false;
+					notifyAll();
+				}
+				throw ex;
+			}
+		}
+
+		/**
+		 * Removes the queue once it has drained.
+		 */
+		synchronized void retire() {
+			retired = true;
+			if (!scheduled)
+				release();
+		}
+
+		private void release() {
+			removed = true;
+			queues.remove(listener, this);
+			notifyAll();
+		}
+
+		synchronized void awaitRoom() throws InterruptedException {
+			// Only while a delivery is on its way, which will make room.
+			while (size > capacity && scheduled && !removed)
+				wait();
+		}
+
+		private void enqueue(Change change) {
+			// Blocking is left to awaitCapacity, outside the caller's locks.
+			while (size >= capacity && policy != BackpressurePolicy.BLOCK) {
+				switch (policy) {
+				case DROP_OLDEST:
+					removeHead();
+					dropped.incrementAndGet();
+					break;
+				case COALESCE:
+					if (merge(change))
+						return;
+					collapse(change);
+					return;
+				default:
+					collapse(change);
+					return;
+				}
+			}
+			add(change);
+		}
+
+		private void add(Change change) {
+			Slot slot = new Slot(change);
+			pending.add(slot);
+			size++;
+			if (latest != null)
+				latest.put(change.getPath(), slot);
+		}
+
+		private Change removeHead() {
+			Slot slot = pending.poll();
+			if (slot == null)
+				return null;
+			if (latest != null)
+				latest.remove(slot.change.getPath(), slot);
+			size--;
+			return slot.change;
+		}
+
+		/**
+		 * Merges a change into the change already queued for its path.
+		 * 
+		 * @return True if the change was absorbed.
+		 */
+		private boolean merge(Change change) {
+			Slot slot = latest.get(change.getPath());
+			if (slot == null || slot.change.getEvent() == Events.OVERFLOW || slot.change.getEvent() == Events.MOVE
+					|| change.getEvent() == Events.MOVE)
+				return false;
+
+			Events merged = Events.coalesce(slot.change.getEvent(), change.getEvent());
+			if (merged == null) {
+				// Removed at once, so that a path which keeps coming and going
+				// cannot grow the queue behind a stuck listener.
+				pending.removeLastOccurrence(slot);
+				latest.remove(change.getPath());
+				size--;
+			} else {
+				slot.change = new Change(change.getPath(), merged, slot.change.getTimestamp());
+			}
+			return true;
+		}
+
+		/**
+		 * Replaces everything queued, and the change which did not fit, with
+		 * an OVERFLOW for each directory in which changes were dropped, in
+		 * the order they were first dropped. Should those directories not fit
+		 * in the queue, a single OVERFLOW for the deepest directory holding
+		 * them all is queued instead.
+		 */
+		private void collapse(Change change) {
+			dropped.addAndGet(size + 1);
+			LinkedHashSet<Path> directories = new LinkedHashSet<Path>();
+			for (Slot slot : pending) {
+				addDirectories(directories, slot.change);
+			}
+			addDirectories(directories, change);
+
+			pending.clear();
+			if (latest != null)
+				latest.clear();
+			size = 0;
+
+			if (directories.size() > capacity) {
+				Path common = null;
+				for (Path directory : directories) {
+					common = common == null ? directory : commonAncestor(common, directory);
+				}
+				directories.clear();
+				directories.add(common);
+			}
+			for (Path directory : directories) {
+				add(new Change(directory, Events.OVERFLOW));
+			}
+		}
+
+		private void addDirectories(Set<Path> directories, Change change) {
+			// An OVERFLOW already names its directory.
+			if (change.getEvent() == Events.OVERFLOW) {
+				directories.add(change.getPath());
+				return;
+			}
+			directories.add(directoryOf(change.getPath()));
+			if (change.getSource() != null)
+				directories.add(directoryOf(change.getSource()));
+		}
+
+		private Path directoryOf(Path path) {
+			Path directory = path.getParent();
+			return directory == null ? path : directory;
+		}
+
+		private Path commonAncestor(Path a, Path b) {
+			Path common = a;
+			while (common != null && !b.startsWith(common))
+				common = common.getParent();
+			// Nothing holds both, as on different drives; a is the best there is.
+			return common == null ? a : common;
+		}
+
+		public void run() {
+			List<Change> batch;
+			synchronized (this) {
+				int count = Math.min(size, maxBatchSize);
+				batch = new ArrayList<Change>(count);
+				for (int i = 0; i < count; i++) {
+					batch.add(removeHead());
+				}
+				// Wake the watcher if it is blocked waiting for room.
+				if (count > 0 && policy == BackpressurePolicy.BLOCK)
+					notifyAll();
+			}
+
+			delivering.set(Boolean.TRUE);
+			try {
+				if (!batch.isEmpty())
+					delivery.deliver(listener, Collections.unmodifiableList(batch));
+			} catch (RuntimeException ex) {
+				StringWriter sw = new StringWriter();
+				ex.printStackTrace(new PrintWriter(sw));
+				log.warn(sw.toString());
+			} finally {
+				delivering.remove();
+				// Even after an Error, so that the listener's later changes are
+				// still delivered and no one waits for room forever.
+				reschedule();
+			}
+		}
+
+		/**
+		 * Reschedules the queue if it has more changes, rather than looping,
+		 * so that one busy listener cannot monopolise a pooled thread.
+		 */
+		private void reschedule() {
+			synchronized (this) {
+				if (size == 0) {
+					scheduled = false;
+					if (retired)
+						release();
+					return;
+				}
+			}
+			execute();
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package com.sourcepulp.treespy.concurrent;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.TreeSpyListener;
+
+/**
+ * Fans changes out to listeners through a preallocated ring of slots. The
+ * watcher publishes each change once, along with the listeners it concerns,
+ * and every listener has a consumer thread of its own which reads the ring
+ * through a private cursor. Publishing takes no lock and allocates nothing,
+ * and a slow listener only lags its own cursor; the publisher waits only when
+ * the slowest consumer is a whole ring behind.
+ *
+ * Changes must be published by one thread at a time. Each consumer applies
+ * its own {@link Selector}, so that the publisher does no per-listener work,
+ * and delivers what it selects in batches, in order, never concurrently.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class RingBufferEventBus {
+
+	private static final Logger log = LoggerFactory.getLogger(RingBufferEventBus.class);
+
+	private static final long PUBLISHER_PARK_NANOS = 50000;
+
+	/**
+	 * Decides whether a consumer's listener wants a change.
+	 */
+	public interface Selector {
+
+		boolean selects(TreeSpyListener listener, Change change);
+	}
+
+	private final Slot[] slots;
+	private final int mask;
+	private final WaitStrategy strategy;
+	private final ThreadFactory threadFactory;
+	private final ListenerDispatcher.Delivery delivery;
+	private final Selector selector;
+	private volatile int maxBatchSize;
+
+	// The sequence of the last published slot. Only the publisher writes it.
+	private final Sequence published = new Sequence(-1);
+	private long cachedMinimum = -1;
+
+	private final ConcurrentMap<TreeSpyListener, Consumer> consumers = new ConcurrentHashMap<TreeSpyListener, Consumer>();
+	private volatile boolean running = true;
+
+	/**
+	 * A preallocated slot, overwritten in place each time round the ring.
+	 */
+	private static final class Slot {
+
+		Change change;
+		Collection<TreeSpyListener> audience;
+	}
+
+	/**
+	 * A sequence padded so that the cursors of different consumers, and the
+	 * publisher's, do not share a cache line.
+	 */
+	@SuppressWarnings("serial")
+	private static final class Sequence extends AtomicLong {
+
+		@SuppressWarnings("unused")
+		long p1, p2, p3, p4, p5, p6, p7;
+
+		Sequence(long initial) {
+			super(initial);
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            The number of slots, rounded up to a power of two.
+	 * @param strategy
+	 *            How consumers wait for changes and the publisher for room.
+	 * @param threadFactory
+	 *            Creates each consumer's thread.
+	 * @param delivery
+	 *            Carries out each delivery.
+	 * @param selector
+	 *            Decides which changes each listener receives.
+	 * @param maxBatchSize
+	 *            The largest number of changes handed over in one delivery.
+	 */
+	public RingBufferEventBus(int capacity, WaitStrategy strategy, ThreadFactory threadFactory,
+			ListenerDispatcher.Delivery delivery, Selector selector, int maxBatchSize) {
+		if (capacity < 1 || capacity > 1 << 30)
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.strategy = strategy;
+		this.threadFactory = threadFactory;
+		this.delivery = delivery;
+		this.selector = selector;
+		setMaxBatchSize(maxBatchSize);
+	}
+
+	/**
+	 * @param maxBatchSize
+	 *            The largest number of changes handed over in one delivery.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @return The number of slots in the ring.
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * @return How consumers wait for changes.
+	 */
+	public WaitStrategy getWaitStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Publishes changes for the specified listeners, starting a consumer for
+	 * any listener which has none. Must not be called concurrently.
+	 *
+	 * @param audience
+	 *            The listeners the changes concern. They are copied, so a
+	 *            listener later removed from the collection still receives
+	 *            these changes, and one later added does not.
+	 * @param changes
+	 *            The changes, in order.
+	 */
+	public void publish(Collection<TreeSpyListener> audience, List<Change> changes) {
+		if (!running || changes.isEmpty())
+			return;
+		Collection<TreeSpyListener> snapshot = Collections.unmodifiableSet(new HashSet<TreeSpyListener>(audience));
+
+		// Subscribing first means a new consumer's cursor starts before these
+		// changes, so it receives them. A listener removed and added again
+		// keeps its consumer, unless that consumer has already exited.
+		for (TreeSpyListener listener : snapshot) {
+			Consumer consumer = consumers.get(listener);
+			if (consumer == null || !consumer.resume())
+				subscribe(listener);
+		}
+
+		long sequence = published.get();
+		for (Change change : changes) {
+			sequence++;
+			awaitRoom(sequence);
+			Slot slot = slots[(int) (sequence & mask)];
+			slot.change = change;
+			slot.audience = snapshot;
+			published.lazySet(sequence);
+		}
+		// A full fence, so that a consumer about to park either sees these
+		// changes or is seen to be waiting.
+		published.set(sequence);
+
+		if (strategy == WaitStrategy.PARK) {
+			for (Consumer consumer : consumers.values()) {
+				consumer.signal();
+			}
+		}
+	}
+
+	/**
+	 * Stops the consumer of a listener which will receive no more changes.
+	 * Changes already published are still delivered.
+	 *
+	 * @param listener
+	 *            The listener.
+	 */
+	public void remove(TreeSpyListener listener) {
+		// The consumer keeps its place in the ring until it has caught up, so
+		// that the slots it has yet to read are not overwritten.
+		Consumer consumer = consumers.get(listener);
+		if (consumer != null)
+			consumer.stop();
+	}
+
+	/**
+	 * @param listener
+	 *            A listener.
+	 * @return The number of published changes its consumer has yet to
+	 *         deliver.
+	 */
+	public long getLag(TreeSpyListener listener) {
+		Consumer consumer = consumers.get(listener);
+		return consumer == null ? 0 : published.get() - consumer.sequence.get();
+	}
+
+	/**
+	 * @return The number of published changes not yet delivered, summed over
+	 *         all consumers.
+	 */
+	public long getTotalLag() {
+		long lag = 0;
+		long last = published.get();
+		for (Consumer consumer : consumers.values()) {
+			lag += last - consumer.sequence.get();
+		}
+		return lag;
+	}
+
+	/**
+	 * Stops every consumer once it has delivered what was already published.
+	 * Nothing more can be published.
+	 */
+	public void shutdown() {
+		running = false;
+		for (Consumer consumer : consumers.values()) {
+			consumer.stop();
+		}
+	}
+
+	private void subscribe(TreeSpyListener listener) {
+		Consumer consumer = new Consumer(listener, published.get());
+		consumers.put(listener, consumer);
+		Thread thread = threadFactory.newThread(consumer);
+		consumer.thread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Waits until the slot for the specified sequence has been read by every
+	 * consumer. The minimum is cached, so that the consumers' cursors are only
+	 * read once the publisher has caught up with the last value seen.
+	 */
+	private void awaitRoom(long sequence) {
+		long wrapPoint = sequence - slots.length;
+		while (wrapPoint > cachedMinimum) {
+			long minimum = sequence - 1;
+			for (Consumer consumer : consumers.values()) {
+				minimum = Math.min(minimum, consumer.sequence.get());
+			}
+			cachedMinimum = minimum;
+			if (wrapPoint <= minimum)
+				return;
+
+			switch (strategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			default:
+				LockSupport.parkNanos(PUBLISHER_PARK_NANOS);
+			}
+		}
+	}
+
+	private static final int ACTIVE = 0;
+	private static final int STOPPING = 1;
+	private static final int EXITED = 2;
+
+	/**
+	 * Reads the ring on behalf of one listener. A stopping consumer exits once
+	 * it has caught up, unless it is resumed first; it leaves the consumers
+	 * when it exits, however it exits, so that the publisher never waits for
+	 * a cursor which will not move again.
+	 */
+	private class Consumer implements Runnable {
+
+		private final TreeSpyListener listener;
+		private final Sequence sequence;
+		private final AtomicInteger state = new AtomicInteger(ACTIVE);
+		private volatile boolean waiting = false;
+		volatile Thread thread;
+
+		Consumer(TreeSpyListener listener, long start) {
+			this.listener = listener;
+			this.sequence = new Sequence(start);
+		}
+
+		void signal() {
+			if (waiting) {
+				Thread thread = this.thread;
+				if (thread != null)
+					LockSupport.unpark(thread);
+			}
+		}
+
+		void stop() {
+			state.compareAndSet(ACTIVE, STOPPING);
+			Thread thread = this.thread;
+			if (thread != null)
+				LockSupport.unpark(thread);
+		}
+
+		/**
+		 * @return True if the consumer is active, or was stopping and has been
+		 *         made active again; false if it has exited.
+		 */
+		boolean resume() {
+			while (true) {
+				int current = state.get();
+				if (current != STOPPING)
+					return current == ACTIVE;
+				if (state.compareAndSet(STOPPING, ACTIVE))
+					return true;
+			}
+		}
+
+		public void run() {
+			try {
+				consume();
+			} finally {
+				state.set(EXITED);
+				consumers.remove(listener, this);
+			}
+		}
+
+		private void consume() {
+			List<Change> selected = new ArrayList<Change>();
+			long next = sequence.get() + 1;
+
+			while (true) {
+				long available = waitFor(next);
+				if (available < next) {
+					// Stopped and caught up, unless resumed meanwhile.
+					if (state.compareAndSet(STOPPING, EXITED))
+						return;
+					continue;
+				}
+
+				int batchSize = maxBatchSize;
+				long s = next;
+				while (s <= available) {
+					for (; s <= available && selected.size() < batchSize; s++) {
+						Slot slot = slots[(int) (s & mask)];
+						Change change = slot.change;
+						if (slot.audience.contains(listener) && selector.selects(listener, change))
+							selected.add(change);
+					}
+					if (!selected.isEmpty()) {
+						deliver(new ArrayList<Change>(selected));
+						selected.clear();
+					}
+					// Only delivered slots are released, so that the publisher
+					// waits for a listener rather than outrunning it.
+					sequence.lazySet(s - 1);
+				}
+				next = available + 1;
+			}
+		}
+
+		/**
+		 * Waits for the specified sequence to be published.
+		 *
+		 * @return The last published sequence, or less than the specified one
+		 *         if this consumer has been stopped and has caught up.
+		 */
+		private long waitFor(long next) {
+			long available;
+			while ((available = published.get()) < next) {
+				if (state.get() != ACTIVE)
+					return available;
+
+				switch (strategy) {
+				case BUSY_SPIN:
+					break;
+				case YIELD:
+					Thread.yield();
+					break;
+				default:
+					waiting = true;
+					// Check again, in case the publisher missed the flag.
+					if (published.get() < next && state.get() == ACTIVE)
+						LockSupport.park(this);
+					waiting = false;
+				}
+			}
+			return available;
+		}
+
+		private void deliver(List<Change> batch) {
+			try {
+				delivery.deliver(listener, Collections.unmodifiableList(batch));
+			} catch (RuntimeException ex) {
+				StringWriter sw = new StringWriter();
+				ex.printStackTrace(new PrintWriter(sw));
+				log.warn(sw.toString());
+			}
+		}
+	}
+}
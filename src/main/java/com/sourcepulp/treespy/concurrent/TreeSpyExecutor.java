@@ -3,6 +3,16 @@ package com.sourcepulp.treespy.concurrent;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadFactory;
 
+/**
+ * Runs each task on a new thread from the factory. A spy only uses this to
+ * launch its poller, and launches at most one at a time, so the threads it
+ * makes are bounded by the number of spies. Spies which should not have a
+ * thread each can share the pollers of a
+ * {@link com.sourcepulp.treespy.jse7.SharedWatchEngine} instead.
+ *
+ * @author Will Faithfull
+ *
+ */
 public class TreeSpyExecutor implements Executor {
 	
 	private ThreadFactory threadFactory;
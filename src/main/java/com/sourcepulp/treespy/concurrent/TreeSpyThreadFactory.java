@@ -4,6 +4,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +13,7 @@ public class TreeSpyThreadFactory implements ThreadFactory {
 	
 	private Logger log = LoggerFactory.getLogger(TreeSpyThreadFactory.class);
 	private final static ThreadGroup group = new ThreadGroup("TreeSpyThreadGroup");
+	private final static AtomicInteger threadNumber = new AtomicInteger(1);
 	
 	private UncaughtExceptionHandler handler = new UncaughtExceptionHandler() {
 		
@@ -28,7 +30,7 @@ public class TreeSpyThreadFactory implements ThreadFactory {
 
 	@Override
 	public Thread newThread(Runnable arg0) {
-		Thread t = new Thread(group, arg0, "TreeSpy");
+		Thread t = new Thread(group, arg0, "TreeSpy-" + threadNumber.getAndIncrement());
 		t.setUncaughtExceptionHandler(handler);
 		t.setDaemon(true);
 		return t;
@@ -0,0 +1,61 @@
+package com.sourcepulp.treespy.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to virtual threads on JVMs which support them, without requiring
+ * them at compile time. On older JVMs a cached pool of daemon platform
+ * threads is used instead.
+ * 
+ * @author Will Faithfull
+ *
+ */
+public class VirtualThreads {
+
+	private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return True if this JVM can start virtual threads.
+	 */
+	public static boolean isAvailable() {
+		ExecutorService executor = newVirtualThreadPerTaskExecutor();
+		if (executor == null)
+			return false;
+		executor.shutdown();
+		return true;
+	}
+
+	/**
+	 * Creates an ExecutorService which runs each task on a new virtual thread,
+	 * or, if virtual threads are unavailable, on a cached pool of daemon
+	 * threads.
+	 * 
+	 * @return An unbounded ExecutorService for blocking callbacks.
+	 */
+	public static ExecutorService newPerTaskExecutor() {
+		ExecutorService executor = newVirtualThreadPerTaskExecutor();
+		if (executor != null)
+			return executor;
+
+		log.info("Virtual threads are unavailable, falling back to a cached thread pool.");
+		return Executors.newCachedThreadPool(new TreeSpyThreadFactory());
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception ex) {
+			// Missing before Java 19, and a preview feature until Java 21.
+			return null;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.sourcepulp.treespy.concurrent;
+
+/**
+ * How a consumer of a {@link RingBufferEventBus} waits for the next event,
+ * and how the publisher waits for room when the slowest consumer is a whole
+ * ring behind. Trades CPU for latency.
+ *
+ * @author Will Faithfull
+ *
+ */
+public enum WaitStrategy {
+
+	/**
+	 * Spin on the cursor. The lowest latency, at the cost of a core per
+	 * consumer.
+	 */
+	BUSY_SPIN,
+
+	/**
+	 * Yield the processor between checks of the cursor. Low latency, and
+	 * other threads still get to run, but an idle consumer stays busy.
+	 */
+	YIELD,
+
+	/**
+	 * Park until the publisher signals a new event. Idle consumers cost
+	 * nothing, but each wakeup takes a trip through the scheduler.
+	 */
+	PARK;
+}
@@ -0,0 +1,467 @@
+package com.sourcepulp.treespy.glob;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sourcepulp.treespy.TreeSpyListener;
+
+/**
+ * Matches file names against the globs of every listener at once.
+ *
+ * Rather than testing each listener's PathMatchers in turn, registered globs
+ * are compiled into a single index. Globs of the most common shapes never
+ * touch a regular expression: exact names are looked up in a hash table,
+ * {@code *.ext} globs by each of the name's extensions, and {@code *} matches
+ * everything. Any other glob falls back to a PathMatcher, guarded by a
+ * literal which any matching name must contain, so that most non-matching
+ * names are rejected with a substring test.
+ *
+ * Globs containing a separator, such as {@code src/**}{@code /*.java}, are
+ * matched against the path relative to the watched root rather than the file
+ * name. Globs starting with {@code !} are excludes: a file or directory is
+ * excluded if its name or relative path matches, and excluded directories
+ * are not watched at all.
+ *
+ * Each listener's own name globs are also compiled on their own, so that
+ * checking a single listener costs only its globs, however many other
+ * listeners there are.
+ *
+ * Reads are lock free; changing the globs recompiles the index.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class GlobIndex {
+
+	private static final String GLOB_SYNTAX = "glob:";
+	private static final String EXCLUDE = "!";
+	private static final String META = "*?[]{}\\";
+
+	private final FileSystem fileSystem;
+	private final boolean fastPaths;
+
+	private final Map<TreeSpyListener, Set<String>> globs = new LinkedHashMap<TreeSpyListener, Set<String>>();
+
+	private volatile Compiled compiled = new Compiled();
+
+	/**
+	 * Constructs an index for globs on the default filesystem.
+	 */
+	public GlobIndex() {
+		this(FileSystems.getDefault());
+	}
+
+	/**
+	 * Constructs an index for globs on the specified filesystem.
+	 *
+	 * @param fileSystem
+	 *            The filesystem whose glob syntax to follow.
+	 */
+	public GlobIndex(FileSystem fileSystem) {
+		this.fileSystem = fileSystem;
+		// Glob matching is case insensitive on Windows, where the hash table
+		// fast paths would give different answers from a PathMatcher.
+		this.fastPaths = "/".equals(fileSystem.getSeparator());
+	}
+
+	/**
+	 * Adds a glob for the specified listener.
+	 *
+	 * @param listener
+	 *            The listener.
+	 * @param glob
+	 *            A glob, optionally prefixed with "glob:".
+	 */
+	public synchronized void add(TreeSpyListener listener, String glob) {
+		if (glob.startsWith(GLOB_SYNTAX))
+			glob = glob.substring(GLOB_SYNTAX.length());
+
+		Set<String> stored = globs.get(listener);
+		if (stored == null) {
+			stored = new LinkedHashSet<String>();
+			globs.put(listener, stored);
+		}
+		if (stored.add(glob))
+			compiled = compile();
+	}
+
+	/**
+	 * Removes every glob of the specified listener.
+	 *
+	 * @param listener
+	 *            The listener.
+	 */
+	public synchronized void remove(TreeSpyListener listener) {
+		if (globs.remove(listener) != null)
+			compiled = compile();
+	}
+
+	/**
+	 * @param listener
+	 *            A listener.
+	 * @return True if the listener has any globs, other than excludes.
+	 *         Listeners without globs are interested in every file.
+	 */
+	public boolean hasGlobs(TreeSpyListener listener) {
+		return compiled.listeners.contains(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            A listener.
+	 * @return True if the listener has globs relative to its watched root.
+	 */
+	public boolean hasRelativeGlobs(TreeSpyListener listener) {
+		return compiled.relative.containsKey(listener);
+	}
+
+	/**
+	 * Checks a path relative to the watched root against the listener's
+	 * relative globs.
+	 *
+	 * @param listener
+	 *            The listener.
+	 * @param relative
+	 *            The path relative to the listener's watched root.
+	 * @return True if one of the relative globs matches.
+	 */
+	public boolean matchesRelative(TreeSpyListener listener, Path relative) {
+		List<PathMatcher> matchers = compiled.relative.get(listener);
+		if (matchers == null)
+			return false;
+		for (PathMatcher matcher : matchers) {
+			if (matcher.matches(relative))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param listener
+	 *            A listener.
+	 * @return True if the listener has exclude globs.
+	 */
+	public boolean hasExcludes(TreeSpyListener listener) {
+		return compiled.excludes.containsKey(listener);
+	}
+
+	/**
+	 * Checks whether a file or directory is excluded for the listener, either
+	 * by its name or by its path relative to the watched root. Ancestors are
+	 * not checked, as excluded directories are never watched.
+	 *
+	 * @param listener
+	 *            The listener.
+	 * @param relative
+	 *            The path relative to the listener's watched root.
+	 * @return True if an exclude glob matches.
+	 */
+	public boolean isExcluded(TreeSpyListener listener, Path relative) {
+		Excludes excludes = compiled.excludes.get(listener);
+		return excludes != null && excludes.matches(relative);
+	}
+
+	/**
+	 * @return True if no listener has globs.
+	 */
+	public boolean isEmpty() {
+		return compiled.listeners.isEmpty();
+	}
+
+	/**
+	 * Finds every listener with a glob matching the specified file name, in a
+	 * single pass over the index.
+	 *
+	 * @param fileName
+	 *            The name of a file, without any directory.
+	 * @return The listeners with at least one matching glob.
+	 */
+	public Set<TreeSpyListener> match(Path fileName) {
+		Compiled c = compiled;
+		if (c.listeners.isEmpty() || fileName == null)
+			return Collections.emptySet();
+
+		Set<TreeSpyListener> matched = new HashSet<TreeSpyListener>();
+		c.matchInto(fileName, matched);
+		return matched;
+	}
+
+	/**
+	 * Checks whether the specified listener is interested in a file name. A
+	 * listener without globs is interested in every name.
+	 *
+	 * @param listener
+	 *            The listener.
+	 * @param fileName
+	 *            The name of a file, without any directory.
+	 * @return True if the listener has no globs, or one of them matches.
+	 */
+	public boolean matches(TreeSpyListener listener, Path fileName) {
+		Compiled c = compiled;
+		if (!c.listeners.contains(listener))
+			return true;
+		NameGlobs own = c.byListener.get(listener);
+		return own != null && fileName != null && own.matches(fileName);
+	}
+
+	private Compiled compile() {
+		Compiled c = new Compiled();
+		for (Map.Entry<TreeSpyListener, Set<String>> entry : globs.entrySet()) {
+			TreeSpyListener listener = entry.getKey();
+			for (String glob : entry.getValue()) {
+				if (glob.startsWith(EXCLUDE)) {
+					c.exclude(listener, glob.substring(EXCLUDE.length()));
+				} else if (isRelative(glob)) {
+					c.relative(listener, glob);
+					c.listeners.add(listener);
+				} else {
+					c.add(listener, glob);
+					c.listeners.add(listener);
+				}
+			}
+		}
+		return c;
+	}
+
+	private boolean isRelative(String glob) {
+		return glob.contains(fileSystem.getSeparator()) || glob.indexOf('/') >= 0;
+	}
+
+	/**
+	 * An immutable, compiled view of the registered globs.
+	 */
+	private class Compiled {
+
+		final Set<TreeSpyListener> listeners = new HashSet<TreeSpyListener>();
+		final List<TreeSpyListener> matchAll = new ArrayList<TreeSpyListener>();
+		final Map<String, List<TreeSpyListener>> exact = new HashMap<String, List<TreeSpyListener>>();
+		final Map<String, List<TreeSpyListener>> extensions = new HashMap<String, List<TreeSpyListener>>();
+		final List<Fallback> fallbacks = new ArrayList<Fallback>();
+		final Map<TreeSpyListener, List<PathMatcher>> relative = new HashMap<TreeSpyListener, List<PathMatcher>>();
+		final Map<TreeSpyListener, Excludes> excludes = new HashMap<TreeSpyListener, Excludes>();
+		final Map<TreeSpyListener, NameGlobs> byListener = new HashMap<TreeSpyListener, NameGlobs>();
+
+		void relative(TreeSpyListener listener, String glob) {
+			List<PathMatcher> matchers = relative.get(listener);
+			if (matchers == null) {
+				matchers = new ArrayList<PathMatcher>();
+				relative.put(listener, matchers);
+			}
+			matchers.add(fileSystem.getPathMatcher(GLOB_SYNTAX + glob));
+		}
+
+		void exclude(TreeSpyListener listener, String glob) {
+			Excludes listenerExcludes = excludes.get(listener);
+			if (listenerExcludes == null) {
+				listenerExcludes = new Excludes();
+				excludes.put(listener, listenerExcludes);
+			}
+			if (isRelative(glob))
+				listenerExcludes.relative.add(fileSystem.getPathMatcher(GLOB_SYNTAX + glob));
+			else if (fastPaths && isLiteral(glob))
+				listenerExcludes.names.add(glob);
+			else
+				listenerExcludes.nameMatchers.add(fileSystem.getPathMatcher(GLOB_SYNTAX + glob));
+		}
+
+		void add(TreeSpyListener listener, String glob) {
+			NameGlobs own = byListener.get(listener);
+			if (own == null) {
+				own = new NameGlobs();
+				byListener.put(listener, own);
+			}
+
+			if (fastPaths) {
+				if (glob.equals("*")) {
+					matchAll.add(listener);
+					own.all = true;
+					return;
+				}
+				if (isLiteral(glob)) {
+					put(exact, glob, listener);
+					own.names.add(glob);
+					return;
+				}
+				if (glob.startsWith("*.") && isLiteral(glob.substring(1))) {
+					put(extensions, glob.substring(1), listener);
+					own.extensions.add(glob.substring(1));
+					return;
+				}
+			}
+			Fallback fallback = new Fallback(listener, fileSystem.getPathMatcher(GLOB_SYNTAX + glob),
+					requiredLiteral(glob));
+			fallbacks.add(fallback);
+			own.fallbacks.add(fallback);
+		}
+
+		void matchInto(Path fileName, Set<TreeSpyListener> matched) {
+			matched.addAll(matchAll);
+
+			String name = fileName.toString();
+			if (!exact.isEmpty())
+				addAll(matched, exact.get(name));
+
+			// Try every extension of the name, e.g. ".tar.gz" then ".gz".
+			if (!extensions.isEmpty()) {
+				for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1)) {
+					addAll(matched, extensions.get(name.substring(dot)));
+				}
+			}
+
+			for (Fallback fallback : fallbacks) {
+				if (matched.contains(fallback.listener))
+					continue;
+				if (fallback.literal != null && !name.contains(fallback.literal))
+					continue;
+				if (fallback.matcher.matches(fileName))
+					matched.add(fallback.listener);
+			}
+		}
+	}
+
+	/**
+	 * The exclude globs of one listener.
+	 */
+	private static class Excludes {
+
+		final Set<String> names = new HashSet<String>();
+		final List<PathMatcher> nameMatchers = new ArrayList<PathMatcher>();
+		final List<PathMatcher> relative = new ArrayList<PathMatcher>();
+
+		boolean matches(Path path) {
+			Path fileName = path.getFileName();
+			if (fileName != null) {
+				if (names.contains(fileName.toString()))
+					return true;
+				for (PathMatcher matcher : nameMatchers) {
+					if (matcher.matches(fileName))
+						return true;
+				}
+			}
+			for (PathMatcher matcher : relative) {
+				if (matcher.matches(path))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The name globs of one listener, matched by the same fast paths as the
+	 * index as a whole.
+	 */
+	private static class NameGlobs {
+
+		boolean all;
+		final Set<String> names = new HashSet<String>();
+		final Set<String> extensions = new HashSet<String>();
+		final List<Fallback> fallbacks = new ArrayList<Fallback>();
+
+		boolean matches(Path fileName) {
+			if (all)
+				return true;
+
+			String name = fileName.toString();
+			if (names.contains(name))
+				return true;
+			if (!extensions.isEmpty()) {
+				for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1)) {
+					if (extensions.contains(name.substring(dot)))
+						return true;
+				}
+			}
+			for (Fallback fallback : fallbacks) {
+				if (fallback.literal != null && !name.contains(fallback.literal))
+					continue;
+				if (fallback.matcher.matches(fileName))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A glob which needs a PathMatcher, with its prefilter.
+	 */
+	private static class Fallback {
+
+		final TreeSpyListener listener;
+		final PathMatcher matcher;
+		final String literal;
+
+		Fallback(TreeSpyListener listener, PathMatcher matcher, String literal) {
+			this.listener = listener;
+			this.matcher = matcher;
+			this.literal = literal;
+		}
+	}
+
+	private static void put(Map<String, List<TreeSpyListener>> map, String key, TreeSpyListener listener) {
+		List<TreeSpyListener> listeners = map.get(key);
+		if (listeners == null) {
+			listeners = new ArrayList<TreeSpyListener>(1);
+			map.put(key, listeners);
+		}
+		listeners.add(listener);
+	}
+
+	private static void addAll(Set<TreeSpyListener> matched, List<TreeSpyListener> listeners) {
+		if (listeners != null)
+			matched.addAll(listeners);
+	}
+
+	private static boolean isLiteral(String glob) {
+		for (int i = 0; i < glob.length(); i++) {
+			if (META.indexOf(glob.charAt(i)) >= 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the longest run of literal characters which every name matching
+	 * the glob must contain. Runs inside brackets or braces are optional, so
+	 * are skipped.
+	 *
+	 * @param glob
+	 *            The glob.
+	 * @return The literal, or null if there is none or the glob uses escapes.
+	 */
+	static String requiredLiteral(String glob) {
+		if (glob.indexOf('\\') >= 0)
+			return null;
+
+		String longest = null;
+		StringBuilder run = new StringBuilder();
+		int depth = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '[' || c == '{')
+				depth++;
+			else if ((c == ']' || c == '}') && depth > 0)
+				depth--;
+
+			if (depth == 0 && META.indexOf(c) < 0) {
+				run.append(c);
+			} else {
+				if (run.length() > 0 && (longest == null || run.length() > longest.length()))
+					longest = run.toString();
+				run.setLength(0);
+			}
+		}
+		if (run.length() > 0 && (longest == null || run.length() > longest.length()))
+			longest = run.toString();
+		return longest;
+	}
+}
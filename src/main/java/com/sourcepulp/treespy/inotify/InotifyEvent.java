@@ -0,0 +1,60 @@
+package com.sourcepulp.treespy.inotify;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+
+/**
+ * An event read from inotify. A rename within the watched tree is reported as
+ * an ENTRY_DELETE in the source directory and an ENTRY_CREATE in the target
+ * directory, which carry the same non-zero cookie.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class InotifyEvent implements WatchEvent<Path> {
+
+	private final WatchEvent.Kind<Path> kind;
+	private final Path context;
+	private final int cookie;
+
+	InotifyEvent(WatchEvent.Kind<Path> kind, Path context, int cookie) {
+		this.kind = kind;
+		this.context = context;
+		this.cookie = cookie;
+	}
+
+	@Override
+	public WatchEvent.Kind<Path> kind() {
+		return kind;
+	}
+
+	@Override
+	public int count() {
+		return 1;
+	}
+
+	@Override
+	public Path context() {
+		return context;
+	}
+
+	/**
+	 * @return The cookie pairing the two halves of a rename, or 0 if the event
+	 *         is not part of one.
+	 */
+	public int getCookie() {
+		return cookie;
+	}
+
+	/**
+	 * @return True if the event is one half of a rename.
+	 */
+	public boolean isMove() {
+		return cookie != 0;
+	}
+
+	@Override
+	public String toString() {
+		return kind.name() + " " + context + (cookie != 0 ? " cookie=" + cookie : "");
+	}
+}
@@ -0,0 +1,83 @@
+package com.sourcepulp.treespy.inotify;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the {@code struct inotify_event} records read from an inotify file
+ * descriptor, in place and without allocating. Each record is a header of
+ * four native-order 32 bit fields (watch descriptor, mask, cookie and name
+ * length) followed by the name, padded with NULs to the given length.
+ *
+ * @author Will Faithfull
+ *
+ */
+final class InotifyEventDecoder {
+
+	static final int HEADER_SIZE = 16;
+
+	/**
+	 * Receives decoded events. The name is left in the buffer, so that it only
+	 * needs to be decoded for events which are actually wanted.
+	 */
+	interface Handler {
+
+		/**
+		 * @param wd
+		 *            The watch descriptor.
+		 * @param mask
+		 *            The event mask.
+		 * @param cookie
+		 *            Pairs the IN_MOVED_FROM and IN_MOVED_TO of a rename, 0
+		 *            otherwise.
+		 * @param buffer
+		 *            The buffer holding the name.
+		 * @param nameOffset
+		 *            The position of the name in the buffer.
+		 * @param nameLength
+		 *            The length of the name in bytes, excluding padding; 0 for
+		 *            events on the watched directory itself.
+		 */
+		void onEvent(int wd, int mask, int cookie, ByteBuffer buffer, int nameOffset, int nameLength);
+	}
+
+	private InotifyEventDecoder() {
+	}
+
+	/**
+	 * Decodes every complete record in the first {@code length} bytes of the
+	 * buffer. The buffer's position and limit are not changed, and its byte
+	 * order must be the native order.
+	 *
+	 * @param buffer
+	 *            The buffer the records were read into.
+	 * @param length
+	 *            The number of bytes read.
+	 * @param handler
+	 *            Receives each event.
+	 * @return The number of events decoded.
+	 */
+	static int decode(ByteBuffer buffer, int length, Handler handler) {
+		int count = 0;
+		int position = 0;
+		while (position + HEADER_SIZE <= length) {
+			int wd = buffer.getInt(position);
+			int mask = buffer.getInt(position + 4);
+			int cookie = buffer.getInt(position + 8);
+			int padded = buffer.getInt(position + 12);
+
+			int nameOffset = position + HEADER_SIZE;
+			int end = nameOffset + padded;
+			if (padded < 0 || end > length)
+				break;
+
+			int nameLength = 0;
+			while (nameLength < padded && buffer.get(nameOffset + nameLength) != 0)
+				nameLength++;
+
+			handler.onEvent(wd, mask, cookie, buffer, nameOffset, nameLength);
+			count++;
+			position = end;
+		}
+		return count;
+	}
+}
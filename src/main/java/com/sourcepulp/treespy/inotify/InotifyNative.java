@@ -0,0 +1,119 @@
+package com.sourcepulp.treespy.inotify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bindings to the Linux inotify system calls, implemented by the
+ * {@value #LIBRARY} native library (see {@code src/main/native/inotify.c}).
+ * The library is loaded on first use; if it cannot be found, or the platform
+ * is not Linux, {@link #isAvailable()} returns false.
+ *
+ * @author Will Faithfull
+ *
+ */
+final class InotifyNative {
+
+	static final String LIBRARY = "treespy-inotify";
+
+	static final int IN_MODIFY = 0x00000002;
+	static final int IN_ATTRIB = 0x00000004;
+	static final int IN_CLOSE_WRITE = 0x00000008;
+	static final int IN_MOVED_FROM = 0x00000040;
+	static final int IN_MOVED_TO = 0x00000080;
+	static final int IN_CREATE = 0x00000100;
+	static final int IN_DELETE = 0x00000200;
+	static final int IN_DELETE_SELF = 0x00000400;
+	static final int IN_MOVE_SELF = 0x00000800;
+	static final int IN_Q_OVERFLOW = 0x00004000;
+	static final int IN_IGNORED = 0x00008000;
+	static final int IN_ONLYDIR = 0x01000000;
+	static final int IN_EXCL_UNLINK = 0x04000000;
+
+	private static final boolean AVAILABLE = load();
+
+	private InotifyNative() {
+	}
+
+	private static boolean load() {
+		if (!System.getProperty("os.name", "").toLowerCase().startsWith("linux"))
+			return false;
+		try {
+			System.loadLibrary(LIBRARY);
+			return true;
+		} catch (UnsatisfiedLinkError ex) {
+			return false;
+		} catch (SecurityException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return True if the native library was loaded.
+	 */
+	static boolean isAvailable() {
+		return AVAILABLE;
+	}
+
+	/**
+	 * Creates an inotify instance.
+	 *
+	 * @return The file descriptor of the instance.
+	 * @throws IOException
+	 *             If inotify_init1 fails.
+	 */
+	static native int init() throws IOException;
+
+	/**
+	 * Creates an eventfd with which to wake a thread waiting in
+	 * {@link #read(int, int, ByteBuffer, int)}.
+	 *
+	 * @return The file descriptor of the eventfd.
+	 * @throws IOException
+	 *             If eventfd fails.
+	 */
+	static native int initWakeup() throws IOException;
+
+	/**
+	 * Wakes the thread waiting in {@link #read(int, int, ByteBuffer, int)}, or
+	 * the next to wait.
+	 */
+	static native void wakeup(int wakeFd);
+
+	/**
+	 * Adds or updates a watch.
+	 *
+	 * @return The watch descriptor.
+	 * @throws IOException
+	 *             If inotify_add_watch fails.
+	 */
+	static native int addWatch(int fd, String path, int mask) throws IOException;
+
+	/**
+	 * Removes a watch. The kernel follows up with an IN_IGNORED event.
+	 */
+	static native void removeWatch(int fd, int wd);
+
+	/**
+	 * Waits up to the specified time for events, and reads as many as fit
+	 * into the buffer.
+	 *
+	 * @param wakeFd
+	 *            An eventfd from {@link #initWakeup()}, which ends the wait.
+	 * @param buffer
+	 *            A direct buffer.
+	 * @param timeoutMillis
+	 *            The longest wait, or -1 to wait until events or a wakeup.
+	 * @return The number of bytes read, or 0 if the wait timed out or was
+	 *         woken.
+	 * @throws IOException
+	 *             If the read fails.
+	 */
+	static native int read(int fd, int wakeFd, ByteBuffer buffer, int timeoutMillis) throws IOException;
+
+	/**
+	 * Closes a file descriptor: the inotify instance, removing all of its
+	 * watches, or an eventfd.
+	 */
+	static native void close(int fd);
+}
@@ -0,0 +1,44 @@
+package com.sourcepulp.treespy.inotify;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.Set;
+
+import com.sourcepulp.treespy.jse7.AbstractWatchKey;
+
+/**
+ * WatchKey of a directory watched by an {@link InotifyWatchService}.
+ *
+ * @author Will Faithfull
+ *
+ */
+class InotifyWatchKey extends AbstractWatchKey {
+
+	private final InotifyWatchService service;
+	private final int wd;
+
+	InotifyWatchKey(InotifyWatchService service, Path directory, Set<WatchEvent.Kind<?>> kinds, int wd) {
+		super(directory, kinds);
+		this.service = service;
+		this.wd = wd;
+	}
+
+	int getDescriptor() {
+		return wd;
+	}
+
+	@Override
+	protected void enqueue() {
+		service.enqueue(this);
+	}
+
+	@Override
+	protected boolean isOpen() {
+		return service.isOpen();
+	}
+
+	@Override
+	protected void cancelled() {
+		service.cancelled(this);
+	}
+}
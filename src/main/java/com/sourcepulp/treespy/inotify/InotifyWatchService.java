@@ -0,0 +1,316 @@
+package com.sourcepulp.treespy.inotify;
+
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_ATTRIB;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_CREATE;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_DELETE;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_DELETE_SELF;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_EXCL_UNLINK;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_IGNORED;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_MODIFY;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_MOVED_FROM;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_MOVED_TO;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_ONLYDIR;
+import static com.sourcepulp.treespy.inotify.InotifyNative.IN_Q_OVERFLOW;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sourcepulp.treespy.TreeSpy;
+import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+import com.sourcepulp.treespy.jse7.DirectoryRegistrar;
+
+/**
+ * A WatchService which talks to Linux inotify directly, through a single file
+ * descriptor read by a single thread.
+ *
+ * Events are read in bulk into one reusable direct buffer and decoded in
+ * place, so that reading and routing an event allocates nothing; objects are
+ * only made for events which a key has asked for. Watch descriptors are mapped
+ * to keys by a primitive hash table rather than a map of boxed integers.
+ *
+ * Unlike the JDK's WatchService, the two halves of a rename carry the inotify
+ * cookie which pairs them (see {@link InotifyEvent}), and a kernel queue
+ * overflow is reported as an OVERFLOW on every key, exactly when it happens.
+ *
+ * Requires the {@value InotifyNative#LIBRARY} native library; check
+ * {@link #isAvailable()} before constructing one.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class InotifyWatchService implements WatchService, DirectoryRegistrar {
+
+	private static final Logger log = LoggerFactory.getLogger(TreeSpy.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int NAME_MAX = 4096;
+
+	private final int fd;
+	private final int wakeFd;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+	private final byte[] name = new byte[NAME_MAX];
+
+	private final WatchDescriptorTable keys = new WatchDescriptorTable();
+	private final BlockingQueue<WatchKey> signalled = new LinkedBlockingQueue<WatchKey>();
+	private final InotifyWatchKey closeSentinel;
+
+	private volatile boolean closed = false;
+	// Set by the reader as it closes the descriptors, holding the lock on
+	// the table of keys, which every other use of them holds too.
+	private boolean descriptorsClosed = false;
+
+	/**
+	 * @return True if inotify can be used on this platform.
+	 */
+	public static boolean isAvailable() {
+		return InotifyNative.isAvailable();
+	}
+
+	/**
+	 * Creates an inotify instance and starts the thread which reads it.
+	 *
+	 * @throws IOException
+	 *             If inotify is not available, or the instance cannot be
+	 *             created.
+	 */
+	public InotifyWatchService() throws IOException {
+		if (!isAvailable())
+			throw new IOException(String.format("inotify is not available (%s library not found)",
+					InotifyNative.LIBRARY));
+		this.fd = InotifyNative.init();
+		try {
+			this.wakeFd = InotifyNative.initWakeup();
+		} catch (IOException ex) {
+			InotifyNative.close(fd);
+			throw ex;
+		}
+		this.closeSentinel = new InotifyWatchKey(this, null, new HashSet<WatchEvent.Kind<?>>(), -1);
+
+		new TreeSpyThreadFactory().newThread(new Reader()).start();
+	}
+
+	@Override
+	public WatchKey register(Path directory, WatchEvent.Kind<?>... kinds) throws IOException {
+		checkOpen();
+		Set<WatchEvent.Kind<?>> kindSet = new HashSet<WatchEvent.Kind<?>>(Arrays.asList(kinds));
+
+		int mask = IN_ONLYDIR | IN_EXCL_UNLINK | IN_DELETE_SELF;
+		if (kindSet.contains(ENTRY_CREATE))
+			mask |= IN_CREATE | IN_MOVED_TO;
+		if (kindSet.contains(ENTRY_DELETE))
+			mask |= IN_DELETE | IN_MOVED_FROM;
+		if (kindSet.contains(ENTRY_MODIFY))
+			mask |= IN_MODIFY | IN_ATTRIB;
+
+		// The reader routes events holding the same lock, so the directory's
+		// first events cannot be routed before its key is in the table.
+		synchronized (keys) {
+			if (descriptorsClosed)
+				throw new ClosedWatchServiceException();
+			int wd = InotifyNative.addWatch(fd, directory.toString(), mask);
+			InotifyWatchKey key = keys.get(wd);
+			if (key != null && key.isValid()) {
+				key.setKinds(kindSet);
+				return key;
+			}
+			key = new InotifyWatchKey(this, directory, kindSet, wd);
+			keys.put(wd, key);
+			return key;
+		}
+	}
+
+	/**
+	 * Watches are on inodes, so they follow a directory which is renamed.
+	 */
+	@Override
+	public boolean followsRenames() {
+		return true;
+	}
+
+	/**
+	 * @return The number of directories being watched.
+	 */
+	public int getDirectoryCount() {
+		return keys.size();
+	}
+
+	@Override
+	public WatchKey poll() {
+		checkOpen();
+		return checkKey(signalled.poll());
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		checkOpen();
+		return checkKey(signalled.poll(timeout, unit));
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		checkOpen();
+		return checkKey(signalled.take());
+	}
+
+	/**
+	 * Closes the service. The reader is woken, and closes the inotify
+	 * descriptor, and with it every watch.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		signalled.clear();
+		signalled.offer(closeSentinel);
+		synchronized (keys) {
+			if (!descriptorsClosed)
+				InotifyNative.wakeup(wakeFd);
+		}
+	}
+
+	boolean isOpen() {
+		return !closed;
+	}
+
+	void enqueue(InotifyWatchKey key) {
+		if (!closed)
+			signalled.offer(key);
+	}
+
+	void cancelled(InotifyWatchKey key) {
+		// Under the same lock as the reader's close, so that a descriptor
+		// number reused since cannot be written to.
+		synchronized (keys) {
+			if (keys.remove(key.getDescriptor()) != null && !descriptorsClosed)
+				InotifyNative.removeWatch(fd, key.getDescriptor());
+		}
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new ClosedWatchServiceException();
+	}
+
+	private WatchKey checkKey(WatchKey key) {
+		if (key == closeSentinel) {
+			// Leave the sentinel for any other waiting thread.
+			signalled.offer(key);
+			throw new ClosedWatchServiceException();
+		}
+		return key;
+	}
+
+	/**
+	 * Routes decoded events to their keys. Only called from the reader
+	 * thread, holding the lock on the table of keys.
+	 */
+	private final InotifyEventDecoder.Handler router = new InotifyEventDecoder.Handler() {
+
+		@Override
+		public void onEvent(int wd, int mask, int cookie, ByteBuffer events, int nameOffset, int nameLength) {
+			if ((mask & IN_Q_OVERFLOW) != 0) {
+				log.warn("inotify queue overflowed; events have been lost.");
+				for (InotifyWatchKey key : keys.values())
+					key.overflow();
+				return;
+			}
+
+			InotifyWatchKey key = keys.get(wd);
+			if (key == null)
+				return;
+
+			if ((mask & IN_IGNORED) != 0) {
+				keys.remove(wd);
+				key.invalidate();
+				return;
+			}
+
+			WatchEvent.Kind<Path> kind;
+			if ((mask & (IN_CREATE | IN_MOVED_TO)) != 0)
+				kind = ENTRY_CREATE;
+			else if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0)
+				kind = ENTRY_DELETE;
+			else if ((mask & (IN_MODIFY | IN_ATTRIB)) != 0)
+				kind = ENTRY_MODIFY;
+			else
+				return;
+
+			if (nameLength == 0 || !key.wants(kind))
+				return;
+
+			for (int i = 0; i < nameLength && i < NAME_MAX; i++)
+				name[i] = events.get(nameOffset + i);
+			Path context = key.getDirectory().getFileSystem()
+					.getPath(new String(name, 0, Math.min(nameLength, NAME_MAX), StandardCharsets.UTF_8));
+
+			int moveCookie = (mask & (IN_MOVED_FROM | IN_MOVED_TO)) != 0 ? cookie : 0;
+			key.offer(new InotifyEvent(kind, context, moveCookie));
+		}
+	};
+
+	/**
+	 * Reads the inotify descriptor until the service is closed, then closes
+	 * it. Waits for events without a timeout, as closing the service wakes
+	 * it.
+	 */
+	private class Reader implements Runnable {
+
+		public void run() {
+			try {
+				while (!closed) {
+					int read;
+					try {
+						read = InotifyNative.read(fd, wakeFd, buffer, -1);
+					} catch (IOException ex) {
+						if (closed)
+							break;
+						StringWriter sw = new StringWriter();
+						PrintWriter pw = new PrintWriter(sw);
+						ex.printStackTrace(pw);
+						log.error(sw.toString());
+
+						// Nothing more can be read, so close the service and let
+						// its consumer find out.
+						closed = true;
+						signalled.offer(closeSentinel);
+						break;
+					}
+					if (read > 0) {
+						// Once per batch rather than once per event.
+						synchronized (keys) {
+							InotifyEventDecoder.decode(buffer, read, router);
+						}
+					}
+				}
+			} finally {
+				synchronized (keys) {
+					descriptorsClosed = true;
+					InotifyNative.close(fd);
+					InotifyNative.close(wakeFd);
+				}
+			}
+		}
+	}
+}
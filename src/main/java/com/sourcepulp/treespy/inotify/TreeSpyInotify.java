@@ -0,0 +1,44 @@
+package com.sourcepulp.treespy.inotify;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import com.sourcepulp.treespy.jse7.TreeSpyJSE7StdLib;
+
+/**
+ * TreeSpy implementation which reads Linux inotify directly, through an
+ * {@link InotifyWatchService}. Listeners, globs and callbacks behave exactly
+ * as for {@link TreeSpyJSE7StdLib}; only the source of events differs.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class TreeSpyInotify extends TreeSpyJSE7StdLib {
+
+	/**
+	 * Constructs an inotify spy using the provided executor to orchestrate the
+	 * background task.
+	 * 
+	 * @param daemonExecutor
+	 * @param watcher
+	 * @throws IOException
+	 */
+	public TreeSpyInotify(Executor daemonExecutor, InotifyWatchService watcher) throws IOException {
+		super(daemonExecutor, watcher);
+	}
+
+	/**
+	 * Constructs an inotify spy using the provided executor to orchestrate the
+	 * background task, and the provided ExecutorService to execute callbacks.
+	 * 
+	 * @param daemonExecutor
+	 * @param watcher
+	 * @param callbackExecutorService
+	 * @throws IOException
+	 */
+	public TreeSpyInotify(Executor daemonExecutor, InotifyWatchService watcher,
+			ExecutorService callbackExecutorService) throws IOException {
+		super(daemonExecutor, watcher, callbackExecutorService);
+	}
+}
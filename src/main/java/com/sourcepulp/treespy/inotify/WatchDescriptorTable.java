@@ -0,0 +1,108 @@
+package com.sourcepulp.treespy.inotify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Map from watch descriptors to keys, with open addressing over primitive
+ * arrays so that looking up the key of an event allocates nothing. Watch
+ * descriptors grow without bound as directories come and go, so they cannot
+ * simply index an array.
+ *
+ * @author Will Faithfull
+ *
+ */
+final class WatchDescriptorTable {
+
+	private static final int FREE = -1;
+
+	private int[] descriptors = newDescriptors(64);
+	private InotifyWatchKey[] keys = new InotifyWatchKey[64];
+	private int size;
+
+	synchronized InotifyWatchKey get(int wd) {
+		int mask = descriptors.length - 1;
+		for (int i = mix(wd) & mask;; i = (i + 1) & mask) {
+			if (descriptors[i] == wd)
+				return keys[i];
+			if (descriptors[i] == FREE)
+				return null;
+		}
+	}
+
+	synchronized void put(int wd, InotifyWatchKey key) {
+		if ((size + 1) * 2 > descriptors.length)
+			resize(descriptors.length * 2);
+
+		int mask = descriptors.length - 1;
+		int i = mix(wd) & mask;
+		while (descriptors[i] != FREE && descriptors[i] != wd)
+			i = (i + 1) & mask;
+		if (descriptors[i] == FREE)
+			size++;
+		descriptors[i] = wd;
+		keys[i] = key;
+	}
+
+	synchronized InotifyWatchKey remove(int wd) {
+		int mask = descriptors.length - 1;
+		int i = mix(wd) & mask;
+		while (descriptors[i] != wd) {
+			if (descriptors[i] == FREE)
+				return null;
+			i = (i + 1) & mask;
+		}
+		InotifyWatchKey removed = keys[i];
+
+		// Shift later entries of the probe sequence back over the gap.
+		int gap = i;
+		for (int j = (gap + 1) & mask; descriptors[j] != FREE; j = (j + 1) & mask) {
+			int home = mix(descriptors[j]) & mask;
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				descriptors[gap] = descriptors[j];
+				keys[gap] = keys[j];
+				gap = j;
+			}
+		}
+		descriptors[gap] = FREE;
+		keys[gap] = null;
+		size--;
+		return removed;
+	}
+
+	synchronized List<InotifyWatchKey> values() {
+		List<InotifyWatchKey> values = new ArrayList<InotifyWatchKey>(size);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null)
+				values.add(keys[i]);
+		}
+		return values;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	private void resize(int capacity) {
+		int[] oldDescriptors = descriptors;
+		InotifyWatchKey[] oldKeys = keys;
+		descriptors = newDescriptors(capacity);
+		keys = new InotifyWatchKey[capacity];
+		size = 0;
+		for (int i = 0; i < oldDescriptors.length; i++) {
+			if (oldDescriptors[i] != FREE)
+				put(oldDescriptors[i], oldKeys[i]);
+		}
+	}
+
+	private static int[] newDescriptors(int capacity) {
+		int[] descriptors = new int[capacity];
+		Arrays.fill(descriptors, FREE);
+		return descriptors;
+	}
+
+	private static int mix(int wd) {
+		return wd * 0x9E3779B9 >>> 7 ^ wd;
+	}
+}
@@ -0,0 +1,211 @@
+package com.sourcepulp.treespy.jse7;
+
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Base for the WatchKeys of WatchServices which are not provided by the
+ * filesystem. Follows the same protocol as the filesystem's own keys: a key
+ * is queued once when signalled, and queued again on reset if more events
+ * arrived in the meantime. Once a key holds too many events, further events
+ * are replaced by a single OVERFLOW.
+ *
+ * @author Will Faithfull
+ *
+ */
+public abstract class AbstractWatchKey implements WatchKey {
+
+	public static final int MAX_EVENTS = 512;
+
+	private final Path directory;
+
+	private volatile Set<WatchEvent.Kind<?>> kinds;
+	private volatile boolean valid = true;
+
+	private List<WatchEvent<?>> events = new ArrayList<WatchEvent<?>>();
+	private boolean signalled = false;
+
+	protected AbstractWatchKey(Path directory, Set<WatchEvent.Kind<?>> kinds) {
+		this.directory = directory;
+		this.kinds = kinds;
+	}
+
+	/**
+	 * Queues the key with its WatchService, to be returned by poll or take.
+	 */
+	protected abstract void enqueue();
+
+	/**
+	 * @return True if the key's WatchService is still open.
+	 */
+	protected abstract boolean isOpen();
+
+	/**
+	 * Called once the key has been cancelled, so that the WatchService can
+	 * stop watching the directory.
+	 */
+	protected abstract void cancelled();
+
+	/**
+	 * @return The watched directory.
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @param kinds
+	 *            The kinds of event the key now reports.
+	 */
+	public void setKinds(Set<WatchEvent.Kind<?>> kinds) {
+		this.kinds = kinds;
+	}
+
+	/**
+	 * @param kind
+	 *            A kind of event.
+	 * @return True if the key reports events of that kind.
+	 */
+	public boolean wants(WatchEvent.Kind<?> kind) {
+		return kinds.contains(kind);
+	}
+
+	/**
+	 * Adds an event to the key, signalling it if it was not already. Events of
+	 * kinds the key was not registered for are ignored.
+	 *
+	 * @param kind
+	 *            The kind of event.
+	 * @param context
+	 *            The name of the entry, relative to the directory.
+	 */
+	public void offer(WatchEvent.Kind<Path> kind, Path context) {
+		if (wants(kind))
+			offer(new Event<Path>(kind, context));
+	}
+
+	/**
+	 * Adds an event to the key, signalling it if it was not already.
+	 *
+	 * @param event
+	 *            The event.
+	 */
+	public synchronized void offer(WatchEvent<?> event) {
+		int size = events.size();
+		if (size >= MAX_EVENTS) {
+			overflow();
+			return;
+		}
+		events.add(event);
+		signal();
+	}
+
+	/**
+	 * Signals that events for the key have been lost.
+	 */
+	public synchronized void overflow() {
+		int size = events.size();
+		if (size == 0 || events.get(size - 1).kind() != OVERFLOW)
+			events.add(new Event<Object>(OVERFLOW, null));
+		signal();
+	}
+
+	/**
+	 * Invalidates the key because its directory has gone, and signals it so
+	 * that the consumer finds out when it resets the key.
+	 */
+	public synchronized void invalidate() {
+		valid = false;
+		signal();
+	}
+
+	private void signal() {
+		if (!signalled) {
+			signalled = true;
+			enqueue();
+		}
+	}
+
+	@Override
+	public boolean isValid() {
+		return valid && isOpen();
+	}
+
+	@Override
+	public synchronized List<WatchEvent<?>> pollEvents() {
+		if (events.isEmpty())
+			return Collections.emptyList();
+		List<WatchEvent<?>> drained = events;
+		events = new ArrayList<WatchEvent<?>>();
+		return drained;
+	}
+
+	@Override
+	public synchronized boolean reset() {
+		if (!isValid())
+			return false;
+		if (signalled) {
+			if (events.isEmpty())
+				signalled = false;
+			else
+				enqueue();
+		}
+		return true;
+	}
+
+	@Override
+	public void cancel() {
+		if (valid) {
+			valid = false;
+			cancelled();
+		}
+	}
+
+	@Override
+	public Watchable watchable() {
+		return directory;
+	}
+
+	/**
+	 * An event with a count of one, since events are never merged.
+	 */
+	protected static class Event<T> implements WatchEvent<T> {
+
+		private final WatchEvent.Kind<T> kind;
+		private final T context;
+
+		@SuppressWarnings("unchecked")
+		protected Event(WatchEvent.Kind<?> kind, T context) {
+			this.kind = (WatchEvent.Kind<T>) kind;
+			this.context = context;
+		}
+
+		@Override
+		public WatchEvent.Kind<T> kind() {
+			return kind;
+		}
+
+		@Override
+		public int count() {
+			return 1;
+		}
+
+		@Override
+		public T context() {
+			return context;
+		}
+
+		@Override
+		public String toString() {
+			return kind.name() + " " + context;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpy;
+import com.sourcepulp.treespy.TreeSpyListener;
+import com.sourcepulp.treespy.concurrent.ListenerDispatcher;
+import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+import com.sourcepulp.treespy.glob.GlobIndex;
+
+/**
+ * Holds back MODIFY events which left a file's content as it was, for the
+ * listeners which ask for it. Files are fingerprinted on a small, bounded
+ * pool of hashing threads, never on the thread which polls the WatchService.
+ *
+ * The files of a batch are hashed in parallel, each as a task of its own;
+ * only the changes to any one path are examined in the order they arrive.
+ * Each filtering listener receives its batches in order once they have been
+ * examined, on a delivery thread of the filter's own, never on the watcher's.
+ * Listeners which do not filter are not held up. Should the hashing threads
+ * fall far enough behind to fill their queue, the thread handing over a file
+ * hashes it itself, slowing the watcher rather than dropping anything. A
+ * batch which fails to be examined or delivered, even with an Error, holds
+ * up nothing after it.
+ *
+ * @author Will Faithfull
+ *
+ */
+class ContentFilter {
+
+	private static final Logger log = LoggerFactory.getLogger(TreeSpy.class);
+
+	private static final int QUEUE_CAPACITY = 1024;
+
+	private final FingerprintCache fingerprints;
+	private final ThreadPoolExecutor hashers;
+	private final ExecutorService deliverer;
+	private final ListenerDispatcher.Delivery delivery;
+
+	// Listeners with no globs here have every MODIFY checked.
+	private final GlobIndex globs = new GlobIndex();
+	private final Set<TreeSpyListener> listeners = Collections
+			.newSetFromMap(new ConcurrentHashMap<TreeSpyListener, Boolean>());
+
+	// The last task examining each path, while it runs.
+	private final ConcurrentMap<Path, CompletableFuture<Void>> examining = new ConcurrentHashMap<Path, CompletableFuture<Void>>();
+	private final ConcurrentMap<TreeSpyListener, CompletableFuture<Void>> delivered = new ConcurrentHashMap<TreeSpyListener, CompletableFuture<Void>>();
+
+	/**
+	 * @param threads
+	 *            The number of hashing threads.
+	 * @param maxCacheBytes
+	 *            Roughly how much memory the fingerprints may take.
+	 * @param delivery
+	 *            Hands the surviving changes to a listener.
+	 */
+	ContentFilter(int threads, long maxCacheBytes, ListenerDispatcher.Delivery delivery) {
+		this.fingerprints = new FingerprintCache(maxCacheBytes);
+		this.hashers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new TreeSpyThreadFactory(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		this.deliverer = Executors.newSingleThreadExecutor(new TreeSpyThreadFactory());
+		this.delivery = delivery;
+	}
+
+	/**
+	 * Filters the MODIFY events of a listener.
+	 *
+	 * @param listener
+	 *            The listener.
+	 * @param globs
+	 *            The file name globs whose MODIFY events are checked, or none
+	 *            to check every file.
+	 */
+	void add(TreeSpyListener listener, String... globs) {
+		for (String glob : globs) {
+			this.globs.add(listener, glob);
+		}
+		listeners.add(listener);
+	}
+
+	/**
+	 * Stops filtering the MODIFY events of a listener.
+	 *
+	 * @param listener
+	 *            The listener.
+	 */
+	void remove(TreeSpyListener listener) {
+		listeners.remove(listener);
+		globs.remove(listener);
+		delivered.remove(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            A listener.
+	 * @return True if the listener's MODIFY events are filtered.
+	 */
+	boolean filters(TreeSpyListener listener) {
+		return listeners.contains(listener);
+	}
+
+	/**
+	 * @return The fingerprints of file content.
+	 */
+	FingerprintCache getFingerprints() {
+		return fingerprints;
+	}
+
+	/**
+	 * Queues a batch of changes to be examined. Modified files which any
+	 * filtering listener checks are fingerprinted, created files are
+	 * fingerprinted so that their first MODIFY can be judged, and deleted
+	 * files are forgotten.
+	 *
+	 * @param changes
+	 *            The batch of changes.
+	 * @return The MODIFY events found to have left their file's content as it
+	 *         was.
+	 */
+	CompletableFuture<Set<Change>> examine(List<Change> changes) {
+		Map<Path, List<Change>> byPath = new LinkedHashMap<Path, List<Change>>();
+		for (Change change : changes) {
+			Events event = change.getEvent();
+			if (event == Events.OVERFLOW || !isChecked(event == Events.MOVE ? change.getSource() : change.getPath()))
+				continue;
+			List<Change> forPath = byPath.get(change.getPath());
+			if (forPath == null) {
+				forPath = new ArrayList<Change>(1);
+				byPath.put(change.getPath(), forPath);
+			}
+			forPath.add(change);
+		}
+		if (byPath.isEmpty())
+			return CompletableFuture.completedFuture(Collections.<Change> emptySet());
+
+		final Set<Change> unchanged = Collections
+				.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Change, Boolean>()));
+		CompletableFuture<?>[] tasks = new CompletableFuture<?>[byPath.size()];
+		int i = 0;
+		for (Map.Entry<Path, List<Change>> entry : byPath.entrySet()) {
+			tasks[i++] = examine(entry.getKey(), entry.getValue(), unchanged);
+		}
+		return CompletableFuture.allOf(tasks).handle(new BiFunction<Void, Throwable, Set<Change>>() {
+			@Override
+			public Set<Change> apply(Void ignored, Throwable ex) {
+				// Whatever was found, even if a file failed.
+				return unchanged;
+			}
+		});
+	}
+
+	/**
+	 * Queues the changes to one path to be examined after any already queued
+	 * for it.
+	 */
+	private CompletableFuture<Void> examine(final Path path, final List<Change> changes, final Set<Change> unchanged) {
+		CompletableFuture<Void> previous = examining.get(path);
+		if (previous == null)
+			previous = CompletableFuture.completedFuture(null);
+
+		final CompletableFuture<Void> task = previous.handle(RECOVER).thenRunAsync(new Runnable() {
+			@Override
+			public void run() {
+				fingerprint(changes, unchanged);
+			}
+		}, hashers);
+		examining.put(path, task);
+		task.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void ignored, Throwable ex) {
+				examining.remove(path, task);
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * Lets a chain of tasks carry on past one which failed, logging why.
+	 */
+	private static final BiFunction<Void, Throwable, Void> RECOVER = new BiFunction<Void, Throwable, Void>() {
+		@Override
+		public Void apply(Void ignored, Throwable ex) {
+			if (ex != null)
+				log.error("Content filter task failed", ex);
+			return null;
+		}
+	};
+
+	/**
+	 * Delivers a listener's changes once their batch has been examined, after
+	 * any batches delivered to it before.
+	 *
+	 * @param listener
+	 *            The listener.
+	 * @param changes
+	 *            The changes the listener's globs allow.
+	 * @param unchanged
+	 *            The MODIFY events which left their file's content as it was.
+	 */
+	void deliver(final TreeSpyListener listener, final List<Change> changes,
+			CompletableFuture<Set<Change>> unchanged) {
+		CompletableFuture<Void> previous = delivered.get(listener);
+		if (previous == null)
+			previous = CompletableFuture.completedFuture(null);
+
+		delivered.put(listener, previous.handle(RECOVER).thenCombineAsync(unchanged, new BiFunction<Void, Set<Change>, Void>() {
+			@Override
+			public Void apply(Void ignored, Set<Change> unchanged) {
+				List<Change> surviving = unchanged.isEmpty() ? changes : filter(listener, changes, unchanged);
+				try {
+					if (!surviving.isEmpty())
+						delivery.deliver(listener, surviving);
+				} catch (RuntimeException ex) {
+					log.error("Listener threw while being notified of changes", ex);
+				}
+				return null;
+			}
+		}, deliverer));
+	}
+
+	/**
+	 * Stops the hashing and delivery threads.
+	 */
+	void shutdown() {
+		hashers.shutdownNow();
+		deliverer.shutdownNow();
+	}
+
+	private boolean isChecked(Path path) {
+		Path name = path.getFileName();
+		for (TreeSpyListener listener : listeners) {
+			if (globs.matches(listener, name))
+				return true;
+		}
+		return false;
+	}
+
+	private void fingerprint(List<Change> changes, Set<Change> unchanged) {
+		for (Change change : changes) {
+			try {
+				switch (change.getEvent()) {
+				case DELETE:
+					fingerprints.forget(change.getPath());
+					break;
+				case MOVE:
+					fingerprints.forget(change.getSource());
+					fingerprints.contentChanged(change.getPath());
+					break;
+				case CREATE:
+					fingerprints.contentChanged(change.getPath());
+					break;
+				default:
+					if (!fingerprints.contentChanged(change.getPath()))
+						unchanged.add(change);
+				}
+			} catch (RuntimeException ex) {
+				log.warn(String.format("Could not fingerprint %s: %s", change.getPath().toString(), ex.getMessage()));
+			}
+		}
+	}
+
+	private List<Change> filter(TreeSpyListener listener, List<Change> changes, Set<Change> unchanged) {
+		List<Change> surviving = new ArrayList<Change>(changes.size());
+		for (Change change : changes) {
+			if (unchanged.contains(change) && globs.matches(listener, change.getPath().getFileName()))
+				continue;
+			surviving.add(change);
+		}
+		return surviving;
+	}
+}
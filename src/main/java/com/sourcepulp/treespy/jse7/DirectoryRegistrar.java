@@ -0,0 +1,44 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * A WatchService which registers directories itself, rather than through
+ * {@link Path#register(WatchService, WatchEvent.Kind...)}. The filesystem
+ * provider only accepts its own WatchService there, so a WatchService which
+ * is not provided by the filesystem implements this instead.
+ *
+ * @author Will Faithfull
+ *
+ */
+public interface DirectoryRegistrar {
+
+	/**
+	 * Registers a directory with this WatchService.
+	 *
+	 * @param directory
+	 *            The directory to watch.
+	 * @param kinds
+	 *            The kinds of event to watch for.
+	 * @return The WatchKey for the directory. Registering a directory twice
+	 *         returns the same key.
+	 * @throws IOException
+	 *             If the directory cannot be read.
+	 */
+	WatchKey register(Path directory, WatchEvent.Kind<?>... kinds) throws IOException;
+
+	/**
+	 * Indicates whether a key keeps watching its directory after the directory
+	 * is renamed, as keys which watch an inode do. Keys which watch a path
+	 * must be registered again at the new path.
+	 *
+	 * @return True if keys follow their directory when it is renamed.
+	 */
+	default boolean followsRenames() {
+		return false;
+	}
+}
@@ -0,0 +1,120 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sourcepulp.treespy.Events;
+
+/**
+ * Merges bursts of events for the same path into their net effect, holding
+ * each path back until it has been quiet for a fixed period.
+ *
+ * Pending paths are kept in the order they were last touched, so the paths
+ * which are due to be flushed are always at the head of the map.
+ *
+ * @author Will Faithfull
+ *
+ */
+class EventCoalescer {
+
+	private final long quietNanos;
+
+	private final LinkedHashMap<Path, Pending> pending = new LinkedHashMap<Path, Pending>();
+
+	/**
+	 * An event waiting for its path to go quiet.
+	 */
+	static class Pending {
+
+		final Path directory;
+		final Path path;
+		final long firstSeen;
+		Events event;
+		long lastSeen;
+
+		Pending(Path directory, Path path, long firstSeen) {
+			this.directory = directory;
+			this.path = path;
+			this.firstSeen = firstSeen;
+		}
+	}
+
+	/**
+	 * @param quietNanos
+	 *            How long a path must go without events before it is flushed.
+	 */
+	EventCoalescer(long quietNanos) {
+		this.quietNanos = quietNanos;
+	}
+
+	/**
+	 * Merges the specified event into any event already pending for the path.
+	 *
+	 * @param directory
+	 *            The watched directory the event was signalled on.
+	 * @param path
+	 *            The path the event refers to.
+	 * @param event
+	 *            The event.
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 */
+	synchronized void offer(Path directory, Path path, Events event, long now) {
+		Pending entry = pending.remove(path);
+		if (entry == null)
+			entry = new Pending(directory, path, now);
+
+		entry.event = Events.coalesce(entry.event, event);
+		entry.lastSeen = now;
+
+		// Cancelled events are simply dropped; re-inserting moves the entry to
+		// the tail, keeping the map ordered by last activity.
+		if (entry.event != null)
+			pending.put(path, entry);
+	}
+
+	/**
+	 * Removes and returns every pending event whose path has been quiet for at
+	 * least the quiet period.
+	 *
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 * @return The events due for delivery, oldest first.
+	 */
+	synchronized List<Pending> drain(long now) {
+		List<Pending> due = new ArrayList<Pending>();
+		Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Pending entry = it.next().getValue();
+			if (now - entry.lastSeen < quietNanos)
+				break;
+			due.add(entry);
+			it.remove();
+		}
+		return due;
+	}
+
+	/**
+	 * @return True if no path is pending.
+	 */
+	synchronized boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 * @return Nanoseconds until the next pending path goes quiet, or the whole
+	 *         quiet period if nothing is pending.
+	 */
+	synchronized long nanosUntilNextFlush(long now) {
+		if (pending.isEmpty())
+			return quietNanos;
+		Pending head = pending.values().iterator().next();
+		return Math.max(0, head.lastSeen + quietNanos - now);
+	}
+}
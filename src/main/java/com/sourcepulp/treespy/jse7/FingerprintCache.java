@@ -0,0 +1,187 @@
+package com.sourcepulp.treespy.jse7;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers a fingerprint of the content of each file it is shown, so that a
+ * MODIFY which left the content as it was can be recognised. The size and
+ * modification time are checked first; the content is only hashed, through a
+ * memory map, when they differ.
+ *
+ * A modification time is only trusted if it was already some way in the past
+ * when the fingerprint was taken. Otherwise a second write within the
+ * filesystem's timestamp granularity, of the same length, would go unseen.
+ *
+ * Fingerprints are evicted least recently used first once their estimated
+ * size exceeds the limit.
+ *
+ * @author Will Faithfull
+ *
+ */
+class FingerprintCache {
+
+	private static final long CHUNK = 1L << 30;
+	private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+	private static final int ENTRY_BYTES = 120;
+
+	private final long maxBytes;
+	private long bytes;
+
+	private final LinkedHashMap<Path, Fingerprint> entries = new LinkedHashMap<Path, Fingerprint>(16, 0.75f, true);
+
+	private static final class Fingerprint {
+
+		final long size;
+		final long modified;
+		final long hash;
+		final boolean trusted;
+
+		Fingerprint(long size, long modified, long hash, boolean trusted) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.trusted = trusted;
+		}
+	}
+
+	/**
+	 * @param maxBytes
+	 *            Roughly how much memory the fingerprints may take.
+	 */
+	FingerprintCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Fingerprints a file, and compares the fingerprint with the last one
+	 * taken.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return True if the content may have changed since the file was last
+	 *         fingerprinted, or if it never was.
+	 */
+	boolean contentChanged(Path file) {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(file, BasicFileAttributes.class, NOFOLLOW_LINKS);
+		} catch (IOException ex) {
+			forget(file);
+			return true;
+		}
+		if (!attrs.isRegularFile())
+			return true;
+
+		long size = attrs.size();
+		long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+		Fingerprint previous;
+		synchronized (this) {
+			previous = entries.get(file);
+		}
+		if (previous != null && previous.trusted && previous.size == size && previous.modified == modified)
+			return false;
+
+		long hash;
+		try {
+			hash = hash(file, size);
+		} catch (IOException ex) {
+			forget(file);
+			return true;
+		}
+		boolean trusted = System.currentTimeMillis() * 1000000L - modified > RACY_NANOS;
+		put(file, new Fingerprint(size, modified, hash, trusted));
+		return previous == null || previous.size != size || previous.hash != hash;
+	}
+
+	/**
+	 * Forgets the fingerprint of a file.
+	 *
+	 * @param file
+	 *            The file.
+	 */
+	synchronized void forget(Path file) {
+		if (entries.remove(file) != null)
+			bytes -= estimate(file);
+	}
+
+	/**
+	 * @return The number of files fingerprinted.
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The estimated memory held by the fingerprints.
+	 */
+	synchronized long estimatedBytes() {
+		return bytes;
+	}
+
+	private synchronized void put(Path file, Fingerprint fingerprint) {
+		if (entries.put(file, fingerprint) == null)
+			bytes += estimate(file);
+
+		Iterator<Map.Entry<Path, Fingerprint>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			Path evicted = eldest.next().getKey();
+			eldest.remove();
+			bytes -= estimate(evicted);
+		}
+	}
+
+	private static long estimate(Path file) {
+		return ENTRY_BYTES + 2L * file.toString().length();
+	}
+
+	/**
+	 * Hashes the content of a file, a word at a time.
+	 *
+	 * @param file
+	 *            The file.
+	 * @param size
+	 *            The size of the file.
+	 * @return A 64 bit hash of the content.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	static long hash(Path file, long size) throws IOException {
+		long hash = 0x9E3779B97F4A7C15L ^ size;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = Math.min(size, channel.size());
+			for (long position = 0; position < size; position += CHUNK) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(CHUNK, size - position));
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				while (buffer.remaining() >= 8) {
+					hash = mix(hash, buffer.getLong());
+				}
+				long tail = 0;
+				for (int shift = 0; buffer.hasRemaining(); shift += 8) {
+					tail |= (buffer.get() & 0xFFL) << shift;
+				}
+				hash = mix(hash, tail);
+			}
+		}
+		return hash;
+	}
+
+	private static long mix(long hash, long word) {
+		hash ^= word * 0xC2B2AE3D27D4EB4FL;
+		return Long.rotateLeft(hash, 31) * 0x9E3779B97F4A7C15L;
+	}
+}
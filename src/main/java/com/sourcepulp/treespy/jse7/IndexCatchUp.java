@@ -0,0 +1,101 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.snapshot.DirectorySnapshot;
+
+/**
+ * Finds the changes made to a tree while it was not watched, by comparing
+ * each of its directories, as it is registered, with its snapshot in the
+ * persistent index. Each snapshot is taken from the index as it is used, so
+ * that what is left of the index afterwards is only what it holds for other
+ * trees.
+ *
+ * Directories may be compared concurrently, as during parallel walks.
+ *
+ * @author Will Faithfull
+ *
+ */
+class IndexCatchUp {
+
+	private final ConcurrentMap<Path, DirectorySnapshot> restored;
+	private final Path root;
+	private final boolean recursive;
+
+	// Directories created since the index was written.
+	private final Set<Path> unindexed = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+	private final List<Change> missed = Collections.synchronizedList(new ArrayList<Change>());
+
+	/**
+	 * @param restored
+	 *            The snapshots loaded from the index.
+	 * @param root
+	 *            The root of the tree being registered.
+	 * @param recursive
+	 *            Whether the whole tree is being registered.
+	 */
+	IndexCatchUp(ConcurrentMap<Path, DirectorySnapshot> restored, Path root, boolean recursive) {
+		this.restored = restored;
+		this.root = root;
+		this.recursive = recursive;
+	}
+
+	/**
+	 * Compares a directory, as it is now, with its snapshot in the index. A
+	 * directory missing from the index is only reported if its parent was
+	 * indexed without it, in which case all of it is new. Parents must be
+	 * compared before their children.
+	 *
+	 * @param directory
+	 *            The directory.
+	 * @param current
+	 *            A fresh snapshot of the directory.
+	 */
+	void compare(Path directory, DirectorySnapshot current) {
+		DirectorySnapshot previous = restored.remove(directory);
+
+		List<Change> changes;
+		if (previous != null) {
+			changes = previous.diff(current, directory);
+		} else if (unindexed.contains(directory)) {
+			changes = new ArrayList<Change>();
+			for (String name : current.names()) {
+				changes.add(new Change(directory.resolve(name), Events.CREATE));
+			}
+		} else {
+			return;
+		}
+
+		for (Change change : changes) {
+			if (change.getEvent() == Events.CREATE && current.isDirectory(change.getPath().getFileName().toString()))
+				unindexed.add(change.getPath());
+		}
+		missed.addAll(changes);
+	}
+
+	/**
+	 * Forgets whatever the index held for the tree which no longer exists,
+	 * once the tree has been registered.
+	 *
+	 * @return The changes found.
+	 */
+	List<Change> finish() {
+		if (recursive) {
+			for (Path indexed : restored.keySet()) {
+				if (indexed.startsWith(root))
+					restored.remove(indexed);
+			}
+		}
+		synchronized (missed) {
+			return new ArrayList<Change>(missed);
+		}
+	}
+}
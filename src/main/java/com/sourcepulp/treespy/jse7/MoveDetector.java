@@ -0,0 +1,169 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Pairs the DELETE and CREATE halves of a move. A DELETE of an entry whose
+ * inode is known is held back for a short window; if an entry with the same
+ * device and inode is created anywhere in the tree within that window, the
+ * two are the same file, moved.
+ *
+ * Held deletes are kept in the order they arrived, so the ones which are due
+ * to expire are always at the head of the map.
+ *
+ * @author Will Faithfull
+ *
+ */
+class MoveDetector {
+
+	private final long windowNanos;
+
+	private final LinkedHashMap<FileId, PendingDelete> pending = new LinkedHashMap<FileId, PendingDelete>();
+
+	/**
+	 * The device and inode which identify a file.
+	 */
+	private static final class FileId {
+
+		final long device;
+		final long inode;
+
+		FileId(long device, long inode) {
+			this.device = device;
+			this.inode = inode;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof FileId))
+				return false;
+			FileId id = (FileId) other;
+			return device == id.device && inode == id.inode;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (inode ^ (inode >>> 32)) * 31 + (int) (device ^ (device >>> 32));
+		}
+	}
+
+	/**
+	 * A DELETE waiting to be paired with a CREATE.
+	 */
+	static class PendingDelete {
+
+		final Path directory;
+		final Path path;
+		final boolean isDirectory;
+		final long deadline;
+
+		PendingDelete(Path directory, Path path, boolean isDirectory, long deadline) {
+			this.directory = directory;
+			this.path = path;
+			this.isDirectory = isDirectory;
+			this.deadline = deadline;
+		}
+	}
+
+	MoveDetector(long windowNanos) {
+		this.windowNanos = windowNanos;
+	}
+
+	/**
+	 * Holds back a DELETE.
+	 *
+	 * @param directory
+	 *            The watched directory the DELETE was signalled on.
+	 * @param path
+	 *            The deleted path.
+	 * @param device
+	 *            The device the path was on.
+	 * @param inode
+	 *            The inode the path had.
+	 * @param isDirectory
+	 *            Whether the path was a directory.
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 * @return A DELETE already held for the same file, which can no longer be
+	 *         paired, or null.
+	 */
+	synchronized PendingDelete offerDelete(Path directory, Path path, long device, long inode, boolean isDirectory,
+			long now) {
+		FileId id = new FileId(device, inode);
+		// Removed first, so that the new DELETE goes to the tail like any
+		// other, rather than taking the displaced one's place at the head.
+		PendingDelete displaced = pending.remove(id);
+		pending.put(id, new PendingDelete(directory, path, isDirectory, now + windowNanos));
+		return displaced;
+	}
+
+	/**
+	 * Finds the DELETE which a CREATE completes.
+	 *
+	 * @param device
+	 *            The device of the created path.
+	 * @param inode
+	 *            The inode of the created path.
+	 * @return The matching DELETE, which is no longer held, or null.
+	 */
+	synchronized PendingDelete matchCreate(long device, long inode) {
+		if (inode == 0)
+			return null;
+		return pending.remove(new FileId(device, inode));
+	}
+
+	/**
+	 * Removes the DELETEs whose window has passed. They were not moves.
+	 *
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 * @return The expired DELETEs, oldest first.
+	 */
+	synchronized List<PendingDelete> expire(long now) {
+		List<PendingDelete> expired = new ArrayList<PendingDelete>();
+		Iterator<PendingDelete> it = pending.values().iterator();
+		while (it.hasNext()) {
+			PendingDelete next = it.next();
+			if (next.deadline - now > 0)
+				break;
+			expired.add(next);
+			it.remove();
+		}
+		return expired;
+	}
+
+	/**
+	 * Removes every held DELETE, whether or not its window has passed.
+	 *
+	 * @return The held DELETEs, oldest first.
+	 */
+	synchronized List<PendingDelete> drain() {
+		List<PendingDelete> drained = new ArrayList<PendingDelete>(pending.values());
+		pending.clear();
+		return drained;
+	}
+
+	/**
+	 * @return True if no DELETE is held.
+	 */
+	synchronized boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 * @return How long until the next held DELETE expires, or the window if
+	 *         none is held.
+	 */
+	synchronized long nanosUntilNextExpiry(long now) {
+		if (pending.isEmpty())
+			return windowNanos;
+		PendingDelete head = pending.values().iterator().next();
+		return Math.max(0, head.deadline - now);
+	}
+}
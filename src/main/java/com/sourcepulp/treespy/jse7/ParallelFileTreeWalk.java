@@ -0,0 +1,106 @@
+package com.sourcepulp.treespy.jse7;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join equivalent of {@link Files#walkFileTree(Path, FileVisitor)}. Each
+ * directory is listed by its own task, and subdirectories are forked so that
+ * large trees are visited by every thread in the pool. Like the serial walk,
+ * symbolic links are not followed.
+ *
+ * The visitor is invoked concurrently from several threads, so it must be
+ * thread safe. The order in which directories are visited is not defined,
+ * although a directory is always pre-visited before any of its entries.
+ *
+ * @author Will Faithfull
+ *
+ */
+class ParallelFileTreeWalk extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Path directory;
+	private final BasicFileAttributes attributes;
+	private final FileVisitor<Path> visitor;
+
+	private ParallelFileTreeWalk(Path directory, BasicFileAttributes attributes, FileVisitor<Path> visitor) {
+		this.directory = directory;
+		this.attributes = attributes;
+		this.visitor = visitor;
+	}
+
+	/**
+	 * Walks the tree rooted at the specified directory on the specified pool,
+	 * blocking until every directory has been visited.
+	 *
+	 * @param pool
+	 *            The pool to carry out the walk.
+	 * @param root
+	 *            The directory to start from.
+	 * @param visitor
+	 *            A thread safe visitor.
+	 * @throws IOException
+	 *             If the visitor throws, or the root cannot be read.
+	 */
+	static void walk(ForkJoinPool pool, Path root, FileVisitor<Path> visitor) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class);
+		try {
+			pool.invoke(new ParallelFileTreeWalk(root, attrs, visitor));
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	@Override
+	protected void compute() {
+		try {
+			if (visitor.preVisitDirectory(directory, attributes) != FileVisitResult.CONTINUE)
+				return;
+
+			List<ParallelFileTreeWalk> subtasks = new ArrayList<ParallelFileTreeWalk>();
+			IOException failure = null;
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path child : stream) {
+					BasicFileAttributes attrs;
+					try {
+						attrs = Files.readAttributes(child, BasicFileAttributes.class, NOFOLLOW_LINKS);
+					} catch (IOException ex) {
+						visitor.visitFileFailed(child, ex);
+						continue;
+					}
+
+					if (attrs.isDirectory())
+						subtasks.add(new ParallelFileTreeWalk(child, attrs, visitor));
+					else
+						visitor.visitFile(child, attrs);
+				}
+			} catch (IOException ex) {
+				failure = ex;
+			}
+
+			if (failure != null) {
+				visitor.visitFileFailed(directory, failure);
+				return;
+			}
+
+			invokeAll(subtasks);
+			visitor.postVisitDirectory(directory, null);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+}
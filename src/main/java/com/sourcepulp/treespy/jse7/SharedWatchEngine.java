@@ -0,0 +1,291 @@
+package com.sourcepulp.treespy.jse7;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sourcepulp.treespy.TreeSpy;
+import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+
+/**
+ * Multiplexes many TreeSpy instances over one WatchService per filesystem,
+ * served by a small fixed number of poller threads. Each spy keeps its own
+ * listeners and lifecycle; the engine only owns the WatchServices and the
+ * threads which drain them.
+ *
+ * When several spies watch the same directory they share its WatchKey. The
+ * events drained from the key are handed to every spy which registered it,
+ * and the key is only cancelled once the last of those spies releases it.
+ *
+ * Events for a single spy are handled by one poller at a time, but may be
+ * handled by different pollers over time. Spies holding events back, to
+ * coalesce them or to pair them into moves, are ticked by a single ticker
+ * thread of the engine's, every {@value #TICK_MILLIS} ms, so that no spy is
+ * ever ticked from two threads at once, however many pollers there are.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class SharedWatchEngine implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(TreeSpy.class);
+
+	private static final long TICK_MILLIS = 50;
+
+	private final int pollersPerFileSystem;
+	private final ThreadFactory threadFactory;
+
+	private final ConcurrentMap<FileSystem, WatchService> services = new ConcurrentHashMap<FileSystem, WatchService>();
+	private final ConcurrentMap<WatchKey, Set<TreeSpyJSE7StdLib>> subscribers = new ConcurrentHashMap<WatchKey, Set<TreeSpyJSE7StdLib>>();
+	private final Set<TreeSpyJSE7StdLib> attached = new CopyOnWriteArraySet<TreeSpyJSE7StdLib>();
+
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private boolean tickerStarted = false;
+
+	/**
+	 * Constructs an engine which drains each filesystem's WatchService with
+	 * the specified number of daemon threads.
+	 *
+	 * @param pollersPerFileSystem
+	 *            The number of poller threads per WatchService, at least 1.
+	 */
+	public SharedWatchEngine(int pollersPerFileSystem) {
+		this(pollersPerFileSystem, new TreeSpyThreadFactory());
+	}
+
+	/**
+	 * Constructs an engine which drains each filesystem's WatchService with
+	 * the specified number of threads, made by the specified factory.
+	 *
+	 * @param pollersPerFileSystem
+	 *            The number of poller threads per WatchService, at least 1.
+	 * @param threadFactory
+	 *            The factory for poller threads.
+	 */
+	public SharedWatchEngine(int pollersPerFileSystem, ThreadFactory threadFactory) {
+		if (pollersPerFileSystem < 1)
+			throw new IllegalArgumentException("At least one poller is required");
+		this.pollersPerFileSystem = pollersPerFileSystem;
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Registers a directory on behalf of a spy, creating the WatchService and
+	 * pollers for its filesystem if necessary.
+	 *
+	 * @param directory
+	 *            The directory to watch.
+	 * @param spy
+	 *            The spy which wants events for the directory.
+	 * @return The WatchKey for the directory, which may be shared.
+	 * @throws IOException
+	 *             If the filesystem objects to registration.
+	 */
+	synchronized WatchKey register(Path directory, TreeSpyJSE7StdLib spy) throws IOException {
+		if (closed.get())
+			throw new IllegalStateException("Engine has been closed");
+
+		WatchKey key = directory.register(serviceFor(directory.getFileSystem()), ENTRY_CREATE, ENTRY_DELETE,
+				ENTRY_MODIFY, OVERFLOW);
+
+		Set<TreeSpyJSE7StdLib> spies = subscribers.get(key);
+		if (spies == null) {
+			spies = new CopyOnWriteArraySet<TreeSpyJSE7StdLib>();
+			subscribers.put(key, spies);
+		}
+		spies.add(spy);
+		return key;
+	}
+
+	/**
+	 * Releases a spy's interest in a WatchKey, cancelling the key if no other
+	 * spy still needs it.
+	 *
+	 * @param key
+	 *            The key to release.
+	 * @param spy
+	 *            The spy releasing it.
+	 */
+	synchronized void release(WatchKey key, TreeSpyJSE7StdLib spy) {
+		Set<TreeSpyJSE7StdLib> spies = subscribers.get(key);
+		if (spies != null) {
+			spies.remove(spy);
+			if (!spies.isEmpty())
+				return;
+			subscribers.remove(key);
+		}
+		key.cancel();
+	}
+
+	/**
+	 * Starts delivering events to the specified spy.
+	 *
+	 * @param spy
+	 *            The spy.
+	 */
+	void attach(TreeSpyJSE7StdLib spy) {
+		attached.add(spy);
+	}
+
+	/**
+	 * Stops delivering events to the specified spy. Its WatchKeys remain
+	 * registered until it releases them.
+	 *
+	 * @param spy
+	 *            The spy.
+	 */
+	void detach(TreeSpyJSE7StdLib spy) {
+		attached.remove(spy);
+	}
+
+	/**
+	 * @return The number of distinct WatchKeys held by the engine.
+	 */
+	public int getWatchKeyCount() {
+		return subscribers.size();
+	}
+
+	/**
+	 * @return The number of spies currently receiving events.
+	 */
+	public int getAttachedSpyCount() {
+		return attached.size();
+	}
+
+	/**
+	 * Closes every WatchService, which also stops the pollers.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!closed.compareAndSet(false, true))
+			return;
+
+		for (WatchService service : services.values()) {
+			service.close();
+		}
+		services.clear();
+		subscribers.clear();
+		attached.clear();
+	}
+
+	private WatchService serviceFor(FileSystem fileSystem) throws IOException {
+		if (!tickerStarted) {
+			threadFactory.newThread(new Ticker()).start();
+			tickerStarted = true;
+		}
+
+		WatchService service = services.get(fileSystem);
+		if (service == null) {
+			service = fileSystem.newWatchService();
+			services.put(fileSystem, service);
+			for (int i = 0; i < pollersPerFileSystem; i++) {
+				threadFactory.newThread(new Poller(service)).start();
+			}
+			log.info(String.format("Started %d shared pollers for %s", pollersPerFileSystem, fileSystem));
+		}
+		return service;
+	}
+
+	/**
+	 * Ticks the attached spies which have work to do, every
+	 * {@value #TICK_MILLIS} ms, until the engine is closed, even if
+	 * interrupted.
+	 */
+	private class Ticker implements Runnable {
+
+		public void run() {
+			while (!closed.get()) {
+				try {
+					Thread.sleep(TICK_MILLIS);
+				} catch (InterruptedException ex) {
+					log.warn("Shared ticker was interrupted unexpectedly; carrying on", ex);
+					continue;
+				}
+
+				long now = System.nanoTime();
+				for (TreeSpyJSE7StdLib spy : attached) {
+					try {
+						if (spy.needsTick())
+							spy.tick(now);
+					} catch (RuntimeException ex) {
+						log.warn("Spy failed to tick", ex);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drains a WatchService, handing each key's events to the spies which
+	 * registered it. Runs until the engine is closed, even if interrupted.
+	 */
+	private class Poller implements Runnable {
+
+		private final WatchService service;
+
+		Poller(WatchService service) {
+			this.service = service;
+		}
+
+		public void run() {
+			while (!closed.get()) {
+				WatchKey key;
+				try {
+					key = service.poll(TICK_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					// Other spies still depend on this poller, so it carries on
+					// until the engine is closed.
+					log.warn("Shared poller was interrupted unexpectedly; carrying on", ex);
+					continue;
+				} catch (ClosedWatchServiceException ex) {
+					return;
+				}
+
+				if (key != null)
+					dispatch(key);
+			}
+		}
+
+		private void dispatch(WatchKey key) {
+			List<WatchEvent<?>> events = key.pollEvents();
+
+			Set<TreeSpyJSE7StdLib> spies = subscribers.get(key);
+			if (spies != null) {
+				for (TreeSpyJSE7StdLib spy : spies) {
+					if (attached.contains(spy))
+						spy.process(key, events);
+				}
+			}
+
+			if (!key.reset()) {
+				Set<TreeSpyJSE7StdLib> removed = subscribers.remove(key);
+				if (removed != null) {
+					for (TreeSpyJSE7StdLib spy : removed) {
+						spy.invalidate(key);
+					}
+				}
+			}
+		}
+	}
+}
@@ -10,33 +10,57 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.nio.file.FileSystems;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sourcepulp.treespy.Change;
 import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.RegistrationProgressListener;
 import com.sourcepulp.treespy.TreeSpy;
+import com.sourcepulp.treespy.TreeSpyBatchListener;
 import com.sourcepulp.treespy.TreeSpyListener;
+import com.sourcepulp.treespy.concurrent.BackpressurePolicy;
+import com.sourcepulp.treespy.concurrent.ListenerDispatcher;
+import com.sourcepulp.treespy.concurrent.RingBufferEventBus;
+import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+import com.sourcepulp.treespy.concurrent.WaitStrategy;
+import com.sourcepulp.treespy.glob.GlobIndex;
+import com.sourcepulp.treespy.metrics.TreeSpyMetrics;
+import com.sourcepulp.treespy.snapshot.DirectorySnapshot;
+import com.sourcepulp.treespy.snapshot.NameTable;
+import com.sourcepulp.treespy.snapshot.TreeIndexFile;
 
 /**
  * Java SE 7 compliant implementation of a directory watching service.
@@ -50,343 +74,2195 @@ public class TreeSpyJSE7StdLib implements TreeSpy {
 
 	private WatchService watcher;
 
-	private ConcurrentMap<WatchKey, Path> watchKeysToDirectories;
+	private WatchKeyIndex watchKeys;
 	private ConcurrentMap<Path, Set<TreeSpyListener>> directoriesToListeners;
-	private ConcurrentMap<TreeSpyListener, Set<PathMatcher>> callbacksToGlobMatchers;
+	private GlobIndex globIndex;
+	private ConcurrentMap<TreeSpyListener, ConcurrentMap<Path, Boolean>> listenersToRoots;
+	private ConcurrentMap<Path, DirectorySnapshot> directoriesToSnapshots;
+	private volatile NameTable snapshotNames;
 
-	private AtomicBoolean running = new AtomicBoolean(false);
+	/**
+	 * The lifecycle of a spy. A stopped spy may be started again, but a closed
+	 * one may not.
+	 */
+	public enum State {
+		STOPPED, RUNNING, STOPPING, CLOSED
+	}
+
+	private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+	// The state, and the poller thread, only change under the lifecycle lock,
+	// so that there is never more than one poller.
+	private final Object lifecycleLock = new Object();
+	private volatile State state = State.STOPPED;
+	private Thread poller;
+	private boolean pollerParked;
+	private CountDownLatch pollerExited;
+
+	private Executor daemonExecutor;
+	private ExecutorService callbackExecutorService;
+
+	private volatile ListenerDispatcher dispatcher;
+	private volatile RingBufferEventBus eventBus;
+
+	private SharedWatchEngine engine;
+	private final Object dispatchLock = new Object();
+
+	private boolean runCallbacksOnDaemonThread = true;
+
+	private static final int PROGRESS_INTERVAL = 1000;
+
+	private volatile int registrationParallelism = 1;
+	private ForkJoinPool registrationPool;
+	private ExecutorService newDirectoryExecutor;
+	private volatile RegistrationProgressListener registrationProgressListener;
+
+	private volatile EventCoalescer coalescer;
+	private volatile MoveDetector moveDetector;
+
+	private volatile int maxBatchSize = 1024;
+
+	private volatile TreeSpyMetrics metrics = TreeSpyMetrics.NONE;
+
+	private volatile boolean overflowRecovery = false;
+	private volatile boolean snapshotting = false;
+	// Cleared once a key is seen not to follow a rename, see invalidate.
+	private volatile boolean renamesFollowed = true;
+
+	private volatile Path indexFile;
+	private volatile ConcurrentMap<Path, DirectorySnapshot> restored;
+
+	private static final int MIN_NAMES_TO_COMPACT = 65536;
+	// Only written by tick.
+	private volatile int namesToCompact = MIN_NAMES_TO_COMPACT;
+
+	private volatile ContentFilter contentFilter;
+
+	private static final long COLD_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private volatile WatchBudget watchBudget;
+	private volatile WatchRebalancer rebalancer;
+	private int fingerprintThreads = 2;
+	private long fingerprintCacheBytes = 16L * 1024 * 1024;
+
+	/**
+	 * Constructs a directory spy using the provided executor to orchestrate the
+	 * background task.
+	 * 
+	 * @param daemonExecutor
+	 * @throws IOException
+	 */
+	public TreeSpyJSE7StdLib(Executor daemonExecutor, WatchService watcher) throws IOException {
+		this.daemonExecutor = daemonExecutor;
+		this.watcher = watcher;
+
+		// Initialise maps
+		this.watchKeys = new WatchKeyIndex();
+		this.directoriesToListeners = new ConcurrentHashMap<Path, Set<TreeSpyListener>>();
+		this.globIndex = new GlobIndex();
+		this.listenersToRoots = new ConcurrentHashMap<TreeSpyListener, ConcurrentMap<Path, Boolean>>();
+		this.directoriesToSnapshots = new ConcurrentHashMap<Path, DirectorySnapshot>();
+		this.snapshotNames = new NameTable();
+	}
+
+	/**
+	 * Constructs a directory spy using the provided executor to orchestrate the
+	 * background task, and the provided ExecutorService to execute callbacks.
+	 * 
+	 * @param daemonExecutor
+	 * @param callbackExecutorService
+	 * @throws IOException
+	 */
+	public TreeSpyJSE7StdLib(Executor daemonExecutor, WatchService watcher, ExecutorService callbackExecutorService)
+			throws IOException {
+		this(daemonExecutor, watcher);
+		this.callbackExecutorService = callbackExecutorService;
+		// In the default case, we don't use an executorservice, it needs to be
+		// explicitly told.
+		runCallbacksOnDaemonThread = false;
+	}
+
+	/**
+	 * Constructs a directory spy using the provided executor to orchestrate the
+	 * background task, and the provided ExecutorService to execute callbacks.
+	 * If orderedCallbacks is set, each listener receives its changes in order
+	 * and never concurrently, whatever the size of the ExecutorService.
+	 * 
+	 * @param daemonExecutor
+	 * @param callbackExecutorService
+	 * @param orderedCallbacks
+	 * @throws IOException
+	 */
+	public TreeSpyJSE7StdLib(Executor daemonExecutor, WatchService watcher, ExecutorService callbackExecutorService,
+			boolean orderedCallbacks) throws IOException {
+		this(daemonExecutor, watcher, callbackExecutorService);
+		if (orderedCallbacks)
+			this.dispatcher = newDispatcher(callbackExecutorService, Integer.MAX_VALUE, BackpressurePolicy.BLOCK);
+	}
+
+	/**
+	 * Constructs a directory spy which shares the WatchServices and poller
+	 * threads of the provided engine with other spies.
+	 * 
+	 * @param engine
+	 * @throws IOException
+	 */
+	public TreeSpyJSE7StdLib(SharedWatchEngine engine) throws IOException {
+		this((Executor) null, (WatchService) null);
+		this.engine = engine;
+	}
+
+	/**
+	 * Constructs a directory spy which shares the WatchServices and poller
+	 * threads of the provided engine with other spies, and uses the provided
+	 * ExecutorService to execute callbacks.
+	 * 
+	 * @param engine
+	 * @param callbackExecutorService
+	 * @throws IOException
+	 */
+	public TreeSpyJSE7StdLib(SharedWatchEngine engine, ExecutorService callbackExecutorService) throws IOException {
+		this(engine);
+		this.callbackExecutorService = callbackExecutorService;
+		runCallbacksOnDaemonThread = false;
+	}
+
+	/**
+	 * Sets the number of threads used to walk and register directory trees.
+	 * With a parallelism of 1 (the default) trees are walked serially on the
+	 * calling thread. Higher values walk the tree with fork/join, which is
+	 * considerably faster for very large trees on multi-core machines. The
+	 * resulting set of watched directories is the same either way.
+	 * 
+	 * @param parallelism
+	 *            The number of threads to register with, at least 1.
+	 */
+	public synchronized void setRegistrationParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+
+		if (registrationPool != null && registrationPool.getParallelism() != parallelism) {
+			registrationPool.shutdown();
+			registrationPool = null;
+		}
+		this.registrationParallelism = parallelism;
+	}
+
+	/**
+	 * Sets a listener to be periodically informed of the number of directories
+	 * registered while watching a tree.
+	 * 
+	 * @param listener
+	 *            The listener, or null to stop reporting progress.
+	 */
+	public void setRegistrationProgressListener(RegistrationProgressListener listener) {
+		this.registrationProgressListener = listener;
+	}
+
+	/**
+	 * Enables coalescing of events. Rather than being delivered as they
+	 * arrive, events are merged per path into their net effect, and delivered
+	 * once the path has seen no further events for the quiet period. A CREATE
+	 * followed by MODIFY is delivered as a single CREATE, for instance, while
+	 * a CREATE followed by a DELETE is not delivered at all. OVERFLOW events
+	 * are never held back.
+	 * 
+	 * @param quietPeriod
+	 *            How long a path must be quiet before its events are
+	 *            delivered, or 0 to deliver events immediately (the default).
+	 * @param unit
+	 *            The unit of the quiet period.
+	 */
+	public void setCoalescingWindow(long quietPeriod, TimeUnit unit) {
+		if (quietPeriod < 0)
+			throw new IllegalArgumentException("Quiet period must not be negative");
+
+		EventCoalescer previous = coalescer;
+		coalescer = quietPeriod == 0 ? null : new EventCoalescer(unit.toNanos(quietPeriod));
+
+		// Anything held back by the old window is delivered straight away.
+		if (previous != null)
+			flush(previous, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Enables detection of moves and renames within the watched trees. The
+	 * WatchService reports a move as a DELETE of the old path and a CREATE of
+	 * the new one; with detection enabled, the DELETE of a file or directory
+	 * is held back for the window, and if an entry with the same file key is
+	 * created within it, listeners receive a single MOVE instead. A DELETE
+	 * which is not paired is delivered once its window has passed.
+	 * 
+	 * Pairing relies on directory snapshots, which are kept while detection
+	 * is enabled, so this should be enabled before watching.
+	 * 
+	 * @param window
+	 *            How long to wait for the CREATE half of a move, or 0 to
+	 *            disable detection (the default).
+	 * @param unit
+	 *            The unit of the window.
+	 */
+	public void setMoveDetection(long window, TimeUnit unit) {
+		if (window < 0)
+			throw new IllegalArgumentException("Window must not be negative");
+
+		MoveDetector previous = moveDetector;
+		moveDetector = window == 0 ? null : new MoveDetector(unit.toNanos(window));
+
+		// Anything held back by the old window is delivered straight away.
+		if (previous != null)
+			expire(previous.drain());
+	}
+
+	/**
+	 * Sets the largest number of changes delivered to a listener in one go.
+	 * Larger batches are split, in order, into several deliveries. Listeners
+	 * which are not {@link TreeSpyBatchListener}s still receive one change at
+	 * a time, but all changes in a batch are delivered by a single callback
+	 * task.
+	 * 
+	 * @param maxBatchSize
+	 *            The maximum batch size, at least 1.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		this.maxBatchSize = maxBatchSize;
+		if (dispatcher != null)
+			dispatcher.setMaxBatchSize(maxBatchSize);
+		if (eventBus != null)
+			eventBus.setMaxBatchSize(maxBatchSize);
+	}
+
+	/**
+	 * Gives each listener its own bounded, ordered queue, drained by the
+	 * callback ExecutorService. Each listener receives its changes in order
+	 * and never concurrently. When a listener falls so far behind that its
+	 * queue is full, the policy decides whether to block the watcher, drop
+	 * the oldest change, coalesce by path or collapse the queue into a single
+	 * OVERFLOW.
+	 * 
+	 * @param capacity
+	 *            The most changes queued for any one listener.
+	 * @param policy
+	 *            What to do with changes for a listener whose queue is full.
+	 * @throws IllegalStateException
+	 *             If this spy was not built with a callback ExecutorService.
+	 */
+	public void setDispatchQueue(int capacity, BackpressurePolicy policy) {
+		if (callbackExecutorService == null)
+			throw new IllegalStateException("Dispatch queues require a callback ExecutorService");
+		this.dispatcher = newDispatcher(callbackExecutorService, capacity, policy);
+	}
+
+	/**
+	 * @return The dispatcher serving listeners, or null if callbacks are not
+	 *         queued per listener.
+	 */
+	public ListenerDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Fans changes out through a preallocated ring buffer instead of
+	 * notifying each listener from the watcher thread. The watcher publishes
+	 * each change once; every listener then has a thread of its own which
+	 * reads the ring at its own pace, matches its own globs, and receives its
+	 * changes in order. A slow listener falls behind on its own, until it is
+	 * a whole ring behind, at which point the watcher waits for it.
+	 * 
+	 * @param capacity
+	 *            The number of slots in the ring, rounded up to a power of
+	 *            two, or 0 to stop using the bus (the default).
+	 * @param strategy
+	 *            How listener threads wait for changes.
+	 */
+	public void setEventBus(int capacity, WaitStrategy strategy) {
+		RingBufferEventBus previous = eventBus;
+		eventBus = capacity == 0 ? null : newEventBus(capacity, strategy);
+
+		// The old bus still delivers what was published to it.
+		if (previous != null)
+			previous.shutdown();
+	}
+
+	/**
+	 * @return The event bus serving listeners, or null if there is none.
+	 */
+	public RingBufferEventBus getEventBus() {
+		return eventBus;
+	}
+
+	private RingBufferEventBus newEventBus(int capacity, WaitStrategy strategy) {
+		return new RingBufferEventBus(capacity, strategy, new TreeSpyThreadFactory(),
+				new ListenerDispatcher.Delivery() {
+					@Override
+					public void deliver(TreeSpyListener listener, List<Change> changes) {
+						TreeSpyJSE7StdLib.this.notify(listener, changes);
+					}
+				}, new RingBufferEventBus.Selector() {
+					@Override
+					public boolean selects(TreeSpyListener listener, Change change) {
+						return TreeSpyJSE7StdLib.this.selects(listener, change);
+					}
+				}, maxBatchSize);
+	}
+
+	/**
+	 * Creates a dispatcher which delivers each listener's changes in order on
+	 * the specified executor.
+	 * 
+	 * @param executor
+	 *            The executor for callbacks.
+	 * @param capacity
+	 *            The most changes queued for any one listener.
+	 * @param policy
+	 *            What to do with changes for a listener whose queue is full.
+	 * @return A new dispatcher.
+	 */
+	private ListenerDispatcher newDispatcher(Executor executor, int capacity, BackpressurePolicy policy) {
+		return new ListenerDispatcher(executor, new ListenerDispatcher.Delivery() {
+			@Override
+			public void deliver(TreeSpyListener listener, List<Change> changes) {
+				TreeSpyJSE7StdLib.this.notify(listener, changes);
+			}
+		}, maxBatchSize, capacity, policy);
+	}
+
+	/**
+	 * Sets the registry to which this spy reports events, latencies and the
+	 * time spent registering trees, and offers it gauges of the number of
+	 * watched directories and the depth of the dispatch queues. With
+	 * {@link TreeSpyMetrics#NONE} (the default) nothing is measured.
+	 * 
+	 * @param metrics
+	 *            The registry, or null to stop measuring.
+	 */
+	public void setMetrics(TreeSpyMetrics metrics) {
+		this.metrics = metrics == null ? TreeSpyMetrics.NONE : metrics;
+		this.metrics.gauge("watchedDirectories", new TreeSpyMetrics.Gauge() {
+			@Override
+			public long value() {
+				return getWatchedDirectoryCount();
+			}
+		});
+		this.metrics.gauge("queuedChanges", new TreeSpyMetrics.Gauge() {
+			@Override
+			public long value() {
+				ListenerDispatcher dispatcher = TreeSpyJSE7StdLib.this.dispatcher;
+				RingBufferEventBus eventBus = TreeSpyJSE7StdLib.this.eventBus;
+				return (dispatcher == null ? 0 : dispatcher.getTotalQueueDepth())
+						+ (eventBus == null ? 0 : eventBus.getTotalLag());
+			}
+		});
+		this.metrics.gauge("polledDirectories", new TreeSpyMetrics.Gauge() {
+			@Override
+			public long value() {
+				return getPolledDirectoryCount();
+			}
+		});
+		this.metrics.gauge("droppedChanges", new TreeSpyMetrics.Gauge() {
+			@Override
+			public long value() {
+				ListenerDispatcher dispatcher = TreeSpyJSE7StdLib.this.dispatcher;
+				return dispatcher == null ? 0 : dispatcher.getDroppedCount();
+			}
+		});
+	}
+
+	/**
+	 * @return The registry this spy reports to.
+	 */
+	public TreeSpyMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Limits the number of directories watched natively, for instance to stay
+	 * within the kernel's limit on inotify watches. Directories beyond the
+	 * budget are polled instead, and listeners receive the same events from
+	 * them, only less promptly. Should the kernel refuse a watch before the
+	 * budget is reached, the budget shrinks to fit rather than the directory
+	 * going unwatched.
+	 * 
+	 * Every 5 seconds, polled directories which have had events are promoted
+	 * to native watches, demoting the native directories which have been quiet
+	 * longest to make room. A change made while a directory is switching may
+	 * be reported twice, but is not missed.
+	 * 
+	 * This should be set before watching, and cannot be used with a shared
+	 * engine.
+	 * 
+	 * @param maxNativeWatches
+	 *            The most directories to watch natively, or 0 for no limit
+	 *            (the default). See {@link #getSystemWatchLimit()}.
+	 */
+	public void setWatchBudget(int maxNativeWatches) {
+		setWatchBudget(maxNativeWatches, 5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Limits the number of directories watched natively, rebalancing between
+	 * native watches and polling at the specified interval.
+	 * 
+	 * @param maxNativeWatches
+	 *            The most directories to watch natively, or 0 for no limit.
+	 * @param rebalanceInterval
+	 *            The interval between promotions of active polled
+	 *            directories.
+	 * @param unit
+	 *            The unit of the interval.
+	 * @see #setWatchBudget(int)
+	 */
+	public void setWatchBudget(int maxNativeWatches, long rebalanceInterval, TimeUnit unit) {
+		if (maxNativeWatches < 0)
+			throw new IllegalArgumentException("Budget must not be negative");
+		if (engine != null)
+			throw new IllegalStateException("A spy sharing an engine cannot limit its watches");
+		if (watchBudget != null || !watchKeys.keys().isEmpty())
+			throw new IllegalStateException("The watch budget must be set before watching");
+		if (maxNativeWatches == 0)
+			return;
+		WatchBudget budget = new WatchBudget(maxNativeWatches, unit.toNanos(rebalanceInterval));
+		rebalancer = new WatchRebalancer(budget, new WatchRebalancer.Keys() {
+			@Override
+			public WatchKey registerNative(Path directory) throws IOException {
+				return registerNativeKey(directory);
+			}
+
+			@Override
+			public void cancel(WatchKey key) {
+				TreeSpyJSE7StdLib.this.cancel(key);
+			}
+
+			@Override
+			public void process(WatchKey key, List<WatchEvent<?>> events) {
+				TreeSpyJSE7StdLib.this.process(key, events);
+			}
+
+			@Override
+			public boolean isListened(Path directory) {
+				return TreeSpyJSE7StdLib.this.isListened(directory);
+			}
+		});
+		watchBudget = budget;
+	}
+
+	/**
+	 * Reads the kernel's limit on inotify watches for this user, which is
+	 * shared with every other process the user runs.
+	 * 
+	 * @return The limit, or -1 if it is not known, as on systems other than
+	 *         Linux.
+	 */
+	public static int getSystemWatchLimit() {
+		return WatchBudget.systemLimit();
+	}
+
+	/**
+	 * @return The number of watched directories which are being polled for
+	 *         want of native watches.
+	 */
+	public int getPolledDirectoryCount() {
+		WatchBudget budget = watchBudget;
+		return budget == null ? 0 : budget.getColdCount();
+	}
+
+	/**
+	 * @param directory
+	 *            A watched directory.
+	 * @return True if the directory is being polled for want of a native
+	 *         watch.
+	 */
+	public boolean isPolled(Path directory) {
+		WatchBudget budget = watchBudget;
+		return budget != null && budget.isCold(watchKeys.keyOf(directory));
+	}
+
+	/**
+	 * Enables recovery from OVERFLOW. A snapshot of each watched directory is
+	 * kept up to date as events arrive. When the event queue overflows, the
+	 * affected directory is rescanned and compared with its snapshot, any
+	 * missed subdirectories are registered, and listeners receive the missed
+	 * CREATE, MODIFY and DELETE events in place of the OVERFLOW.
+	 * 
+	 * This should be enabled before watching, as snapshots are taken when
+	 * directories are registered. Directories without a snapshot still
+	 * signal OVERFLOW.
+	 * 
+	 * @param enabled
+	 *            Whether to recover from OVERFLOW.
+	 */
+	public void setOverflowRecovery(boolean enabled) {
+		this.overflowRecovery = enabled;
+	}
+
+	/**
+	 * Enables snapshots of watched directories, kept up to date as events
+	 * arrive, so that the contents of a directory can be queried through
+	 * {@link #getSnapshot(Path)} without touching the disk. Snapshots are
+	 * always kept when overflow recovery is enabled.
+	 * 
+	 * This should be enabled before watching, as snapshots are taken when
+	 * directories are registered.
+	 * 
+	 * @param enabled
+	 *            Whether to keep snapshots.
+	 */
+	public void setSnapshotting(boolean enabled) {
+		this.snapshotting = enabled;
+	}
+
+	/**
+	 * Keeps a persistent index of the watched trees in the specified file, so
+	 * that changes made while the spy was not running are not missed. If the
+	 * file holds an index from an earlier run it is loaded now, and each tree
+	 * watched afterwards is compared with it as it is registered: listeners
+	 * receive the CREATE, MODIFY and DELETE events they missed before any new
+	 * ones. The index is written when the spy is closed, or by
+	 * {@link #saveIndex()}.
+	 * 
+	 * Snapshots are kept while an index is set, so this should be set before
+	 * watching. A reset forgets the loaded index.
+	 * 
+	 * @param file
+	 *            The index file, or null to stop keeping an index.
+	 */
+	public void setPersistentIndex(Path file) {
+		this.indexFile = file;
+		this.restored = null;
+		if (file == null || !Files.exists(file))
+			return;
+
+		try {
+			long started = System.nanoTime();
+			restored = new ConcurrentHashMap<Path, DirectorySnapshot>(TreeIndexFile.read(file, snapshotNames));
+			log.info(String.format("Loaded index of %d directories from %s in %d ms", restored.size(),
+					file.toString(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)));
+		} catch (IOException ex) {
+			log.warn(String.format("Ignoring unreadable index %s: %s", file.toString(), ex.getMessage()));
+		}
+	}
+
+	/**
+	 * Writes the snapshots of all watched directories to the persistent
+	 * index.
+	 * 
+	 * @throws IOException
+	 *             If the index cannot be written.
+	 * @throws IllegalStateException
+	 *             If no persistent index has been set.
+	 */
+	public void saveIndex() throws IOException {
+		Path file = indexFile;
+		if (file == null)
+			throw new IllegalStateException("No persistent index has been set");
+		TreeIndexFile.write(file, directoriesToSnapshots, snapshotNames);
+		log.info(String.format("Saved index of %d directories to %s", directoriesToSnapshots.size(), file.toString()));
+	}
+
+	/**
+	 * Retrieves the snapshot of a watched directory.
+	 * 
+	 * @param directory
+	 *            The directory.
+	 * @return The directory's snapshot, or null if it has none.
+	 */
+	public DirectorySnapshot getSnapshot(Path directory) {
+		return directoriesToSnapshots.get(directory);
+	}
+
+	/**
+	 * Estimates the memory held by all directory snapshots, including the
+	 * shared table of names.
+	 * 
+	 * @return The approximate size of the snapshots in bytes.
+	 */
+	public long getSnapshotBytes() {
+		long bytes = snapshotNames.estimatedBytes();
+		for (DirectorySnapshot snapshot : directoriesToSnapshots.values()) {
+			bytes += snapshot.estimatedBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return The total number of entries held by all directory snapshots.
+	 */
+	public long getSnapshotEntries() {
+		long entries = 0;
+		for (DirectorySnapshot snapshot : directoriesToSnapshots.values()) {
+			entries += snapshot.size();
+		}
+		return entries;
+	}
+
+	/**
+	 * Drops the MODIFY events of a listener which leave a file's content as
+	 * it was, such as a touch or a save without edits. Each modified file's
+	 * size and modification time are compared with those last seen, and its
+	 * content is hashed only when they differ. Files are hashed on a small
+	 * pool of threads, so the watcher is never held up by a large file; the
+	 * listener receives its changes, in order, once they have been checked.
+	 * 
+	 * The first MODIFY of a file which existed before it was watched, and has
+	 * not been fingerprinted since, is always delivered.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 * @param globs
+	 *            The file name globs whose MODIFY events are checked, or none
+	 *            to check every file.
+	 */
+	public void suppressUnchangedModifies(TreeSpyListener listener, String... globs) {
+		contentFilter().add(listener, globs);
+	}
+
+	/**
+	 * Sizes the resources used to suppress unchanged MODIFY events. This must
+	 * be called before {@link #suppressUnchangedModifies}.
+	 * 
+	 * @param threads
+	 *            The number of threads hashing file content, by default 2.
+	 * @param maxCacheBytes
+	 *            Roughly how much memory the fingerprints may take, by default
+	 *            16 MB. The least recently used are evicted beyond this.
+	 * @throws IllegalStateException
+	 *             If MODIFY events are already being suppressed.
+	 */
+	public synchronized void setFingerprinting(int threads, long maxCacheBytes) {
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one hashing thread is required");
+		if (contentFilter != null)
+			throw new IllegalStateException("Fingerprinting must be sized before suppressing modifies");
+		this.fingerprintThreads = threads;
+		this.fingerprintCacheBytes = maxCacheBytes;
+	}
+
+	/**
+	 * @return The content filter, created on first use.
+	 */
+	private synchronized ContentFilter contentFilter() {
+		if (contentFilter == null) {
+			contentFilter = new ContentFilter(fingerprintThreads, fingerprintCacheBytes,
+					new ListenerDispatcher.Delivery() {
+						@Override
+						public void deliver(TreeSpyListener listener, List<Change> changes) {
+							dispatch(listener, changes);
+							awaitDispatchCapacity();
+						}
+					});
+		}
+		return contentFilter;
+	}
+
+	/**
+	 * @return True if directory snapshots are being kept.
+	 */
+	private boolean keepsSnapshots() {
+		return snapshotting || overflowRecovery || moveDetector != null || indexFile != null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void reset() throws IOException {
+		stop();
+
+		for (WatchKey key : watchKeys.keys()) {
+			cancel(key);
+		}
+
+		watchKeys = new WatchKeyIndex();
+		directoriesToListeners = new ConcurrentHashMap<Path, Set<TreeSpyListener>>();
+		globIndex = new GlobIndex();
+		listenersToRoots = new ConcurrentHashMap<TreeSpyListener, ConcurrentMap<Path, Boolean>>();
+		directoriesToSnapshots = new ConcurrentHashMap<Path, DirectorySnapshot>();
+		snapshotNames = new NameTable();
+		restored = null;
+
+		synchronized (this) {
+			if (contentFilter != null) {
+				contentFilter.shutdown();
+				contentFilter = null;
+			}
+		}
+
+		// A stopped spy keeps a bus like the one it had, but a closed one
+		// delivers nothing more, so needs none.
+		RingBufferEventBus previous = eventBus;
+		if (previous != null) {
+			eventBus = state == State.CLOSED ? null
+					: newEventBus(previous.getCapacity(), previous.getWaitStrategy());
+			previous.shutdown();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void watchRecursive(File directory, TreeSpyListener callback) throws IOException {
+		this.watch(directory, callback, true);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void watchJust(File directory, TreeSpyListener callback) throws IOException {
+		this.watch(directory, callback, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void watchRecursive(File directory, TreeSpyListener callback, String... globs) throws IOException {
+		registerGlobs(callback, globs);
+		this.watch(directory, callback, true);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void watchJust(File directory, TreeSpyListener callback, String... globs) throws IOException {
+		registerGlobs(callback, globs);
+		this.watch(directory, callback, false);
+	}
+
+	/**
+	 * Actual impelementation method for directory watching.
+	 * 
+	 * @param directory
+	 *            The directory to watch.
+	 * @param callback
+	 *            The listener to be notified in case of events.
+	 * @param recursive
+	 *            Whether or not to recursuively watch subdirectories.
+	 * @throws IOException
+	 *             If the filesystem objects to registration.
+	 */
+	private void watch(File directory, TreeSpyListener callback, boolean recursive) throws IOException {
+		if (state == State.CLOSED)
+			throw new IllegalStateException("Spy has been closed");
+		if (!directory.isDirectory())
+			throw new IllegalArgumentException("Path must be a directory");
+
+		Path path = directory.toPath();
+		listenersToRoots.putIfAbsent(callback, new ConcurrentHashMap<Path, Boolean>());
+		Map<Path, Boolean> roots = listenersToRoots.get(callback);
+		if (recursive || !roots.containsKey(path))
+			roots.put(path, recursive);
+
+		// Changes made while an indexed tree was not watched are found as it
+		// is registered.
+		ConcurrentMap<Path, DirectorySnapshot> restored = this.restored;
+		IndexCatchUp catchUp = restored == null ? null : new IndexCatchUp(restored, path, recursive);
+
+		// Always register, so that a second listener on an already watched
+		// tree is attached too.
+		register(path, Collections.singleton(callback), recursive, null, catchUp);
+
+		if (state != State.RUNNING)
+			start();
+
+		if (catchUp != null) {
+			List<Change> missed = catchUp.finish();
+			if (!missed.isEmpty()) {
+				log.info(String.format("Found %d changes made to %s while it was not watched.", missed.size(),
+						path.toString()));
+				notifyFound(missed);
+			}
+		}
+
+		log.info(String.format("Watching %s%s", path.toString(), recursive ? " and subdirectories." : "."));
+
+		if (keepsSnapshots() && log.isDebugEnabled()) {
+			long entries = getSnapshotEntries();
+			long bytes = getSnapshotBytes();
+			log.debug(String.format("Snapshots hold %d entries in %d bytes (%.1f bytes per entry).", entries, bytes,
+					entries == 0 ? 0.0 : (double) bytes / entries));
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void unwatch(File directory, TreeSpyListener callback) {
+		Path path = directory.toPath();
+
+		Map<Path, Boolean> roots = listenersToRoots.get(callback);
+		if (roots != null)
+			roots.remove(path);
+
+		int released = 0;
+		for (Path watched : directoriesToListeners.keySet()) {
+			if (!watched.startsWith(path) || isWithinOtherRoot(watched, path, roots == null ? null : roots.keySet()))
+				continue;
+			if (detach(watched, callback))
+				released++;
+		}
+
+		if (roots == null || roots.isEmpty())
+			forget(callback);
+
+		log.info(String.format("Unwatched %s, releasing %d directories.", path.toString(), released));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void removeListener(TreeSpyListener callback) {
+		int released = 0;
+		for (Path watched : directoriesToListeners.keySet()) {
+			if (detach(watched, callback))
+				released++;
+		}
+		forget(callback);
+
+		log.info(String.format("Removed listener, releasing %d directories.", released));
+	}
+
+	/**
+	 * Indicates whether a directory being unwatched lies within another,
+	 * more specific root which the listener still watches.
+	 * 
+	 * @param watched
+	 *            A watched directory within the tree being unwatched.
+	 * @param unwatched
+	 *            The root being unwatched.
+	 * @param roots
+	 *            The listener's remaining roots.
+	 * @return True if the listener should stay attached to the directory.
+	 */
+	private boolean isWithinOtherRoot(Path watched, Path unwatched, Set<Path> roots) {
+		if (roots == null)
+			return false;
+		for (Path root : roots) {
+			if (root.startsWith(unwatched) && watched.startsWith(root))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Detaches a listener from a single directory. The set of listeners of
+	 * each directory acts as its reference count: once the last listener is
+	 * detached, the directory's WatchKey and snapshot are released.
+	 * 
+	 * @param directory
+	 *            The watched directory.
+	 * @param listener
+	 *            The listener to detach.
+	 * @return True if the directory is no longer watched as a result.
+	 */
+	private boolean detach(Path directory, final TreeSpyListener listener) {
+		final AtomicBoolean emptied = new AtomicBoolean(false);
+		directoriesToListeners.computeIfPresent(directory,
+				new BiFunction<Path, Set<TreeSpyListener>, Set<TreeSpyListener>>() {
+					@Override
+					public Set<TreeSpyListener> apply(Path dir, Set<TreeSpyListener> listeners) {
+						if (listeners.remove(listener) && listeners.isEmpty()) {
+							emptied.set(true);
+							return null;
+						}
+						return listeners;
+					}
+				});
+
+		if (emptied.get())
+			release(directory);
+		return emptied.get();
+	}
+
+	/**
+	 * Releases the WatchKey and snapshot of a directory which no listener
+	 * needs any more.
+	 * 
+	 * @param directory
+	 *            The directory to stop watching.
+	 */
+	private void release(Path directory) {
+		WatchKey key = watchKeys.remove(directory);
+		if (key != null)
+			cancel(key);
+		directoriesToSnapshots.remove(directory);
+
+		// A listener may have been attached while the key was released, in
+		// which case the directory must be watched again.
+		if (isListened(directory) && !isWatched(directory)) {
+			try {
+				watchKeys.put(registerKey(directory), directory);
+			} catch (IOException ex) {
+				log.warn(String.format("Could not register %s", directory.toString()));
+			}
+		}
+	}
+
+	/**
+	 * Frees everything held for a listener which no longer watches anything:
+	 * its globs, its roots, its dispatch queue and its metrics.
+	 * 
+	 * @param listener
+	 *            The listener to forget.
+	 */
+	private void forget(TreeSpyListener listener) {
+		listenersToRoots.remove(listener);
+		globIndex.remove(listener);
+
+		ContentFilter contentFilter = this.contentFilter;
+		if (contentFilter != null)
+			contentFilter.remove(listener);
+
+		ListenerDispatcher dispatcher = this.dispatcher;
+		if (dispatcher != null)
+			dispatcher.remove(listener);
+
+		RingBufferEventBus eventBus = this.eventBus;
+		if (eventBus != null)
+			eventBus.remove(listener);
+
+		metrics.listenerRemoved(listener);
+	}
+
+	/**
+	 * Registers a mapping between the specified listener and it's set of globs.
+	 * 
+	 * @param callback
+	 *            The listener to be notified pending evaluation of the globs.
+	 * @param globs
+	 *            The globs with which to restrict this listener.
+	 */
+	private void registerGlobs(TreeSpyListener callback, String[] globs) {
+		for (String glob : globs) {
+			globIndex.add(callback, glob);
+		}
+	}
+
+	/**
+	 * Finds the path of a file relative to the nearest root the listener
+	 * watches, against which relative globs and excludes are matched.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 * @param path
+	 *            An absolute path within one of the listener's watched trees.
+	 * @return The relative path, or the path unchanged if it is not within
+	 *         any of the listener's roots.
+	 */
+	private Path relativize(TreeSpyListener listener, Path path) {
+		Map<Path, Boolean> roots = listenersToRoots.get(listener);
+		Path nearest = null;
+		if (roots != null) {
+			for (Path root : roots.keySet()) {
+				if (path.startsWith(root) && (nearest == null || root.getNameCount() > nearest.getNameCount()))
+					nearest = root;
+			}
+		}
+		return nearest == null ? path : nearest.relativize(path);
+	}
+
+	/**
+	 * Indicates whether the listener watches the specified directory as part
+	 * of a recursive watch, and so wants its new subdirectories watched too.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 * @param directory
+	 *            A directory the listener is attached to.
+	 * @return True if the directory lies within one of the listener's
+	 *         recursive roots.
+	 */
+	private boolean isRecursive(TreeSpyListener listener, Path directory) {
+		Map<Path, Boolean> roots = listenersToRoots.get(listener);
+		if (roots != null) {
+			for (Map.Entry<Path, Boolean> root : roots.entrySet()) {
+				if (root.getValue() && directory.startsWith(root.getKey()))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates whether the listener's excludes rule out the specified file or
+	 * directory. A watched root is never excluded.
+	 * 
+	 * @param index
+	 *            The glob index holding the excludes.
+	 * @param listener
+	 *            The listener.
+	 * @param path
+	 *            The path to check.
+	 * @return True if the path is excluded for the listener.
+	 */
+	private boolean isExcluded(GlobIndex index, TreeSpyListener listener, Path path) {
+		if (!index.hasExcludes(listener))
+			return false;
+		Path relative = relativize(listener, path);
+		return !relative.toString().isEmpty() && index.isExcluded(listener, relative);
+	}
+
+	/**
+	 * Indicates whether the specified directory already has a matching
+	 * WatchKey.
+	 * 
+	 * @param directory
+	 *            The path to check.
+	 * @return True if there is an existing WatchKey for the path.
+	 */
+	public boolean isWatched(Path directory) {
+		return watchKeys.contains(directory);
+	}
+
+	/**
+	 * Looks up the WatchKey registered for the specified directory.
+	 * 
+	 * @param directory
+	 *            The directory to look up.
+	 * @return The WatchKey watching the directory, or null if it is not
+	 *         watched.
+	 */
+	public WatchKey getWatchKey(Path directory) {
+		return watchKeys.keyOf(directory);
+	}
+
+	/**
+	 * Indicates whether the specified directory already has attached listeners.
+	 * 
+	 * @param directory
+	 *            The path to check.
+	 * @return True if there are attached listeners to the path.
+	 */
+	private boolean isListened(Path directory) {
+		if (directoriesToListeners.containsKey(directory))
+			return !directoriesToListeners.get(directory).isEmpty();
+		return false;
+	}
+
+	/**
+	 * Registers the specified listeners to the specified path, and recursively
+	 * all subdirectories, if specified by the boolean. The tree is walked once
+	 * however many listeners are registered.
+	 * 
+	 * @param path
+	 *            The path to register the listeners against.
+	 * @param listeners
+	 *            The listeners to be registered.
+	 * @param all
+	 *            Whether or not to recurse and register the listeners against
+	 *            all subdirectories of the specified path.
+	 * @param found
+	 *            If not null, collects a CREATE for every entry found beneath
+	 *            the path.
+	 * @param catchUp
+	 *            If not null, compares each directory with its snapshot in
+	 *            the persistent index.
+	 * @throws IOException
+	 */
+	private void register(Path path, Collection<TreeSpyListener> listeners, boolean all, List<Change> found,
+			IndexCatchUp catchUp) throws IOException {
+
+		TreeSpyMetrics metrics = this.metrics;
+		long started = metrics == TreeSpyMetrics.NONE ? 0 : System.nanoTime();
+
+		AtomicLong registered = new AtomicLong();
+		FileVisitor<Path> visitor = makeVisitor(path, listeners, registered, found, catchUp);
+
+		if (!all)
+			visitor.preVisitDirectory(path, Files.readAttributes(path, BasicFileAttributes.class));
+		else if (registrationParallelism > 1)
+			ParallelFileTreeWalk.walk(getRegistrationPool(), path, visitor);
+		else
+			Files.walkFileTree(path, visitor);
+
+		if (started != 0)
+			metrics.treeRegistered(path, registered.get(), System.nanoTime() - started);
+
+		RegistrationProgressListener progress = registrationProgressListener;
+		if (progress != null)
+			progress.onProgress(path, registered.get(), true);
+	}
+
+	/**
+	 * Registers a directory which appeared in a watched tree with every
+	 * listener which watches that tree recursively. The walk is done on a
+	 * separate thread, so that events keep flowing while a large tree is
+	 * registered. Anything already inside the directory was created before it
+	 * could be watched, so a CREATE is delivered for each entry found; entries
+	 * created during the walk may be reported twice.
+	 * 
+	 * @param directory
+	 *            The new directory.
+	 * @param listeners
+	 *            The listeners of the directory's parent.
+	 */
+	private void registerNewDirectory(final Path directory, Set<TreeSpyListener> listeners) {
+		final List<TreeSpyListener> interested = new ArrayList<TreeSpyListener>();
+		for (TreeSpyListener listener : listeners) {
+			if (isRecursive(listener, directory))
+				interested.add(listener);
+		}
+		if (interested.isEmpty())
+			return;
+
+		getNewDirectoryExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				List<Change> found = Collections.synchronizedList(new ArrayList<Change>());
+				try {
+					register(directory, interested, true, found, null);
+				} catch (IOException ex) {
+					log.warn(String.format("Could not register %s", directory.toString()));
+				}
+				notifyFound(found);
+			}
+		});
+	}
+
+	/**
+	 * Delivers the CREATEs found while registering a new directory, through
+	 * the same path as real events.
+	 * 
+	 * @param found
+	 *            The entries found.
+	 */
+	private void notifyFound(List<Change> found) {
+		Map<Path, List<Change>> byDirectory = new LinkedHashMap<Path, List<Change>>();
+		synchronized (found) {
+			for (Change change : found) {
+				Path parent = change.getPath().getParent();
+				List<Change> changes = byDirectory.get(parent);
+				if (changes == null) {
+					changes = new ArrayList<Change>();
+					byDirectory.put(parent, changes);
+				}
+				changes.add(change);
+			}
+		}
+
+		synchronized (dispatchLock) {
+			EventCoalescer coalescer = this.coalescer;
+			for (Map.Entry<Path, List<Change>> entry : byDirectory.entrySet()) {
+				List<Change> changes = new ArrayList<Change>();
+				for (Change change : entry.getValue())
+					accept(entry.getKey(), change, coalescer, changes);
+				notifyListeners(entry.getKey(), changes);
+			}
+		}
+		awaitDispatchCapacity();
+	}
+
+	/**
+	 * Lazily creates the single thread on which new directories are
+	 * registered.
+	 * 
+	 * @return An ExecutorService with a single daemon thread.
+	 */
+	private synchronized ExecutorService getNewDirectoryExecutor() {
+		if (newDirectoryExecutor == null)
+			newDirectoryExecutor = Executors.newSingleThreadExecutor(new TreeSpyThreadFactory());
+		return newDirectoryExecutor;
+	}
+
+	/**
+	 * Lazily creates the pool used for parallel registration.
+	 * 
+	 * @return A ForkJoinPool with the configured parallelism.
+	 */
+	private synchronized ForkJoinPool getRegistrationPool() {
+		if (registrationPool == null)
+			registrationPool = new ForkJoinPool(registrationParallelism);
+		return registrationPool;
+	}
+
+	/**
+	 * Creates a FileVisitor that registers the specified callbacks at all
+	 * directories it visits. Each callback is carried down the tree until it
+	 * reaches a directory it excludes, and the walk stops wherever no callback
+	 * remains. The visitor is thread safe, so that it may be used for
+	 * parallel walks.
+	 * 
+	 * @param root
+	 *            The root of the tree being registered, for progress reports.
+	 * @param listeners
+	 *            The callbacks to be registered at any directories the visitor
+	 *            visits.
+	 * @param registered
+	 *            Counter of directories registered by the visitor.
+	 * @param found
+	 *            If not null, collects a CREATE for every entry beneath the
+	 *            root.
+	 * @param catchUp
+	 *            If not null, compares each directory with its snapshot in
+	 *            the persistent index.
+	 * @return A FileVisitor implementation that registers the callbacks where
+	 *         it visits.
+	 */
+	private FileVisitor<Path> makeVisitor(final Path root, final Collection<TreeSpyListener> listeners,
+			final AtomicLong registered, final List<Change> found, final IndexCatchUp catchUp) {
+		// The callbacks which reached each directory being walked.
+		final ConcurrentMap<Path, List<TreeSpyListener>> reached = new ConcurrentHashMap<Path, List<TreeSpyListener>>();
+
+		return new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Collection<TreeSpyListener> inherited = dir.equals(root) ? listeners : reached.get(dir.getParent());
+				if (inherited == null)
+					inherited = listeners;
+
+				// Excluded trees are never watched, so cost nothing at all.
+				final List<TreeSpyListener> attached = new ArrayList<TreeSpyListener>(inherited.size());
+				for (TreeSpyListener listener : inherited) {
+					if (!isExcluded(globIndex, listener, dir))
+						attached.add(listener);
+				}
+				if (attached.isEmpty())
+					return FileVisitResult.SKIP_SUBTREE;
+
+				// Attach the listeners before registering, so that a concurrent
+				// release of the directory sees them and keeps the key.
+				directoriesToListeners.compute(dir, new BiFunction<Path, Set<TreeSpyListener>, Set<TreeSpyListener>>() {
+					@Override
+					public Set<TreeSpyListener> apply(Path d, Set<TreeSpyListener> existing) {
+						if (existing == null)
+							existing = new CopyOnWriteArraySet<TreeSpyListener>();
+						existing.addAll(attached);
+						return existing;
+					}
+				});
+				if (!isWatched(dir))
+					watchKeys.put(registerKey(dir), dir);
+
+				if (keepsSnapshots() && !directoriesToSnapshots.containsKey(dir)) {
+					DirectorySnapshot current = snapshot(dir);
+					if (catchUp != null && current != null)
+						catchUp.compare(dir, current);
+				}
+
+				if (found != null && !dir.equals(root))
+					found.add(new Change(dir, Events.CREATE));
+
+				long count = registered.incrementAndGet();
+				RegistrationProgressListener progress = registrationProgressListener;
+				if (progress != null && count % PROGRESS_INTERVAL == 0)
+					progress.onProgress(root, count, false);
+
+				reached.put(dir, attached);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (found != null)
+					found.add(new Change(file, Events.CREATE));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				reached.remove(dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				reached.remove(file);
+				StringWriter sw = new StringWriter();
+				PrintWriter pw = new PrintWriter(sw);
+				exc.printStackTrace(pw);
+				log.warn(sw.toString());
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+		};
+	}
+
+	/**
+	 * Registers a directory with this spy's WatchService, or with the shared
+	 * engine, or for polling once the watch budget is spent.
+	 * 
+	 * @param directory
+	 *            The directory to watch.
+	 * @return The WatchKey for the directory.
+	 * @throws IOException
+	 *             If the filesystem objects to registration.
+	 */
+	private WatchKey registerKey(Path directory) throws IOException {
+		WatchRebalancer rebalancer = this.rebalancer;
+		return rebalancer == null ? registerNativeKey(directory) : rebalancer.register(directory);
+	}
+
+	/**
+	 * Registers a directory with the WatchService, or the shared engine.
+	 * 
+	 * @param directory
+	 *            The directory to watch.
+	 * @return The directory's WatchKey.
+	 * @throws IOException
+	 *             If the directory cannot be watched.
+	 */
+	private WatchKey registerNativeKey(Path directory) throws IOException {
+		if (engine != null)
+			return engine.register(directory, this);
+		if (watcher instanceof DirectoryRegistrar)
+			return ((DirectoryRegistrar) watcher).register(directory, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY,
+					OVERFLOW);
+		return directory.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY, OVERFLOW);
+	}
+
+	/**
+	 * Cancels a WatchKey, or releases it to the shared engine, which cancels
+	 * it once no other spy needs it.
+	 * 
+	 * @param key
+	 *            The key to cancel.
+	 */
+	private void cancel(WatchKey key) {
+		if (engine != null) {
+			engine.release(key, this);
+			return;
+		}
+
+		key.cancel();
+		WatchBudget budget = this.watchBudget;
+		if (budget != null)
+			budget.released(key);
+	}
+
+	/**
+	 * Attempts to notify all listeners of the specified key.
+	 * 
+	 * @param key
+	 */
+	private void notifyAll(WatchKey key) {
+		process(key, key.pollEvents());
+
+		// Reset key to allow subsequent monitoring.
+		if (!key.reset())
+			invalidate(key);
+	}
+
+	/**
+	 * Forgets a key which is no longer valid.
+	 * 
+	 * @param key
+	 *            The invalid key.
+	 */
+	void invalidate(WatchKey key) {
+		Path directory = watchKeys.directoryOf(key);
+		if (directory != null && watchKeys.keyOf(directory) == key) {
+			if (!directory.equals(key.watchable()) && Files.isDirectory(directory) && reregister(key, directory))
+				return;
+			log.warn(String.format("Invalid key - Directory %s is no longer accessible.", directory.toString()));
+			prune(directory);
+		} else {
+			watchKeys.remove(key);
+		}
+	}
+
+	/**
+	 * Registers a renamed directory again, when the key kept for it after the
+	 * rename has been cancelled all the same. Such a key watched the path the
+	 * directory was renamed from, so from then on keys are registered again
+	 * at the new path whenever a directory is renamed.
+	 * 
+	 * @param key
+	 *            The cancelled key.
+	 * @param directory
+	 *            The directory it was kept for, at its new path.
+	 * @return True if the directory is watched again.
+	 */
+	private boolean reregister(WatchKey key, Path directory) {
+		renamesFollowed = false;
+		watchKeys.remove(directory);
+		cancel(key);
+		try {
+			watchKeys.put(registerKey(directory), directory);
+		} catch (IOException ex) {
+			return false;
+		}
+		log.info(String.format("Registered %s again, as keys do not follow renames.", directory.toString()));
+		return true;
+	}
+
+	/**
+	 * Forgets a directory which has gone, and every watched directory beneath
+	 * it: their WatchKeys, listeners and snapshots.
+	 * 
+	 * @param directory
+	 *            The deleted directory.
+	 * @return The number of watched directories pruned.
+	 */
+	private int prune(Path directory) {
+		List<Path> subtree = watchKeys.subtree(directory);
+		for (Path dir : subtree) {
+			directoriesToListeners.remove(dir);
+			directoriesToSnapshots.remove(dir);
+			WatchKey key = watchKeys.remove(dir);
+			if (key != null)
+				cancel(key);
+		}
+		if (!subtree.isEmpty() && log.isDebugEnabled())
+			log.debug(String.format("Pruned %d watched directories under %s", subtree.size(), directory.toString()));
+		return subtree.size();
+	}
+
+	/**
+	 * Moves everything held for a watched directory which has been renamed,
+	 * and for every watched directory beneath it, to their new paths. Keys
+	 * which watch a path rather than the directory itself are registered
+	 * again at the new path.
+	 * 
+	 * @param source
+	 *            The old path of the directory.
+	 * @param target
+	 *            The new path of the directory.
+	 */
+	private void rekey(Path source, Path target) {
+		boolean follows = keysFollowRenames();
+		for (Path dir : watchKeys.subtree(source)) {
+			Path moved = target.resolve(source.relativize(dir));
+
+			Set<TreeSpyListener> listeners = directoriesToListeners.remove(dir);
+			if (listeners != null)
+				directoriesToListeners.put(moved, listeners);
+			DirectorySnapshot snapshot = directoriesToSnapshots.remove(dir);
+			if (snapshot != null)
+				directoriesToSnapshots.put(moved, snapshot);
+
+			WatchKey key = watchKeys.remove(dir);
+			if (key == null)
+				continue;
+			if (follows) {
+				watchKeys.put(key, moved);
+				continue;
+			}
+			cancel(key);
+			try {
+				watchKeys.put(registerKey(moved), moved);
+			} catch (IOException ex) {
+				log.warn(String.format("Could not register %s", moved.toString()));
+			}
+		}
+	}
+
+	/**
+	 * Indicates whether this spy's WatchKeys keep watching a directory after
+	 * it is renamed. A {@link DirectoryRegistrar} says so itself. The JDK's
+	 * WatchServices are assumed to, as its native ones watch the directory
+	 * itself, until a key kept across a rename is cancelled while its
+	 * directory is still there, as the JDK's polling fallback does to keys of
+	 * paths which have gone.
+	 * 
+	 * @return True if keys follow their directory when it is renamed.
+	 */
+	private boolean keysFollowRenames() {
+		// Polled directories are watched by path.
+		if (watchBudget != null || !renamesFollowed)
+			return false;
+		if (watcher instanceof DirectoryRegistrar)
+			return ((DirectoryRegistrar) watcher).followsRenames();
+		return engine == null && watcher != null;
+	}
+
+	/**
+	 * @return The number of directories currently watched by this spy.
+	 */
+	public int getWatchedDirectoryCount() {
+		return watchKeys.size();
+	}
+
+	/**
+	 * @return True if {@link #tick(long)} may have work to do: coalesced
+	 *         events or DELETEs are held, directories are polled, or the
+	 *         table of snapshot names is due to be compacted.
+	 */
+	boolean needsTick() {
+		EventCoalescer coalescer = this.coalescer;
+		MoveDetector moves = this.moveDetector;
+		return (coalescer != null && !coalescer.isEmpty()) || (moves != null && !moves.isEmpty())
+				|| watchBudget != null || snapshotNames.size() > namesToCompact;
+	}
+
+	/**
+	 * Flushes any coalesced events which have gone quiet, and delivers any
+	 * DELETEs which were not paired into moves in time. Called regularly,
+	 * by one thread at a time: the spy's poller, or the shared engine's
+	 * ticker.
+	 * 
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 */
+	void tick(long now) {
+		EventCoalescer coalescer = this.coalescer;
+		if (coalescer != null)
+			flush(coalescer, now);
+		MoveDetector moves = this.moveDetector;
+		if (moves != null)
+			expire(moves.expire(now));
+
+		WatchRebalancer rebalancer = this.rebalancer;
+		if (rebalancer != null) {
+			WatchBudget budget = rebalancer.getBudget();
+			for (WatchKey key = budget.pollCold(); key != null; key = budget.pollCold()) {
+				notifyAll(key);
+			}
+			if (budget.isRebalanceDue(now))
+				rebalancer.rebalance(watchKeys, now);
+		}
+
+		if (snapshotNames.size() > namesToCompact)
+			compactSnapshotNames();
+	}
+
+	/**
+	 * Replaces the table of snapshot names with one holding only the names
+	 * still in use, if most of those it holds are not. Names are never
+	 * released, so without this a tree whose files come and go would grow
+	 * the table for the life of the spy.
+	 */
+	private void compactSnapshotNames() {
+		long live = 0;
+		ConcurrentMap<Path, DirectorySnapshot> restored = this.restored;
+		for (DirectorySnapshot snapshot : directoriesToSnapshots.values()) {
+			live += snapshot.size();
+		}
+		if (restored != null) {
+			for (DirectorySnapshot snapshot : restored.values()) {
+				live += snapshot.size();
+			}
+		}
+
+		NameTable previous = snapshotNames;
+		if (previous.size() > 2 * live) {
+			NameTable fresh = new NameTable();
+			// Snapshots are only updated under the dispatch lock, so no update
+			// is lost in the copy. Those scanned meanwhile keep the old table
+			// until the next compaction, which is harmless.
+			synchronized (dispatchLock) {
+				snapshotNames = fresh;
+				internAll(directoriesToSnapshots, fresh);
+				if (restored != null)
+					internAll(restored, fresh);
+			}
+			log.debug(String.format("Compacted snapshot names from %d to %d", previous.size(), fresh.size()));
+		}
+		namesToCompact = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_NAMES_TO_COMPACT, 2 * live));
+	}
+
+	private static void internAll(ConcurrentMap<Path, DirectorySnapshot> snapshots, NameTable table) {
+		for (Map.Entry<Path, DirectorySnapshot> entry : snapshots.entrySet()) {
+			DirectorySnapshot snapshot = entry.getValue();
+			// Unless replaced by a fresh snapshot meanwhile.
+			snapshots.replace(entry.getKey(), snapshot, snapshot.internedIn(table));
+		}
+	}
+
+	/**
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 * @return How long until {@link #tick(long)} next has work to do, or -1 if
+	 *         it never will.
+	 */
+	private long nanosUntilNextTick(long now) {
+		long wait = -1;
+		EventCoalescer coalescer = this.coalescer;
+		if (coalescer != null)
+			wait = coalescer.nanosUntilNextFlush(now);
+		MoveDetector moves = this.moveDetector;
+		if (moves != null) {
+			long expiry = moves.nanosUntilNextExpiry(now);
+			wait = wait < 0 ? expiry : Math.min(wait, expiry);
+		}
+		// Polled directories signal a WatchService of their own.
+		WatchBudget budget = this.watchBudget;
+		if (budget != null) {
+			long due = Math.min(COLD_POLL_NANOS, budget.nanosUntilRebalance(now));
+			wait = wait < 0 ? due : Math.min(wait, due);
+		}
+		return wait;
+	}
+
+	/**
+	 * Notifies all listeners of the events drained from the specified key.
+	 * Resetting the key is left to the caller.
+	 * 
+	 * @param key
+	 *            The key the events were drained from.
+	 * @param events
+	 *            The drained events.
+	 */
+	void process(WatchKey key, List<WatchEvent<?>> events) {
+		TreeSpyMetrics metrics = this.metrics;
+		long taken = metrics == TreeSpyMetrics.NONE ? 0 : System.nanoTime();
+
+		synchronized (dispatchLock) {
+			processEvents(key, events, metrics, taken);
+		}
+		awaitDispatchCapacity();
+
+		if (taken != 0)
+			metrics.keyProcessed(events.size(), System.nanoTime() - taken);
+	}
+
+	private void processEvents(WatchKey key, List<WatchEvent<?>> events, TreeSpyMetrics metrics, long taken) {
+		Path directory = watchKeys.directoryOf(key);
+
+		// The key may have been dropped from the index, by reset() for
+		// instance, after it was signalled.
+		if (directory == null)
+			return;
+
+		Set<TreeSpyListener> listeners = directoriesToListeners.get(directory);
+		if (listeners == null)
+			listeners = Collections.emptySet();
+
+		WatchBudget budget = this.watchBudget;
+		if (budget != null)
+			budget.touch(directory, System.nanoTime());
+
+		EventCoalescer coalescer = this.coalescer;
+		List<Change> changes = new ArrayList<Change>();
+
+		for (WatchEvent<?> event : events) {
+			// Find the directory or file referenced by this WatchEvent
+			WatchEvent<Path> ev = cast(event);
+			Path filename = ev.context();
+			Kind<?> kind = event.kind();
+			Events type = Events.kindToEvent(kind);
+			metrics.eventReceived(type);
+
+			// OVERFLOW carries no context, so attribute it to the directory.
+			if (kind == OVERFLOW) {
+				if (overflowRecovery) {
+					for (Change change : recover(directory, listeners))
+						accept(directory, change, coalescer, changes);
+				} else {
+					accept(directory, new Change(directory, Events.OVERFLOW, taken), coalescer, changes);
+				}
+				continue;
+			}
+
+			Path child = directory.resolve(filename);
 
-	private Executor daemonExecutor;
-	private ExecutorService callbackExecutorService;
+			// A DELETE may be held back to pair with a later CREATE, and a
+			// CREATE may complete a move. Either way the snapshot is updated.
+			MoveDetector moves = this.moveDetector;
+			boolean snapshotUpdated = false;
+			if (moves != null && kind != ENTRY_MODIFY) {
+				if (detectMove(moves, directory, filename, kind, coalescer, changes))
+					continue;
+				snapshotUpdated = true;
+			}
 
-	private boolean runCallbacksOnDaemonThread = true;
+			// Find out ahead of time if a new directory has been created.
+			boolean newDirectory = kind == ENTRY_CREATE && Files.isDirectory(child, NOFOLLOW_LINKS);
 
-	/**
-	 * Constructs a directory spy using the provided executor to orchestrate the
-	 * background task.
-	 * 
-	 * @param daemonExecutor
-	 * @throws IOException
-	 */
-	public TreeSpyJSE7StdLib(Executor daemonExecutor, WatchService watcher) throws IOException {
-		this.daemonExecutor = daemonExecutor;
-		this.watcher = watcher;
+			// If a new directory was created, register it and any
+			// subdirectories straight away, even if notification is deferred.
+			if (newDirectory)
+				registerNewDirectory(child, listeners);
 
-		// Initialise maps
-		this.watchKeysToDirectories = new ConcurrentHashMap<WatchKey, Path>();
-		this.directoriesToListeners = new ConcurrentHashMap<Path, Set<TreeSpyListener>>();
-		this.callbacksToGlobMatchers = new ConcurrentHashMap<TreeSpyListener, Set<PathMatcher>>();
-	}
+			// Drop everything held for a deleted directory's subtree now,
+			// rather than waiting for each of its keys to become invalid.
+			if (kind == ENTRY_DELETE)
+				prune(child);
 
-	/**
-	 * Constructs a directory spy using the provided executor to orchestrate the
-	 * background task, and the provided ExecutorService to execute callbacks.
-	 * 
-	 * @param daemonExecutor
-	 * @param callbackExecutorService
-	 * @throws IOException
-	 */
-	public TreeSpyJSE7StdLib(Executor daemonExecutor, WatchService watcher, ExecutorService callbackExecutorService)
-			throws IOException {
-		this(daemonExecutor, watcher);
-		this.callbackExecutorService = callbackExecutorService;
-		// In the default case, we don't use an executorservice, it needs to be
-		// explicitly told.
-		runCallbacksOnDaemonThread = false;
+			if (keepsSnapshots() && !snapshotUpdated)
+				updateSnapshot(directory, filename);
+
+			accept(directory, new Change(child, type, taken), coalescer, changes);
+		}
+
+		notifyListeners(directory, changes);
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Holds back a DELETE until it can be paired with a CREATE, or pairs a
+	 * CREATE with a DELETE held back earlier to make a MOVE. Entries are
+	 * paired by the file key recorded in the snapshot of their directory. A
+	 * moved directory keeps its WatchKeys, listeners and snapshots under its
+	 * new path rather than being registered afresh.
+	 * 
+	 * @param moves
+	 *            The move detector.
+	 * @param directory
+	 *            The watched directory the event was signalled on.
+	 * @param filename
+	 *            The name of the entry which changed.
+	 * @param kind
+	 *            ENTRY_CREATE or ENTRY_DELETE.
+	 * @param coalescer
+	 *            The coalescer, or null if coalescing is disabled.
+	 * @param changes
+	 *            The batch for the current key.
+	 * @return True if the event was consumed, false if it should be handled
+	 *         as usual.
 	 */
-	public void reset() throws IOException {
-		stop();
+	private boolean detectMove(MoveDetector moves, Path directory, Path filename, Kind<?> kind,
+			EventCoalescer coalescer, List<Change> changes) {
+		DirectorySnapshot snapshot = directoriesToSnapshots.get(directory);
+		if (snapshot == null)
+			return false;
+
+		String name = filename.toString();
+		Path child = directory.resolve(filename);
+
+		if (kind == ENTRY_DELETE) {
+			// The snapshot still knows what was deleted, until it is updated.
+			long inode = snapshot.inode(name);
+			boolean wasDirectory = snapshot.isDirectory(name);
+			snapshot.update(directory, name);
+			if (inode == 0)
+				return false;
+
+			MoveDetector.PendingDelete displaced = moves.offerDelete(directory, child, snapshot.getDevice(), inode,
+					wasDirectory, System.nanoTime());
+			if (displaced != null)
+				expire(Collections.singletonList(displaced));
+			return true;
+		}
 
-		for (WatchKey key : watchKeysToDirectories.keySet()) {
-			key.cancel();
+		snapshot.update(directory, name);
+		MoveDetector.PendingDelete source = moves.matchCreate(snapshot.getDevice(), snapshot.inode(name));
+		if (source == null)
+			return false;
+
+		if (source.isDirectory) {
+			rekey(source.path, child);
+
+			// Listeners of the new parent which did not watch the old one have
+			// never seen the moved tree, so it is new to them.
+			Set<TreeSpyListener> attached = directoriesToListeners.get(child);
+			Set<TreeSpyListener> missing = new CopyOnWriteArraySet<TreeSpyListener>(listenersOf(directory));
+			if (attached != null)
+				missing.removeAll(attached);
+			if (!missing.isEmpty())
+				registerNewDirectory(child, missing);
 		}
 
-		watchKeysToDirectories = new ConcurrentHashMap<WatchKey, Path>();
-		directoriesToListeners = new ConcurrentHashMap<Path, Set<TreeSpyListener>>();
-		callbacksToGlobMatchers = new ConcurrentHashMap<TreeSpyListener, Set<PathMatcher>>();
+		accept(directory, Change.move(source.path, child), coalescer, changes);
+
+		// Listeners which only watched the old path saw it deleted.
+		if (!source.directory.equals(directory)) {
+			Set<TreeSpyListener> left = new CopyOnWriteArraySet<TreeSpyListener>(listenersOf(source.directory));
+			left.removeAll(listenersOf(directory));
+			notifyListeners(left, Collections.singletonList(new Change(source.path, Events.DELETE)));
+		}
+		return true;
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Delivers DELETEs which were held back for move detection but not
+	 * paired, pruning any deleted directories.
+	 * 
+	 * @param deletes
+	 *            The DELETEs to deliver.
 	 */
-	public void watchRecursive(File directory, TreeSpyListener callback) throws IOException {
-		this.watch(directory, callback, true);
+	private void expire(List<MoveDetector.PendingDelete> deletes) {
+		if (deletes.isEmpty())
+			return;
+
+		synchronized (dispatchLock) {
+			EventCoalescer coalescer = this.coalescer;
+			Map<Path, List<Change>> byDirectory = new LinkedHashMap<Path, List<Change>>();
+			for (MoveDetector.PendingDelete delete : deletes) {
+				if (delete.isDirectory)
+					prune(delete.path);
+				List<Change> changes = byDirectory.get(delete.directory);
+				if (changes == null) {
+					changes = new ArrayList<Change>();
+					byDirectory.put(delete.directory, changes);
+				}
+				accept(delete.directory, new Change(delete.path, Events.DELETE), coalescer, changes);
+			}
+
+			for (Map.Entry<Path, List<Change>> entry : byDirectory.entrySet()) {
+				notifyListeners(entry.getKey(), entry.getValue());
+			}
+		}
+		awaitDispatchCapacity();
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * @param directory
+	 *            A watched directory.
+	 * @return The listeners of the directory, or an empty set.
 	 */
-	public void watchJust(File directory, TreeSpyListener callback) throws IOException {
-		this.watch(directory, callback, false);
+	private Set<TreeSpyListener> listenersOf(Path directory) {
+		Set<TreeSpyListener> listeners = directoriesToListeners.get(directory);
+		return listeners == null ? Collections.<TreeSpyListener> emptySet() : listeners;
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Queues a change for delivery, either by holding it in the coalescer or
+	 * adding it to the batch for the current key.
+	 * 
+	 * @param directory
+	 *            The watched directory the change was signalled on.
+	 * @param change
+	 *            The change.
+	 * @param coalescer
+	 *            The coalescer, or null if coalescing is disabled.
+	 * @param changes
+	 *            The batch for the current key.
 	 */
-	public void watchRecursive(File directory, TreeSpyListener callback, String... globs) throws IOException {
-		registerGlobs(callback, globs);
-		this.watch(directory, callback, true);
+	private void accept(Path directory, Change change, EventCoalescer coalescer, List<Change> changes) {
+		// A MOVE names two paths, so cannot be merged with anything else.
+		if (coalescer != null && change.getEvent() != Events.OVERFLOW && change.getEvent() != Events.MOVE)
+			coalescer.offer(directory, change.getPath(), change.getEvent(), System.nanoTime());
+		else
+			changes.add(change);
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Takes a fresh snapshot of the specified directory.
+	 * 
+	 * @param directory
+	 *            The directory to snapshot.
+	 * @return The new snapshot, or null if the directory could not be read.
 	 */
-	public void watchJust(File directory, TreeSpyListener callback, String... globs) throws IOException {
-		registerGlobs(callback, globs);
-		this.watch(directory, callback, false);
+	private DirectorySnapshot snapshot(Path directory) {
+		try {
+			DirectorySnapshot snapshot = DirectorySnapshot.scan(directory, snapshotNames);
+			directoriesToSnapshots.put(directory, snapshot);
+			return snapshot;
+		} catch (IOException ex) {
+			log.warn(String.format("Could not snapshot %s", directory.toString()));
+			return null;
+		}
 	}
 
 	/**
-	 * Actual impelementation method for directory watching.
+	 * Brings the snapshot entry for a single child up to date.
 	 * 
 	 * @param directory
-	 *            The directory to watch.
-	 * @param callback
-	 *            The listener to be notified in case of events.
-	 * @param recursive
-	 *            Whether or not to recursuively watch subdirectories.
-	 * @throws IOException
-	 *             If the filesystem objects to registration.
+	 *            The watched directory.
+	 * @param filename
+	 *            The name of the child which changed.
 	 */
-	private void watch(File directory, TreeSpyListener callback, boolean recursive) throws IOException {
-		if (!directory.isDirectory())
-			throw new IllegalArgumentException("Path must be a directory");
-
-		Path path = directory.toPath();
-		if (!isWatched(path))
-			register(path, callback, recursive);
-
-		if (!running.get())
-			start();
-
-		log.info(String.format("Watching %s%s", path.toString(), recursive ? " and subdirectories." : "."));
+	private void updateSnapshot(Path directory, Path filename) {
+		DirectorySnapshot snapshot = directoriesToSnapshots.get(directory);
+		if (snapshot != null)
+			snapshot.update(directory, filename.toString());
 	}
 
 	/**
-	 * Registers a mapping between the specified listener and it's set of globs.
+	 * Recovers from an OVERFLOW by rescanning the specified directory and
+	 * comparing it with its snapshot. Any subdirectories which are not yet
+	 * watched are registered with the directory's listeners.
 	 * 
-	 * @param callback
-	 *            The listener to be notified pending evaluation of the globs.
-	 * @param globs
-	 *            The globs with which to restrict this listener.
+	 * @param directory
+	 *            The directory whose events overflowed.
+	 * @param listeners
+	 *            The listeners of the directory.
+	 * @return The changes missed during the overflow, or a single OVERFLOW if
+	 *         they cannot be determined.
 	 */
-	private void registerGlobs(TreeSpyListener callback, String[] globs) {
-		if (!callbacksToGlobMatchers.containsKey(callback))
-			callbacksToGlobMatchers.put(callback, new HashSet<PathMatcher>());
+	private List<Change> recover(Path directory, Set<TreeSpyListener> listeners) {
+		DirectorySnapshot previous = directoriesToSnapshots.get(directory);
+		DirectorySnapshot current = snapshot(directory);
 
-		Set<PathMatcher> storedMatchers = callbacksToGlobMatchers.get(callback);
-		for (String glob : globs) {
-			if (!glob.startsWith("glob:"))
-				glob = "glob:" + glob;
-			PathMatcher matcher = FileSystems.getDefault().getPathMatcher(glob);
-			storedMatchers.add(matcher);
+		if (previous == null || current == null)
+			return Collections.singletonList(new Change(directory, Events.OVERFLOW));
+
+		for (String name : current.names()) {
+			Path child = directory.resolve(name);
+			if (current.isDirectory(name) && !isWatched(child))
+				registerNewDirectory(child, listeners);
 		}
+
+		List<Change> missed = previous.diff(current, directory);
+		log.info(String.format("Recovered %d missed events in %s after overflow", missed.size(), directory.toString()));
+		return missed;
 	}
 
 	/**
-	 * Indicates whether the specified directory already has a matching
-	 * WatchKey.
+	 * Notifies every listener of the specified directory of a batch of
+	 * changes. Each listener receives only the changes matching its globs,
+	 * split into batches of at most the maximum batch size.
 	 * 
 	 * @param directory
-	 *            The path to check.
-	 * @return True if there is an existing WatchKey for the path.
+	 *            The watched directory the changes were signalled on.
+	 * @param changes
+	 *            The changes with which to notify the listeners.
 	 */
-	private boolean isWatched(Path directory) {
-		return watchKeysToDirectories.containsValue(directory);
+	private void notifyListeners(Path directory, List<Change> changes) {
+		Set<TreeSpyListener> listeners = directoriesToListeners.get(directory);
+		if (listeners != null)
+			notifyListeners(listeners, changes);
 	}
 
 	/**
-	 * Indicates whether the specified directory already has attached listeners.
+	 * Notifies the specified listeners of a batch of changes.
 	 * 
-	 * @param directory
-	 *            The path to check.
-	 * @return True if there are attached listeners to the path.
+	 * @param listeners
+	 *            The listeners to notify.
+	 * @param changes
+	 *            The changes with which to notify the listeners.
 	 */
-	private boolean isListened(Path directory) {
-		if (directoriesToListeners.containsKey(directory))
-			return !directoriesToListeners.get(directory).isEmpty();
-		return false;
+	private void notifyListeners(Set<TreeSpyListener> listeners, List<Change> changes) {
+		if (changes.isEmpty() || listeners.isEmpty())
+			return;
+
+		RingBufferEventBus eventBus = this.eventBus;
+		ContentFilter contentFilter = this.contentFilter;
+
+		// Each listener on the event bus selects its own changes, on its own
+		// thread.
+		if (eventBus != null) {
+			eventBus.publish(listeners, changes);
+			if (contentFilter == null)
+				return;
+		}
+
+		CompletableFuture<Set<Change>> unchanged = null;
+		for (Map.Entry<TreeSpyListener, List<Change>> entry : match(listeners, changes).entrySet()) {
+			TreeSpyListener listener = entry.getKey();
+			List<Change> matching = entry.getValue();
+
+			// Listeners suppressing unchanged MODIFY events wait for the
+			// batch to be fingerprinted, which is done once for all of them.
+			if (contentFilter != null && contentFilter.filters(listener)) {
+				if (unchanged == null)
+					unchanged = contentFilter.examine(changes);
+				contentFilter.deliver(listener, matching, unchanged);
+			} else if (eventBus == null) {
+				dispatch(listener, matching);
+			}
+		}
 	}
 
 	/**
-	 * Register the specified listener to the specified path, and recursively
-	 * all subdirectories, if specified by the boolean.
+	 * Hands a listener's changes to its dispatch queue or, without one,
+	 * notifies it in batches of at most the maximum batch size.
 	 * 
-	 * @param path
-	 *            The path to register the listener against.
 	 * @param listener
-	 *            The listener to be registered.
-	 * @param all
-	 *            Whether or not to recurse and register the listener against
-	 *            all subdirectories of the specified path.
-	 * @throws IOException
+	 *            The listener to notify.
+	 * @param matching
+	 *            The changes its globs allow.
 	 */
-	private void register(Path path, TreeSpyListener listener, boolean all) throws IOException {
-
-		FileVisitor<Path> visitor = makeVisitor(listener);
+	private void dispatch(TreeSpyListener listener, List<Change> matching) {
+		// The dispatcher queues, batches and orders changes itself.
+		ListenerDispatcher dispatcher = this.dispatcher;
+		if (dispatcher != null) {
+			dispatcher.dispatch(listener, matching);
+			return;
+		}
 
-		if (all)
-			Files.walkFileTree(path, visitor);
-		else
-			visitor.preVisitDirectory(path, Files.readAttributes(path, BasicFileAttributes.class));
+		int batchSize = maxBatchSize;
+		for (int from = 0; from < matching.size(); from += batchSize) {
+			List<Change> batch = Collections
+					.unmodifiableList(matching.subList(from, Math.min(matching.size(), from + batchSize)));
+
+			// If users have particularly heavy or frequent tasks in
+			// callbacks, this provides the option to pass them off to an
+			// executor service rather than clogging up the daemon thread.
+			if (this.runCallbacksOnDaemonThread) {
+				notify(listener, batch);
+			} else {
+				notifyAsync(listener, batch);
+			}
+		}
 	}
 
 	/**
-	 * Creates a FileVisitor that registers the specified callback at all
-	 * directories it visits.
+	 * Delivers any coalesced events whose paths have gone quiet, batched by
+	 * the directory they were signalled on.
 	 * 
-	 * @param listener
-	 *            A callback to be registered at any directories the visitor
-	 *            visits.
-	 * @return A FileVisitor implementation that registers the callback where it
-	 *         visits.
+	 * @param coalescer
+	 *            The coalescer to drain.
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
 	 */
-	private FileVisitor<Path> makeVisitor(final TreeSpyListener listener) {
-		return new SimpleFileVisitor<Path>() {
-
-			@Override
-			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-				WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY, OVERFLOW);
-				watchKeysToDirectories.put(key, dir);
-				if (!isListened(dir))
-					directoriesToListeners.put(dir, new LinkedHashSet<TreeSpyListener>());
+	private void flush(EventCoalescer coalescer, long now) {
+		synchronized (dispatchLock) {
+			flushEvents(coalescer, now);
+		}
+		awaitDispatchCapacity();
+	}
 
-				directoriesToListeners.get(dir).add(listener);
+	/**
+	 * Waits, if full dispatch queues block, until every listener's queue has
+	 * room. This is done only once the dispatch lock has been released, so
+	 * that a listener which reconfigures the spy from its callback cannot
+	 * deadlock the watcher.
+	 */
+	private void awaitDispatchCapacity() {
+		ListenerDispatcher dispatcher = this.dispatcher;
+		if (dispatcher != null && !Thread.holdsLock(dispatchLock))
+			dispatcher.awaitCapacity();
+	}
 
-				return FileVisitResult.CONTINUE;
+	private void flushEvents(EventCoalescer coalescer, long now) {
+		List<EventCoalescer.Pending> due = coalescer.drain(now);
+		if (due.isEmpty())
+			return;
+
+		Map<Path, List<Change>> byDirectory = new LinkedHashMap<Path, List<Change>>();
+		for (EventCoalescer.Pending pending : due) {
+			List<Change> changes = byDirectory.get(pending.directory);
+			if (changes == null) {
+				changes = new ArrayList<Change>();
+				byDirectory.put(pending.directory, changes);
 			}
+			changes.add(new Change(pending.path, pending.event, pending.firstSeen));
+		}
 
-			@Override
-			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-				StringWriter sw = new StringWriter();
-				PrintWriter pw = new PrintWriter(sw);
-				exc.printStackTrace(pw);
-				log.warn(sw.toString());
-				return FileVisitResult.SKIP_SUBTREE;
-			}
-		};
+		for (Map.Entry<Path, List<Change>> entry : byDirectory.entrySet()) {
+			notifyListeners(entry.getKey(), entry.getValue());
+		}
 	}
 
 	/**
-	 * Attempts to notify all listeners of the specified key.
+	 * Selects the changes which each listener's globs allow. Each change's
+	 * file name is matched against the globs of every listener in a single
+	 * lookup; relative globs and excludes are then checked only for the
+	 * listeners which have them. OVERFLOW is delivered to every listener
+	 * regardless of globs.
 	 * 
-	 * @param key
+	 * @param listeners
+	 *            The listeners to match for.
+	 * @param changes
+	 *            The candidate changes.
+	 * @return The matching changes of each listener, in listener order.
 	 */
-	private void notifyAll(WatchKey key) {
-		Path directory = watchKeysToDirectories.get(key);
-
-		Set<TreeSpyListener> listeners = directoriesToListeners.get(directory);
-
-		for (WatchEvent<?> event : key.pollEvents()) {
-			// Find the directory or file referenced by this WatchEvent
-			WatchEvent<Path> ev = cast(event);
-			Path filename = ev.context();
-			Path child = directory.resolve(filename);
-
-			Kind<?> kind = event.kind();
-
-			// Find out ahead of time if a new directory has been created.
-			boolean newDirectory = kind == ENTRY_CREATE && Files.isDirectory(child, NOFOLLOW_LINKS);
+	private Map<TreeSpyListener, List<Change>> match(Set<TreeSpyListener> listeners, List<Change> changes) {
+		GlobIndex index = globIndex;
+		Map<TreeSpyListener, List<Change>> matching = new LinkedHashMap<TreeSpyListener, List<Change>>();
+
+		// If there are NO globs or excludes, every change is delivered.
+		boolean anyFilters = false;
+		for (TreeSpyListener listener : listeners) {
+			boolean filtered = index.hasGlobs(listener) || index.hasExcludes(listener);
+			matching.put(listener, filtered ? new ArrayList<Change>() : changes);
+			anyFilters |= filtered;
+		}
+		if (!anyFilters)
+			return matching;
 
+		for (Change change : changes) {
+			boolean overflow = change.getEvent() == Events.OVERFLOW;
+			Set<TreeSpyListener> matched = overflow ? null : index.match(change.getPath().getFileName());
 			for (TreeSpyListener listener : listeners) {
-
-				Events eventType = Events.kindToEvent(kind);
-
-				// If users have particularly heavy or frequent tasks in
-				// callbacks, this provides the option to pass them off to an
-				// executor service rather than clogging up the daemon thread.
-				if (this.runCallbacksOnDaemonThread) {
-					notify(listener, child, eventType);
-				} else {
-					notifyAsync(listener, child, eventType);
-				}
-
-				// If a new directory was created, register it and any
-				// subdirectories.
-				if (newDirectory) {
-					try {
-						register(child, listener, true);
-					} catch (IOException ex) {
-						log.warn(String.format("Could not register %s", child.toString()));
-					}
-				}
+				List<Change> selected = matching.get(listener);
+				if (selected != changes && (overflow || accepts(index, listener, change.getPath(),
+						matched.contains(listener))))
+					selected.add(change);
 			}
+		}
+		return matching;
+	}
 
-			// Reset key to allow subsequent monitoring.
-			boolean valid = key.reset();
-
-			if (!valid) {
-				log.warn(String.format("Invalid key - Directory %s is no longer accessible.", directory.toString()));
-				watchKeysToDirectories.remove(key);
-			}
+	/**
+	 * Decides whether a listener with globs or excludes wants a change to the
+	 * specified path.
+	 * 
+	 * @param index
+	 *            The glob index.
+	 * @param listener
+	 *            The listener.
+	 * @param path
+	 *            The changed path.
+	 * @param nameMatched
+	 *            Whether one of the listener's file name globs matches.
+	 * @return True if the path is not excluded, and either the listener has no
+	 *         globs or one of them matches.
+	 */
+	private boolean accepts(GlobIndex index, TreeSpyListener listener, Path path, boolean nameMatched) {
+		if (isExcluded(index, listener, path))
+			return false;
+		if (!index.hasGlobs(listener) || nameMatched)
+			return true;
+		return index.hasRelativeGlobs(listener) && index.matchesRelative(listener, relativize(listener, path));
+	}
 
-		}
+	/**
+	 * Decides, for a single listener, whether it wants a change published on
+	 * the event bus. Listeners suppressing unchanged MODIFY events are served
+	 * by the content filter instead.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 * @param change
+	 *            The change.
+	 * @return True if the listener should receive the change.
+	 */
+	private boolean selects(TreeSpyListener listener, Change change) {
+		ContentFilter contentFilter = this.contentFilter;
+		if (contentFilter != null && contentFilter.filters(listener))
+			return false;
+
+		GlobIndex index = globIndex;
+		if (change.getEvent() == Events.OVERFLOW || !index.hasGlobs(listener) && !index.hasExcludes(listener))
+			return true;
+		Path path = change.getPath();
+		return accepts(index, listener, path, index.matches(listener, path.getFileName()));
 	}
 
 	/**
-	 * Notifies the specified listener with the data specified. The notification
-	 * work is done on the thread provided by the callback ExecutorService.
+	 * Notifies the specified listener of a batch of changes. The notification
+	 * work is done on the thread provided by the callback ExecutorService, as
+	 * a single task for the whole batch.
 	 * 
 	 * @param listener
 	 *            The listener to notify.
-	 * @param path
-	 *            The path with which to notify the listener.
-	 * @param eventType
-	 *            The type of event with which to notify the listener.
+	 * @param changes
+	 *            The changes with which to notify the listener.
 	 */
-	private void notifyAsync(final TreeSpyListener listener, final Path path, final Events eventType) {
+	private void notifyAsync(final TreeSpyListener listener, final List<Change> changes) {
 		callbackExecutorService.execute(new Runnable() {
 			@Override
 			public void run() {
-				TreeSpyJSE7StdLib.this.notify(listener, path, eventType);
+				TreeSpyJSE7StdLib.this.notify(listener, changes);
 			}
 		});
 	}
 
 	/**
-	 * Notifies the specified listener with the data specified. The notification
-	 * work is done synchronously, on the calling thread.
+	 * Notifies the specified listener of a batch of changes. The notification
+	 * work is done synchronously, on the calling thread, and timed if metrics
+	 * are being recorded.
 	 * 
 	 * @param listener
 	 *            The listener to notify.
-	 * @param path
-	 *            The path with which to notify the listener.
-	 * @param eventType
-	 *            The type of event with which to notify the listener.
+	 * @param changes
+	 *            The changes with which to notify the listener.
 	 */
-	private void notify(final TreeSpyListener listener, final Path path, final Events eventType) {
-
-		Set<PathMatcher> globs = callbacksToGlobMatchers.get(listener);
-
-		boolean noGlobs = globs == null || globs.isEmpty();
+	private void notify(final TreeSpyListener listener, final List<Change> changes) {
+		TreeSpyMetrics metrics = this.metrics;
+		if (metrics == TreeSpyMetrics.NONE) {
+			deliver(listener, changes);
+			return;
+		}
 
-		// LHS evaluated first. If there are NO globs, notify. If there ARE
-		// globs, then matches also needs to return true in order to notify.
-		if (noGlobs || matches(globs, path)) {
-			listener.onChange(path, eventType);
+		long started = System.nanoTime();
+		for (Change change : changes) {
+			if (change.getTimestamp() != 0)
+				metrics.changeDelivered(started - change.getTimestamp());
 		}
+		deliver(listener, changes);
+		metrics.callbackCompleted(listener, changes.size(), System.nanoTime() - started);
 	}
 
 	/**
-	 * Checks whether any of the globs match the given path.
+	 * Hands a batch of changes to a listener. Batch listeners receive the
+	 * batch whole; other listeners receive each change in turn.
 	 * 
-	 * @param globs
-	 *            A set of pathmatchers representing the globs to evaluate.
-	 * @param path
-	 *            The path to be evaluated.
-	 * @return True, if any of the globs match the path.
+	 * @param listener
+	 *            The listener to notify.
+	 * @param changes
+	 *            The changes with which to notify the listener.
 	 */
-	private boolean matches(Set<PathMatcher> globs, Path path) {
-		Path file = path.getFileName();
-		for (PathMatcher glob : globs) {
-			if (glob.matches(file))
-				return true;
+	private void deliver(TreeSpyListener listener, List<Change> changes) {
+		if (listener instanceof TreeSpyBatchListener) {
+			((TreeSpyBatchListener) listener).onChanges(changes);
+		} else {
+			for (Change change : changes) {
+				if (change.getEvent() == Events.MOVE)
+					listener.onMove(change.getSource(), change.getPath());
+				else
+					listener.onChange(change.getPath(), change.getEvent());
+			}
 		}
-		return false;
 	}
 
 	/**
@@ -405,24 +2281,151 @@ public class TreeSpyJSE7StdLib implements TreeSpy {
 	 * {@inheritDoc}
 	 */
 	public void start() {
-		daemonExecutor.execute(new WatchServiceRunnable(this));
-		running.set(true);
+		synchronized (lifecycleLock) {
+			switch (state) {
+			case CLOSED:
+				throw new IllegalStateException("Spy has been closed");
+			case RUNNING:
+				return;
+			case STOPPING:
+				// The poller has not exited yet, so it simply carries on.
+				state = State.RUNNING;
+				log.info("TreeSpy resumed spying.");
+				return;
+			default:
+				state = State.RUNNING;
+			}
+
+			if (engine != null) {
+				engine.attach(this);
+			} else {
+				pollerExited = new CountDownLatch(1);
+				daemonExecutor.execute(new WatchServiceRunnable(this, pollerExited));
+			}
+		}
 		log.info("TreeSpy started spying.");
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Stops delivering events, waking the poller thread if it is waiting for
+	 * the WatchService. Returns once the poller has exited, unless it is
+	 * still busy in a callback after several seconds. Directories stay
+	 * registered, so the spy can be started again.
 	 */
 	public void stop() {
-		if (running.get()) {
-			running.set(false);
-			log.info("TreeSpy stopped spying.");
+		CountDownLatch exited;
+		synchronized (lifecycleLock) {
+			if (state != State.RUNNING)
+				return;
+
+			if (engine != null) {
+				engine.detach(this);
+				state = State.STOPPED;
+				log.info("TreeSpy stopped spying.");
+				return;
+			}
+
+			state = State.STOPPING;
+			exited = wakePoller();
+		}
+
+		awaitPoller(exited);
+		log.info("TreeSpy stopped spying.");
+	}
+
+	/**
+	 * Stops the spy for good, releasing its WatchKeys and its own threads,
+	 * and closing its WatchService. A spy sharing an engine leaves the
+	 * engine open. If a persistent index is set, it is saved first.
+	 * 
+	 * @throws IOException
+	 *             If the WatchService cannot be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		State previous;
+		CountDownLatch exited = null;
+		synchronized (lifecycleLock) {
+			previous = state;
+			if (previous == State.CLOSED)
+				return;
+			state = State.CLOSED;
+
+			if (engine != null && previous == State.RUNNING)
+				engine.detach(this);
+			else if (engine == null && previous != State.STOPPED)
+				exited = wakePoller();
+		}
+
+		if (exited != null)
+			awaitPoller(exited);
+
+		try {
+			if (indexFile != null)
+				saveIndex();
+		} finally {
+			reset();
+			if (engine == null)
+				watcher.close();
+			WatchBudget budget = watchBudget;
+			if (budget != null)
+				budget.close();
+		}
+
+		synchronized (this) {
+			if (newDirectoryExecutor != null)
+				newDirectoryExecutor.shutdownNow();
+			if (registrationPool != null)
+				registrationPool.shutdownNow();
 		}
+		log.info("TreeSpy closed.");
 	}
 
 	/**
-	 * Runnable implementation for the background daemon thread. Can be lazily
-	 * killed by setting the AtomicBoolean in the outer class.
+	 * @return The current state of the spy.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Interrupts the poller if, and only if, it is waiting for the
+	 * WatchService, so that a callback running on the poller thread is never
+	 * interrupted. Must hold the lifecycle lock.
+	 * 
+	 * @return A latch released when the poller exits, or null if there is
+	 *         none to wait for.
+	 */
+	private CountDownLatch wakePoller() {
+		if (pollerParked && poller != null)
+			poller.interrupt();
+		// A callback stopping its own spy cannot wait for itself.
+		return Thread.currentThread() == poller ? null : pollerExited;
+	}
+
+	/**
+	 * Waits for the poller to exit, for a while.
+	 * 
+	 * @param exited
+	 *            The latch released when the poller exits, or null.
+	 */
+	private void awaitPoller(CountDownLatch exited) {
+		if (exited == null)
+			return;
+		try {
+			if (!exited.await(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+				log.warn(String.format("TreeSpy poller still busy after %d ms; it will exit once its callback returns.",
+						STOP_TIMEOUT_MILLIS));
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runnable implementation for the background daemon thread. Exactly one
+	 * runs while the spy is started; it decides whether to carry on under the
+	 * lifecycle lock, so that a spy restarted while it is still stopping
+	 * keeps the same poller rather than gaining a second.
 	 * 
 	 * @author wfaithfull
 	 *
@@ -431,26 +2434,88 @@ public class TreeSpyJSE7StdLib implements TreeSpy {
 
 		TreeSpyJSE7StdLib spy;
 
-		public WatchServiceRunnable(TreeSpyJSE7StdLib spy) {
+		private final CountDownLatch exited;
+		private boolean retired = false;
+
+		public WatchServiceRunnable(TreeSpyJSE7StdLib spy, CountDownLatch exited) {
 			this.spy = spy;
+			this.exited = exited;
 		}
 
 		public void run() {
-			while (running.get()) {
+			try {
+				while (park()) {
 
-				WatchKey key;
-				try {
-					key = spy.watcher.take();
-				} catch (InterruptedException ex) {
-					log.error("Thread was interrupted unexpectedly", ex);
-					return;
+					long wait = spy.nanosUntilNextTick(System.nanoTime());
+
+					WatchKey key = null;
+					try {
+						// Coalesced events and held DELETEs must be delivered
+						// even if nothing else happens, so only block until
+						// they are due.
+						if (wait < 0)
+							key = spy.watcher.take();
+						else
+							key = spy.watcher.poll(wait, TimeUnit.NANOSECONDS);
+					} catch (InterruptedException ex) {
+						// Woken by stop() or close(); park() decides whether to
+						// carry on.
+					} finally {
+						unpark();
+					}
+
+					if (key != null)
+						spy.notifyAll(key);
+
+					if (spy.needsTick())
+						spy.tick(System.nanoTime());
 				}
+			} catch (ClosedWatchServiceException ex) {
+				// Closed by close(), or by whoever owns the WatchService.
+			} finally {
+				retire();
+				exited.countDown();
+			}
+		}
 
-				spy.notifyAll(key);
+		/**
+		 * Marks the poller as waiting for the WatchService, unless the spy is
+		 * no longer running, in which case the poller retires.
+		 * 
+		 * @return True if the poller should carry on.
+		 */
+		private boolean park() {
+			synchronized (lifecycleLock) {
+				if (state != State.RUNNING) {
+					retire();
+					return false;
+				}
+				poller = Thread.currentThread();
+				pollerParked = true;
+				return true;
 			}
+		}
 
-			running.set(false);
+		/**
+		 * Marks the poller as busy, and clears any interrupt meant to wake it.
+		 */
+		private void unpark() {
+			synchronized (lifecycleLock) {
+				pollerParked = false;
+				Thread.interrupted();
+			}
 		}
 
+		private void retire() {
+			synchronized (lifecycleLock) {
+				if (retired)
+					return;
+				retired = true;
+				poller = null;
+				pollerParked = false;
+				if (state != State.CLOSED)
+					state = State.STOPPED;
+			}
+		}
 	}
 }
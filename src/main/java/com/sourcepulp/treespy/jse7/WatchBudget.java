@@ -0,0 +1,350 @@
+package com.sourcepulp.treespy.jse7;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sourcepulp.treespy.TreeSpy;
+import com.sourcepulp.treespy.poll.PollingWatchService;
+
+/**
+ * Keeps the number of native watches within a budget, such as the kernel's
+ * limit on inotify watches. Directories beyond the budget are cold: they are
+ * watched by a {@link PollingWatchService} instead, which reports the same
+ * events, only later. The budget also shrinks to fit if the kernel refuses a
+ * watch before it is reached.
+ *
+ * Every directory's activity is recorded as its events are processed, and
+ * the budget is periodically rebalanced: cold directories which have been
+ * active are promoted to native watches, making room if need be by demoting
+ * the native directories which have been quiet longest.
+ *
+ * The count of native watches is kept as keys are registered and cancelled,
+ * so may drift slightly if the same directory is registered concurrently.
+ *
+ * @author Will Faithfull
+ *
+ */
+class WatchBudget {
+
+	private static final Logger log = LoggerFactory.getLogger(TreeSpy.class);
+
+	private static final Path MAX_USER_WATCHES = Paths.get("/proc/sys/fs/inotify/max_user_watches");
+	private static final int MAX_PROMOTIONS = 64;
+
+	private volatile int limit;
+	private final long rebalanceInterval;
+	private final AtomicInteger nativeWatches = new AtomicInteger();
+
+	private final PollingWatchService poller;
+	private final ConcurrentMap<WatchKey, Path> coldKeys = new ConcurrentHashMap<WatchKey, Path>();
+	private final ConcurrentMap<Path, Activity> activity = new ConcurrentHashMap<Path, Activity>();
+
+	private long lastRebalance;
+
+	/**
+	 * When a directory last had events, and how many it has had since the
+	 * last rebalance.
+	 */
+	private static final class Activity {
+
+		volatile long lastEvent;
+		final AtomicInteger recent = new AtomicInteger();
+	}
+
+	/**
+	 * The directories to move between native watches and polling.
+	 */
+	static final class Plan {
+
+		final List<Path> promote;
+		final List<Path> demote;
+
+		Plan(List<Path> promote, List<Path> demote) {
+			this.promote = promote;
+			this.demote = demote;
+		}
+	}
+
+	/**
+	 * @param limit
+	 *            The most native watches to hold.
+	 * @param rebalanceInterval
+	 *            The nanoseconds between rebalances.
+	 */
+	WatchBudget(int limit, long rebalanceInterval) {
+		this.limit = limit;
+		this.rebalanceInterval = rebalanceInterval;
+		this.poller = new PollingWatchService();
+		this.lastRebalance = System.nanoTime();
+	}
+
+	/**
+	 * Reads the kernel's limit on inotify watches per user.
+	 *
+	 * @return The limit, or -1 if it is not known.
+	 */
+	static int systemLimit() {
+		try {
+			byte[] bytes = Files.readAllBytes(MAX_USER_WATCHES);
+			return Integer.parseInt(new String(bytes, StandardCharsets.US_ASCII).trim());
+		} catch (IOException | NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Takes a native watch from the budget, if one is left.
+	 *
+	 * @return True if a native watch may be registered.
+	 */
+	boolean tryReserveNative() {
+		while (true) {
+			int current = nativeWatches.get();
+			if (current >= limit)
+				return false;
+			if (nativeWatches.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Returns a native watch to the budget.
+	 */
+	void releaseNative() {
+		while (true) {
+			int current = nativeWatches.get();
+			if (current == 0 || nativeWatches.compareAndSet(current, current - 1))
+				return;
+		}
+	}
+
+	/**
+	 * Shrinks the budget to the native watches already held, after the
+	 * kernel refused another.
+	 *
+	 * @param directory
+	 *            The directory which could not be watched natively.
+	 * @param ex
+	 *            The reason.
+	 */
+	void refused(Path directory, IOException ex) {
+		int held = nativeWatches.get();
+		if (held < limit) {
+			limit = held;
+			log.warn(String.format("Could not watch %s natively (%s); polling beyond %d native watches",
+					directory.toString(), ex.getMessage(), held));
+		}
+	}
+
+	/**
+	 * Watches a directory by polling.
+	 *
+	 * @param directory
+	 *            The directory.
+	 * @return The polling key.
+	 * @throws IOException
+	 *             If the directory cannot be read.
+	 */
+	WatchKey registerCold(Path directory) throws IOException {
+		WatchKey key = poller.register(directory, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY, OVERFLOW);
+		coldKeys.put(key, directory);
+		return key;
+	}
+
+	/**
+	 * Accounts for a key which has been cancelled.
+	 *
+	 * @param key
+	 *            The key, native or polling.
+	 */
+	void released(WatchKey key) {
+		if (coldKeys.remove(key) == null)
+			releaseNative();
+	}
+
+	/**
+	 * @param key
+	 *            A key.
+	 * @return True if the key is polling a cold directory.
+	 */
+	boolean isCold(WatchKey key) {
+		return key != null && coldKeys.containsKey(key);
+	}
+
+	/**
+	 * @return The next signalled polling key, or null if there is none.
+	 */
+	WatchKey pollCold() {
+		return poller.poll();
+	}
+
+	/**
+	 * Records that a directory has had events.
+	 *
+	 * @param directory
+	 *            The directory.
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 */
+	void touch(Path directory, long now) {
+		Activity current = activity.get(directory);
+		if (current == null) {
+			Activity created = new Activity();
+			current = activity.putIfAbsent(directory, created);
+			if (current == null)
+				current = created;
+		}
+		current.lastEvent = now;
+		current.recent.incrementAndGet();
+	}
+
+	/**
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 * @return True if it is time to rebalance.
+	 */
+	boolean isRebalanceDue(long now) {
+		return now - lastRebalance >= rebalanceInterval;
+	}
+
+	/**
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 * @return The nanoseconds until the next rebalance.
+	 */
+	long nanosUntilRebalance(long now) {
+		return Math.max(0, lastRebalance + rebalanceInterval - now);
+	}
+
+	/**
+	 * Decides which cold directories to promote, those which have had events
+	 * since the last rebalance, busiest first, and which native directories
+	 * to demote to make room for them, quietest first. A native directory
+	 * which has been active since the last rebalance is never demoted.
+	 *
+	 * @param keys
+	 *            The keys of all watched directories.
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 * @return The plan.
+	 */
+	Plan plan(WatchKeyIndex keys, long now) {
+		final long since = lastRebalance;
+		lastRebalance = now;
+
+		final Map<Path, Integer> hot = new HashMap<Path, Integer>();
+		for (Path directory : coldKeys.values()) {
+			Activity current = activity.get(directory);
+			if (current != null && current.lastEvent > since)
+				hot.put(directory, current.recent.get());
+		}
+		for (Iterator<Map.Entry<Path, Activity>> it = activity.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Path, Activity> entry = it.next();
+			// Forget directories no longer watched at all.
+			if (!keys.contains(entry.getKey()))
+				it.remove();
+			else
+				entry.getValue().recent.set(0);
+		}
+		if (hot.isEmpty())
+			return new Plan(Collections.<Path> emptyList(), Collections.<Path> emptyList());
+
+		List<Path> promote = new ArrayList<Path>(hot.keySet());
+		Collections.sort(promote, new Comparator<Path>() {
+			@Override
+			public int compare(Path a, Path b) {
+				return Integer.compare(hot.get(b), hot.get(a));
+			}
+		});
+		if (promote.size() > MAX_PROMOTIONS)
+			promote = promote.subList(0, MAX_PROMOTIONS);
+
+		int free = Math.max(0, limit - nativeWatches.get());
+		int needed = promote.size() - free;
+		List<Path> demote = needed > 0 ? quietest(keys, needed, since) : Collections.<Path> emptyList();
+
+		promote = new ArrayList<Path>(promote.subList(0, Math.min(promote.size(), free + demote.size())));
+		return new Plan(promote, demote);
+	}
+
+	/**
+	 * Finds the native directories which have been quiet longest, keeping
+	 * only as many as are needed in a bounded heap.
+	 */
+	private List<Path> quietest(WatchKeyIndex keys, int count, long since) {
+		PriorityQueue<Path> heap = new PriorityQueue<Path>(count, new Comparator<Path>() {
+			@Override
+			public int compare(Path a, Path b) {
+				// The most recently active at the head, to be evicted first.
+				return Long.compare(lastEvent(b), lastEvent(a));
+			}
+		});
+		for (Path directory : keys.directories()) {
+			if (lastEvent(directory) > since || isCold(keys.keyOf(directory)))
+				continue;
+			heap.add(directory);
+			if (heap.size() > count)
+				heap.poll();
+		}
+		return new ArrayList<Path>(heap);
+	}
+
+	private long lastEvent(Path directory) {
+		Activity current = activity.get(directory);
+		return current == null ? Long.MIN_VALUE : current.lastEvent;
+	}
+
+	/**
+	 * @return The number of native watches held.
+	 */
+	int getNativeCount() {
+		return nativeWatches.get();
+	}
+
+	/**
+	 * @return The number of directories being polled.
+	 */
+	int getColdCount() {
+		return coldKeys.size();
+	}
+
+	/**
+	 * @return The most native watches to hold.
+	 */
+	int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Stops polling.
+	 *
+	 * @throws IOException
+	 *             If the poller cannot be closed.
+	 */
+	void close() throws IOException {
+		poller.close();
+	}
+}
@@ -0,0 +1,200 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bidirectional index between WatchKeys and the directories they watch, so
+ * that a directory can be looked up by key and a key by directory in constant
+ * time.
+ *
+ * Lookups are lock free. Updates are synchronized so that the two directions
+ * are always changed together.
+ *
+ * The index also links each directory to its parent, through any unwatched
+ * intermediate directories, so that every watched directory beneath a path
+ * can be found without scanning the whole index.
+ *
+ * @author Will Faithfull
+ *
+ */
+class WatchKeyIndex {
+
+	private final ConcurrentMap<WatchKey, Path> keysToDirectories = new ConcurrentHashMap<WatchKey, Path>();
+	private final ConcurrentMap<Path, WatchKey> directoriesToKeys = new ConcurrentHashMap<Path, WatchKey>();
+	private final Map<Path, Set<Path>> children = new HashMap<Path, Set<Path>>();
+
+	/**
+	 * Records that the specified key watches the specified directory,
+	 * replacing any previous mapping of either.
+	 *
+	 * @param key
+	 *            The WatchKey.
+	 * @param directory
+	 *            The directory watched by the key.
+	 */
+	synchronized void put(WatchKey key, Path directory) {
+		Path previousDirectory = keysToDirectories.put(key, directory);
+		if (previousDirectory != null && !previousDirectory.equals(directory)
+				&& directoriesToKeys.remove(previousDirectory, key))
+			unlink(previousDirectory);
+
+		WatchKey previousKey = directoriesToKeys.put(directory, key);
+		if (previousKey == null)
+			link(directory);
+		else if (!previousKey.equals(key))
+			keysToDirectories.remove(previousKey, directory);
+	}
+
+	/**
+	 * Removes the specified key and its directory.
+	 *
+	 * @param key
+	 *            The key to remove.
+	 * @return The directory the key watched, or null if it was not indexed.
+	 */
+	synchronized Path remove(WatchKey key) {
+		Path directory = keysToDirectories.remove(key);
+		if (directory != null && directoriesToKeys.remove(directory, key))
+			unlink(directory);
+		return directory;
+	}
+
+	/**
+	 * Removes the specified directory and its key.
+	 *
+	 * @param directory
+	 *            The directory to remove.
+	 * @return The key which watched the directory, or null if it was not
+	 *         indexed.
+	 */
+	synchronized WatchKey remove(Path directory) {
+		WatchKey key = directoriesToKeys.remove(directory);
+		if (key != null) {
+			keysToDirectories.remove(key, directory);
+			unlink(directory);
+		}
+		return key;
+	}
+
+	/**
+	 * Finds the specified directory, if it is watched, and every watched
+	 * directory beneath it.
+	 *
+	 * @param directory
+	 *            The root of the subtree.
+	 * @return The watched directories in the subtree, parents before their
+	 *         children.
+	 */
+	synchronized List<Path> subtree(Path directory) {
+		List<Path> found = new ArrayList<Path>();
+		Deque<Path> pending = new ArrayDeque<Path>();
+		pending.add(directory);
+		while (!pending.isEmpty()) {
+			Path next = pending.poll();
+			if (directoriesToKeys.containsKey(next))
+				found.add(next);
+			Set<Path> below = children.get(next);
+			if (below != null)
+				pending.addAll(below);
+		}
+		return found;
+	}
+
+	/**
+	 * @param key
+	 *            A WatchKey.
+	 * @return The directory watched by the key, or null.
+	 */
+	Path directoryOf(WatchKey key) {
+		return keysToDirectories.get(key);
+	}
+
+	/**
+	 * @param directory
+	 *            A directory.
+	 * @return The key watching the directory, or null.
+	 */
+	WatchKey keyOf(Path directory) {
+		return directoriesToKeys.get(directory);
+	}
+
+	/**
+	 * @param directory
+	 *            A directory.
+	 * @return True if the directory has a WatchKey.
+	 */
+	boolean contains(Path directory) {
+		return directoriesToKeys.containsKey(directory);
+	}
+
+	/**
+	 * @return A live view of all indexed keys.
+	 */
+	Set<WatchKey> keys() {
+		return keysToDirectories.keySet();
+	}
+
+	/**
+	 * @return A live view of all indexed directories.
+	 */
+	Set<Path> directories() {
+		return directoriesToKeys.keySet();
+	}
+
+	/**
+	 * @return The number of watched directories.
+	 */
+	int size() {
+		return directoriesToKeys.size();
+	}
+
+	/**
+	 * Links a newly indexed directory to its ancestors, stopping at the first
+	 * ancestor which already links to it.
+	 */
+	private void link(Path directory) {
+		Path child = directory;
+		Path parent = child.getParent();
+		while (parent != null) {
+			Set<Path> siblings = children.get(parent);
+			if (siblings == null) {
+				siblings = new HashSet<Path>();
+				children.put(parent, siblings);
+			}
+			if (!siblings.add(child))
+				return;
+			child = parent;
+			parent = child.getParent();
+		}
+	}
+
+	/**
+	 * Unlinks a directory which is no longer indexed, along with any
+	 * ancestors which were only linked to lead to it.
+	 */
+	private void unlink(Path directory) {
+		Path child = directory;
+		while (!directoriesToKeys.containsKey(child) && !children.containsKey(child)) {
+			Path parent = child.getParent();
+			Set<Path> siblings = parent == null ? null : children.get(parent);
+			if (siblings == null)
+				return;
+			siblings.remove(child);
+			if (!siblings.isEmpty())
+				return;
+			children.remove(parent);
+			child = parent;
+		}
+	}
+}
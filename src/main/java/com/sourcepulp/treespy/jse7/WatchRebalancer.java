@@ -0,0 +1,192 @@
+package com.sourcepulp.treespy.jse7;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sourcepulp.treespy.TreeSpy;
+
+/**
+ * Carries out a {@link WatchBudget} for a spy. Directories are watched
+ * natively while the budget allows, and polled once it does not or the
+ * WatchService refuses, and are moved between the two as the budget plans.
+ *
+ * @author Will Faithfull
+ *
+ */
+class WatchRebalancer {
+
+	private static final Logger log = LoggerFactory.getLogger(TreeSpy.class);
+
+	/**
+	 * What the rebalancer needs of the spy whose keys it moves.
+	 */
+	interface Keys {
+
+		/**
+		 * Registers a directory with the spy's WatchService.
+		 *
+		 * @param directory
+		 *            The directory to watch.
+		 * @return The directory's native WatchKey.
+		 * @throws IOException
+		 *             If the directory cannot be watched.
+		 */
+		WatchKey registerNative(Path directory) throws IOException;
+
+		/**
+		 * Cancels a key which has been replaced, releasing it from the
+		 * budget.
+		 *
+		 * @param key
+		 *            The key.
+		 */
+		void cancel(WatchKey key);
+
+		/**
+		 * Processes the events drained from a key.
+		 *
+		 * @param key
+		 *            The key.
+		 * @param events
+		 *            The events.
+		 */
+		void process(WatchKey key, List<WatchEvent<?>> events);
+
+		/**
+		 * @param directory
+		 *            A directory.
+		 * @return True if any listener still watches the directory.
+		 */
+		boolean isListened(Path directory);
+	}
+
+	private final WatchBudget budget;
+	private final Keys keys;
+
+	/**
+	 * @param budget
+	 *            The budget to carry out.
+	 * @param keys
+	 *            The spy whose keys are moved.
+	 */
+	WatchRebalancer(WatchBudget budget, Keys keys) {
+		this.budget = budget;
+		this.keys = keys;
+	}
+
+	/**
+	 * @return The budget carried out.
+	 */
+	WatchBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Registers a directory natively if the budget has a watch to spare, and
+	 * for polling otherwise. A directory the WatchService refuses for want of
+	 * watches is polled too.
+	 *
+	 * @param directory
+	 *            The directory to watch.
+	 * @return The WatchKey for the directory.
+	 * @throws IOException
+	 *             If the directory cannot be watched at all.
+	 */
+	WatchKey register(Path directory) throws IOException {
+		if (!budget.tryReserveNative())
+			return budget.registerCold(directory);
+
+		try {
+			return keys.registerNative(directory);
+		} catch (IOException ex) {
+			budget.releaseNative();
+			// Out of watches, rather than out of luck.
+			if (!Files.isDirectory(directory, NOFOLLOW_LINKS))
+				throw ex;
+			budget.refused(directory, ex);
+			return budget.registerCold(directory);
+		}
+	}
+
+	/**
+	 * Moves directories between native watches and polling, as planned by
+	 * the budget. Demotions come first, to free native watches for the
+	 * promotions. Each directory gets its new key before its old key is
+	 * cancelled, and anything already queued on the old key is processed, so
+	 * that no change is lost in between.
+	 *
+	 * @param watchKeys
+	 *            The keys of all watched directories.
+	 * @param now
+	 *            The current value of {@link System#nanoTime()}.
+	 */
+	void rebalance(WatchKeyIndex watchKeys, long now) {
+		WatchBudget.Plan plan = budget.plan(watchKeys, now);
+
+		int demoted = 0;
+		for (Path directory : plan.demote) {
+			WatchKey previous = watchKeys.keyOf(directory);
+			if (previous == null || budget.isCold(previous))
+				continue;
+			try {
+				swap(watchKeys, directory, previous, budget.registerCold(directory));
+				demoted++;
+			} catch (IOException ex) {
+				log.warn(String.format("Could not poll %s: %s", directory.toString(), ex.getMessage()));
+			}
+		}
+
+		int promoted = 0;
+		for (Path directory : plan.promote) {
+			WatchKey previous = watchKeys.keyOf(directory);
+			if (previous == null || !budget.isCold(previous) || !budget.tryReserveNative())
+				continue;
+			try {
+				swap(watchKeys, directory, previous, keys.registerNative(directory));
+				promoted++;
+			} catch (IOException ex) {
+				budget.releaseNative();
+				budget.refused(directory, ex);
+				break;
+			}
+		}
+
+		if (promoted + demoted > 0)
+			log.info(String.format("Promoted %d polled directories to native watches and demoted %d; %d native, %d polled",
+					promoted, demoted, budget.getNativeCount(), budget.getColdCount()));
+	}
+
+	/**
+	 * Replaces the key watching a directory.
+	 *
+	 * @param watchKeys
+	 *            The keys of all watched directories.
+	 * @param directory
+	 *            The directory.
+	 * @param previous
+	 *            Its current key.
+	 * @param replacement
+	 *            Its new key.
+	 */
+	private void swap(WatchKeyIndex watchKeys, Path directory, WatchKey previous, WatchKey replacement) {
+		List<WatchEvent<?>> queued = previous.pollEvents();
+		if (!queued.isEmpty())
+			keys.process(previous, queued);
+
+		watchKeys.put(replacement, directory);
+		keys.cancel(previous);
+
+		// Released meanwhile, in which case the new key must go too.
+		if (!keys.isListened(directory) && watchKeys.remove(replacement) != null)
+			keys.cancel(replacement);
+	}
+}
@@ -0,0 +1,81 @@
+package com.sourcepulp.treespy.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Point-in-time summary of a histogram of durations, in microseconds.
+ * Exposed through JMX as composite data.
+ *
+ * @author Will Faithfull
+ *
+ */
+public final class LatencySummary {
+
+	private final long count;
+	private final double meanMicros;
+	private final long p50Micros;
+	private final long p99Micros;
+	private final long maxMicros;
+
+	@ConstructorProperties({ "count", "meanMicros", "p50Micros", "p99Micros", "maxMicros" })
+	public LatencySummary(long count, double meanMicros, long p50Micros, long p99Micros, long maxMicros) {
+		this.count = count;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p99Micros = p99Micros;
+		this.maxMicros = maxMicros;
+	}
+
+	/**
+	 * Summarises a histogram of nanosecond durations.
+	 *
+	 * @param nanos
+	 *            The histogram.
+	 * @return The summary.
+	 */
+	public static LatencySummary of(Log2Histogram nanos) {
+		return new LatencySummary(nanos.getCount(), nanos.getMean() / 1000, nanos.getPercentile(0.5) / 1000,
+				nanos.getPercentile(0.99) / 1000, nanos.getMax() / 1000);
+	}
+
+	/**
+	 * @return The number of durations recorded.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The mean duration.
+	 */
+	public double getMeanMicros() {
+		return meanMicros;
+	}
+
+	/**
+	 * @return The median duration, to within a factor of two.
+	 */
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	/**
+	 * @return The 99th percentile duration, to within a factor of two.
+	 */
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	/**
+	 * @return The longest duration.
+	 */
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.1fus p50=%dus p99=%dus max=%dus", count, meanMicros, p50Micros, p99Micros,
+				maxMicros);
+	}
+}
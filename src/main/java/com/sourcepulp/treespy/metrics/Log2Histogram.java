@@ -0,0 +1,114 @@
+package com.sourcepulp.treespy.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Lock-free histogram of non-negative values, with one bucket per power of
+ * two. Recording a value is a few striped additions, so many threads can
+ * record at once without contending. Percentiles are accurate to within a
+ * factor of two, which is plenty to tell microseconds from milliseconds.
+ *
+ * @author Will Faithfull
+ *
+ */
+public final class Log2Histogram {
+
+	private static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	}, 0);
+
+	public Log2Histogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a value. Negative values, which a clock going backwards could
+	 * produce, are recorded as 0.
+	 *
+	 * @param value
+	 *            The value.
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		// Bucket b holds values in [2^(b-1), 2^b), and bucket 0 holds 0.
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * @return The number of values recorded.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return The mean of the values recorded, or 0 if there are none.
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0.0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @return The largest value recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Estimates a percentile as the upper bound of the bucket it falls in.
+	 *
+	 * @param quantile
+	 *            The quantile, between 0 and 1.
+	 * @return A value at least as large as the requested percentile, and no
+	 *         more than twice it; or 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double quantile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+				return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+}
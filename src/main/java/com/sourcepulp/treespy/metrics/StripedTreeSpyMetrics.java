@@ -0,0 +1,232 @@
+package com.sourcepulp.treespy.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+
+/**
+ * Metrics registry built from striped counters and {@link Log2Histogram}s, so
+ * that recording never takes a lock. It can be read directly, or registered
+ * with the platform MBeanServer and read over JMX.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class StripedTreeSpyMetrics implements TreeSpyMetrics, TreeSpyMetricsMXBean {
+
+	private final LongAdder[] events = new LongAdder[Events.values().length];
+
+	private final Log2Histogram processing = new Log2Histogram();
+	private final Log2Histogram delivery = new Log2Histogram();
+	private final Log2Histogram callbacks = new Log2Histogram();
+	private final ConcurrentMap<TreeSpyListener, Log2Histogram> callbacksByListener = new ConcurrentHashMap<TreeSpyListener, Log2Histogram>();
+	private final Log2Histogram registration = new Log2Histogram();
+	private final LongAdder directoriesRegistered = new LongAdder();
+
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	public StripedTreeSpyMetrics() {
+		for (int i = 0; i < events.length; i++) {
+			events[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Registers these metrics with the platform MBeanServer, under the domain
+	 * com.sourcepulp.treespy.
+	 *
+	 * @param name
+	 *            A name distinguishing this spy from any others.
+	 * @return The name the MBean was registered under.
+	 * @throws JMException
+	 *             If the MBean could not be registered.
+	 */
+	public ObjectName registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName("com.sourcepulp.treespy:type=TreeSpy,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * Removes an MBean registered by {@link #registerMBean(String)}.
+	 *
+	 * @param objectName
+	 *            The name the MBean was registered under.
+	 * @throws JMException
+	 *             If the MBean could not be unregistered.
+	 */
+	public void unregisterMBean(ObjectName objectName) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+	}
+
+	@Override
+	public void eventReceived(Events event) {
+		events[event.ordinal()].increment();
+	}
+
+	@Override
+	public void keyProcessed(int count, long nanos) {
+		processing.record(nanos);
+	}
+
+	@Override
+	public void changeDelivered(long nanosSinceTaken) {
+		delivery.record(nanosSinceTaken);
+	}
+
+	@Override
+	public void callbackCompleted(TreeSpyListener listener, int changes, long nanos) {
+		callbacks.record(nanos);
+
+		Log2Histogram histogram = callbacksByListener.get(listener);
+		if (histogram == null) {
+			Log2Histogram created = new Log2Histogram();
+			histogram = callbacksByListener.putIfAbsent(listener, created);
+			if (histogram == null)
+				histogram = created;
+		}
+		histogram.record(nanos);
+	}
+
+	@Override
+	public void listenerRemoved(TreeSpyListener listener) {
+		callbacksByListener.remove(listener);
+	}
+
+	@Override
+	public void treeRegistered(Path root, long directories, long nanos) {
+		registration.record(nanos);
+		directoriesRegistered.add(directories);
+	}
+
+	@Override
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * @param event
+	 *            A type of event.
+	 * @return The number of events of that type received.
+	 */
+	public long getEventCount(Events event) {
+		return events[event.ordinal()].sum();
+	}
+
+	/**
+	 * @return The histogram of take to onChange latency, in nanoseconds.
+	 */
+	public Log2Histogram getDeliveryHistogram() {
+		return delivery;
+	}
+
+	/**
+	 * @return The histogram of callback durations, in nanoseconds.
+	 */
+	public Log2Histogram getCallbackHistogram() {
+		return callbacks;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, Long> getEventCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (Events event : Events.values()) {
+			counts.put(event.name(), events[event.ordinal()].sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getOverflowCount() {
+		return getEventCount(Events.OVERFLOW);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public LatencySummary getProcessingTime() {
+		return LatencySummary.of(processing);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public LatencySummary getDeliveryLatency() {
+		return LatencySummary.of(delivery);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public LatencySummary getCallbackLatency() {
+		return LatencySummary.of(callbacks);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, LatencySummary> getCallbackLatencyByListener() {
+		Map<String, LatencySummary> summaries = new LinkedHashMap<String, LatencySummary>();
+		for (Map.Entry<TreeSpyListener, Log2Histogram> entry : callbacksByListener.entrySet()) {
+			summaries.put(entry.getKey().toString(), LatencySummary.of(entry.getValue()));
+		}
+		return summaries;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public LatencySummary getRegistrationTime() {
+		return LatencySummary.of(registration);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getDirectoriesRegistered() {
+		return directoriesRegistered.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, Long> getGauges() {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().value());
+		}
+		return values;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void reset() {
+		for (LongAdder counter : events) {
+			counter.reset();
+		}
+		processing.reset();
+		delivery.reset();
+		callbacks.reset();
+		callbacksByListener.clear();
+		registration.reset();
+		directoriesRegistered.reset();
+	}
+}
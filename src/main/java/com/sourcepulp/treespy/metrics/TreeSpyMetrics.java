@@ -0,0 +1,116 @@
+package com.sourcepulp.treespy.metrics;
+
+import java.nio.file.Path;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+
+/**
+ * Receives measurements from the hot paths of a spy. Every method is called
+ * on the thread doing the work, so implementations must be thread safe and
+ * cheap; none of them should block.
+ *
+ * Every method does nothing by default, and {@link #NONE} is the registry a
+ * spy starts with. While a spy uses NONE it does not read the clock at all.
+ *
+ * @author Will Faithfull
+ *
+ */
+public interface TreeSpyMetrics {
+
+	/**
+	 * The registry which records nothing.
+	 */
+	TreeSpyMetrics NONE = new TreeSpyMetrics() {
+	};
+
+	/**
+	 * A value sampled when it is read, such as the number of watched
+	 * directories.
+	 */
+	interface Gauge {
+
+		/**
+		 * @return The current value.
+		 */
+		long value();
+	}
+
+	/**
+	 * Called for every event drained from a WatchKey.
+	 *
+	 * @param event
+	 *            The type of event.
+	 */
+	default void eventReceived(Events event) {
+	}
+
+	/**
+	 * Called once the events drained from a WatchKey have been matched against
+	 * globs and handed on, including any callbacks run synchronously.
+	 *
+	 * @param events
+	 *            The number of events drained from the key.
+	 * @param nanos
+	 *            How long the events took to process.
+	 */
+	default void keyProcessed(int events, long nanos) {
+	}
+
+	/**
+	 * Called as a change reaches a listener.
+	 *
+	 * @param nanosSinceTaken
+	 *            How long since the change was taken from the WatchService.
+	 */
+	default void changeDelivered(long nanosSinceTaken) {
+	}
+
+	/**
+	 * Called when a listener returns from a callback.
+	 *
+	 * @param listener
+	 *            The listener.
+	 * @param changes
+	 *            The number of changes it was given.
+	 * @param nanos
+	 *            How long the listener took.
+	 */
+	default void callbackCompleted(TreeSpyListener listener, int changes, long nanos) {
+	}
+
+	/**
+	 * Called when a listener is removed from the spy, so that anything kept
+	 * for it can be released. Callbacks already queued for it may still
+	 * complete afterwards.
+	 *
+	 * @param listener
+	 *            The listener.
+	 */
+	default void listenerRemoved(TreeSpyListener listener) {
+	}
+
+	/**
+	 * Called when a tree has been walked and registered.
+	 *
+	 * @param root
+	 *            The root of the tree.
+	 * @param directories
+	 *            The number of directories registered.
+	 * @param nanos
+	 *            How long the walk took.
+	 */
+	default void treeRegistered(Path root, long directories, long nanos) {
+	}
+
+	/**
+	 * Offers a value which the registry may sample whenever it likes.
+	 *
+	 * @param name
+	 *            The name of the value.
+	 * @param gauge
+	 *            Samples the value.
+	 */
+	default void gauge(String name, Gauge gauge) {
+	}
+}
@@ -0,0 +1,64 @@
+package com.sourcepulp.treespy.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface through which {@link StripedTreeSpyMetrics} are
+ * exposed over JMX.
+ *
+ * @author Will Faithfull
+ *
+ */
+public interface TreeSpyMetricsMXBean {
+
+	/**
+	 * @return The number of events received, by type.
+	 */
+	Map<String, Long> getEventCounts();
+
+	/**
+	 * @return The number of OVERFLOW events received.
+	 */
+	long getOverflowCount();
+
+	/**
+	 * @return How long the events of each WatchKey took to process.
+	 */
+	LatencySummary getProcessingTime();
+
+	/**
+	 * @return How long changes took from the WatchService to their listener.
+	 */
+	LatencySummary getDeliveryLatency();
+
+	/**
+	 * @return How long listeners took to handle their callbacks.
+	 */
+	LatencySummary getCallbackLatency();
+
+	/**
+	 * @return How long each listener took to handle its callbacks.
+	 */
+	Map<String, LatencySummary> getCallbackLatencyByListener();
+
+	/**
+	 * @return How long trees took to walk and register.
+	 */
+	LatencySummary getRegistrationTime();
+
+	/**
+	 * @return The number of directories registered by walks.
+	 */
+	long getDirectoriesRegistered();
+
+	/**
+	 * @return The current value of each gauge, such as the number of watched
+	 *         directories and the depth of the dispatch queues.
+	 */
+	Map<String, Long> getGauges();
+
+	/**
+	 * Forgets all counts and histograms. Gauges are unaffected.
+	 */
+	void reset();
+}
@@ -0,0 +1,46 @@
+package com.sourcepulp.treespy.poll;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.Set;
+
+import com.sourcepulp.treespy.jse7.AbstractWatchKey;
+import com.sourcepulp.treespy.snapshot.DirectorySnapshot;
+
+/**
+ * WatchKey of a directory watched by a {@link PollingWatchService}.
+ *
+ * The snapshot and polling interval belong to the service, which only polls
+ * a key from one thread at a time.
+ *
+ * @author Will Faithfull
+ *
+ */
+class PollingWatchKey extends AbstractWatchKey {
+
+	private final PollingWatchService service;
+
+	DirectorySnapshot snapshot;
+	long interval;
+	long nextPoll;
+
+	PollingWatchKey(PollingWatchService service, Path directory, Set<WatchEvent.Kind<?>> kinds) {
+		super(directory, kinds);
+		this.service = service;
+	}
+
+	@Override
+	protected void enqueue() {
+		service.enqueue(this);
+	}
+
+	@Override
+	protected boolean isOpen() {
+		return service.isOpen();
+	}
+
+	@Override
+	protected void cancelled() {
+		service.cancelled(this);
+	}
+}
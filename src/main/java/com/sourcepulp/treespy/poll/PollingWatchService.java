@@ -0,0 +1,401 @@
+package com.sourcepulp.treespy.poll;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.TreeSpy;
+import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+import com.sourcepulp.treespy.jse7.DirectoryRegistrar;
+import com.sourcepulp.treespy.snapshot.DirectorySnapshot;
+import com.sourcepulp.treespy.snapshot.NameTable;
+
+/**
+ * A WatchService which finds changes by polling, for filesystems on which the
+ * native WatchService delivers nothing (NFS, some container mounts) or falls
+ * back to slow polling of its own.
+ *
+ * Each directory is listed and compared with a snapshot of its entries'
+ * sizes, modification times and inodes. Directories are polled on their own
+ * adaptive schedule: a directory which has just changed is polled at the
+ * minimum interval, and each quiet poll doubles its interval up to the
+ * maximum, so that a large, mostly idle tree costs little while the active
+ * parts of it are still noticed quickly. Directories which come due together
+ * are polled in parallel batches.
+ *
+ * Directories are registered with {@link #register(Path, WatchEvent.Kind...)}
+ * rather than {@link Path#register(WatchService, WatchEvent.Kind...)}, which
+ * only accepts the filesystem's own WatchService.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class PollingWatchService implements WatchService, DirectoryRegistrar {
+
+	private static final Logger log = LoggerFactory.getLogger(TreeSpy.class);
+
+	public static final long DEFAULT_MIN_INTERVAL_MILLIS = 250;
+	public static final long DEFAULT_MAX_INTERVAL_MILLIS = 4000;
+
+	private static final int BATCH_SIZE = 64;
+	private static final int MIN_NAMES_TO_COMPACT = 65536;
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final ForkJoinPool statPool;
+
+	// Replaced by the scheduler once it mostly holds names no longer in use.
+	private volatile NameTable names = new NameTable();
+	private int namesToCompact = MIN_NAMES_TO_COMPACT;
+
+	private final ConcurrentMap<Path, PollingWatchKey> keys = new ConcurrentHashMap<Path, PollingWatchKey>();
+	private final PriorityQueue<PollingWatchKey> schedule = new PriorityQueue<PollingWatchKey>(16,
+			new Comparator<PollingWatchKey>() {
+				@Override
+				public int compare(PollingWatchKey a, PollingWatchKey b) {
+					return Long.compare(a.nextPoll, b.nextPoll);
+				}
+			});
+	private final BlockingQueue<WatchKey> signalled = new LinkedBlockingQueue<WatchKey>();
+	private final PollingWatchKey closeSentinel;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructs a polling WatchService with the default intervals, which
+	 * polls with one thread per processor.
+	 */
+	public PollingWatchService() {
+		this(DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MAX_INTERVAL_MILLIS, TimeUnit.MILLISECONDS,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs a polling WatchService.
+	 *
+	 * @param minInterval
+	 *            The interval at which recently changed directories are
+	 *            polled.
+	 * @param maxInterval
+	 *            The longest interval between polls of an idle directory.
+	 * @param unit
+	 *            The unit of both intervals.
+	 * @param parallelism
+	 *            The number of threads which poll directories.
+	 */
+	public PollingWatchService(long minInterval, long maxInterval, TimeUnit unit, int parallelism) {
+		if (minInterval <= 0 || maxInterval < minInterval)
+			throw new IllegalArgumentException("Intervals must be positive, and the maximum at least the minimum");
+		this.minInterval = unit.toNanos(minInterval);
+		this.maxInterval = unit.toNanos(maxInterval);
+		this.statPool = new ForkJoinPool(Math.max(1, parallelism));
+		this.closeSentinel = new PollingWatchKey(this, null, new HashSet<WatchEvent.Kind<?>>());
+
+		new TreeSpyThreadFactory().newThread(new Scheduler()).start();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * The directory is listed straight away, so that any change made after
+	 * this method returns is reported.
+	 */
+	@Override
+	public WatchKey register(Path directory, WatchEvent.Kind<?>... kinds) throws IOException {
+		checkOpen();
+		if (!Files.isDirectory(directory))
+			throw new NotDirectoryException(directory.toString());
+
+		Set<WatchEvent.Kind<?>> kindSet = new HashSet<WatchEvent.Kind<?>>(Arrays.asList(kinds));
+		PollingWatchKey existing = keys.get(directory);
+		if (existing != null && existing.isValid()) {
+			existing.setKinds(kindSet);
+			return existing;
+		}
+
+		PollingWatchKey key = new PollingWatchKey(this, directory, kindSet);
+		key.snapshot = DirectorySnapshot.scan(directory, names);
+		key.interval = minInterval;
+		key.nextPoll = System.nanoTime() + minInterval;
+		keys.put(directory, key);
+
+		synchronized (schedule) {
+			schedule.add(key);
+			schedule.notifyAll();
+		}
+		return key;
+	}
+
+	/**
+	 * @return The number of directories being polled.
+	 */
+	public int getDirectoryCount() {
+		return keys.size();
+	}
+
+	@Override
+	public WatchKey poll() {
+		checkOpen();
+		return checkKey(signalled.poll());
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		checkOpen();
+		return checkKey(signalled.poll(timeout, unit));
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		checkOpen();
+		return checkKey(signalled.take());
+	}
+
+	@Override
+	public void close() throws IOException {
+		shutdown();
+	}
+
+	private synchronized void shutdown() {
+		if (closed)
+			return;
+		closed = true;
+
+		keys.clear();
+		synchronized (schedule) {
+			schedule.clear();
+			schedule.notifyAll();
+		}
+		statPool.shutdownNow();
+
+		signalled.clear();
+		signalled.offer(closeSentinel);
+	}
+
+	boolean isOpen() {
+		return !closed;
+	}
+
+	void enqueue(PollingWatchKey key) {
+		if (!closed)
+			signalled.offer(key);
+	}
+
+	void cancelled(PollingWatchKey key) {
+		// The key stays in the schedule until it next comes due, when it is
+		// dropped, rather than searching the whole schedule for it now.
+		keys.remove(key.getDirectory(), key);
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new ClosedWatchServiceException();
+	}
+
+	private WatchKey checkKey(WatchKey key) {
+		if (key == closeSentinel) {
+			// Leave the sentinel for any other waiting thread.
+			signalled.offer(key);
+			throw new ClosedWatchServiceException();
+		}
+		return key;
+	}
+
+	/**
+	 * Lists a directory, compares it with its snapshot and signals the key
+	 * with any changes. Adjusts the directory's interval according to whether
+	 * anything changed. A directory which cannot be listed, for whatever
+	 * reason, invalidates its key, without disturbing the polling of others.
+	 */
+	private void poll(PollingWatchKey key) {
+		if (!key.isValid())
+			return;
+
+		NameTable table = names;
+		DirectorySnapshot current;
+		List<Change> changes;
+		try {
+			current = DirectorySnapshot.scan(key.getDirectory(), table);
+			// Moves the key's snapshot over to the current table, if it was
+			// taken before the last compaction.
+			changes = key.snapshot.internedIn(table).diff(current, key.getDirectory());
+		} catch (IOException ex) {
+			keys.remove(key.getDirectory(), key);
+			key.invalidate();
+			return;
+		} catch (RuntimeException ex) {
+			log.warn(String.format("Could not poll %s; no longer watching it", key.getDirectory().toString()), ex);
+			keys.remove(key.getDirectory(), key);
+			key.invalidate();
+			return;
+		}
+		key.snapshot = current;
+
+		if (changes.isEmpty()) {
+			key.interval = Math.min(key.interval * 2, maxInterval);
+			return;
+		}
+
+		key.interval = minInterval;
+		for (Change change : changes) {
+			key.offer(kindOf(change), change.getPath().getFileName());
+		}
+	}
+
+	private static WatchEvent.Kind<Path> kindOf(Change change) {
+		switch (change.getEvent()) {
+		case CREATE:
+			return ENTRY_CREATE;
+		case DELETE:
+			return ENTRY_DELETE;
+		default:
+			return ENTRY_MODIFY;
+		}
+	}
+
+	/**
+	 * Polls the specified keys, splitting them into batches which are polled
+	 * in parallel.
+	 */
+	private void pollAll(List<PollingWatchKey> due) throws InterruptedException {
+		if (due.size() <= BATCH_SIZE) {
+			for (PollingWatchKey key : due)
+				poll(key);
+			return;
+		}
+
+		List<Callable<Void>> batches = new ArrayList<Callable<Void>>();
+		for (int from = 0; from < due.size(); from += BATCH_SIZE) {
+			final List<PollingWatchKey> batch = due.subList(from, Math.min(from + BATCH_SIZE, due.size()));
+			batches.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (PollingWatchKey key : batch)
+						poll(key);
+					return null;
+				}
+			});
+		}
+		statPool.invokeAll(batches);
+	}
+
+	/**
+	 * Replaces the table of names once it holds more than twice as many as
+	 * the snapshots use, as names are never released. Each key's snapshot
+	 * moves to the new table the next time it is polled.
+	 */
+	private void compactNames() {
+		NameTable previous = names;
+		if (previous.size() <= namesToCompact)
+			return;
+
+		long live = 0;
+		for (PollingWatchKey key : keys.values()) {
+			DirectorySnapshot snapshot = key.snapshot;
+			if (snapshot != null)
+				live += snapshot.size();
+		}
+		if (previous.size() > 2 * live) {
+			names = new NameTable();
+			log.debug(String.format("Replacing a table of %d names, of which about %d are in use", previous.size(),
+					live));
+		}
+		namesToCompact = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_NAMES_TO_COMPACT, 2 * live));
+	}
+
+	/**
+	 * Takes the keys which have come due off the schedule, polls them, and
+	 * puts them back according to their new intervals. Should the scheduler
+	 * die regardless, the service is closed, so that those waiting for keys
+	 * are told rather than left waiting forever.
+	 */
+	private class Scheduler implements Runnable {
+
+		public void run() {
+			try {
+				while (!closed) {
+					List<PollingWatchKey> due = takeDue();
+					if (due.isEmpty())
+						continue;
+
+					pollAll(due);
+
+					long now = System.nanoTime();
+					synchronized (schedule) {
+						for (PollingWatchKey key : due) {
+							if (key.isValid()) {
+								key.nextPoll = now + key.interval;
+								schedule.add(key);
+							}
+						}
+					}
+					compactNames();
+				}
+			} catch (InterruptedException ex) {
+				if (!closed)
+					log.error("Polling scheduler was interrupted unexpectedly", ex);
+			} catch (RuntimeException ex) {
+				if (!closed)
+					log.error("Polling scheduler failed", ex);
+			} finally {
+				shutdown();
+			}
+		}
+
+		/**
+		 * Waits until at least one key is due, or the schedule changes.
+		 */
+		private List<PollingWatchKey> takeDue() throws InterruptedException {
+			List<PollingWatchKey> due = new ArrayList<PollingWatchKey>();
+			synchronized (schedule) {
+				PollingWatchKey head = schedule.peek();
+				if (head == null) {
+					schedule.wait();
+					return due;
+				}
+
+				long now = System.nanoTime();
+				long wait = head.nextPoll - now;
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.timedWait(schedule, wait);
+					return due;
+				}
+
+				while (head != null && head.nextPoll <= now) {
+					schedule.poll();
+					if (head.isValid())
+						due.add(head);
+					head = schedule.peek();
+				}
+			}
+			return due;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.sourcepulp.treespy.poll;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import com.sourcepulp.treespy.jse7.TreeSpyJSE7StdLib;
+
+/**
+ * TreeSpy implementation which finds changes by polling, for filesystems where
+ * the native WatchService is slow or delivers nothing. Listeners, globs and
+ * callbacks behave exactly as for {@link TreeSpyJSE7StdLib}; only the source
+ * of events differs.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class TreeSpyPoller extends TreeSpyJSE7StdLib {
+
+	private final PollingWatchService poller;
+
+	/**
+	 * Constructs a polling spy using the provided executor to orchestrate the
+	 * background task.
+	 * 
+	 * @param daemonExecutor
+	 * @param poller
+	 * @throws IOException
+	 */
+	public TreeSpyPoller(Executor daemonExecutor, PollingWatchService poller) throws IOException {
+		super(daemonExecutor, poller);
+		this.poller = poller;
+	}
+
+	/**
+	 * Constructs a polling spy using the provided executor to orchestrate the
+	 * background task, and the provided ExecutorService to execute callbacks.
+	 * 
+	 * @param daemonExecutor
+	 * @param poller
+	 * @param callbackExecutorService
+	 * @throws IOException
+	 */
+	public TreeSpyPoller(Executor daemonExecutor, PollingWatchService poller, ExecutorService callbackExecutorService)
+			throws IOException {
+		super(daemonExecutor, poller, callbackExecutorService);
+		this.poller = poller;
+	}
+
+	/**
+	 * @return The WatchService which polls this spy's directories.
+	 */
+	public PollingWatchService getPoller() {
+		return poller;
+	}
+}
@@ -0,0 +1,25 @@
+package com.sourcepulp.treespy.reactive;
+
+/**
+ * A source of a potentially unbounded sequence of elements, published
+ * according to the demand signalled by each subscriber. Mirrors
+ * {@code org.reactivestreams.Publisher} and
+ * {@code java.util.concurrent.Flow.Publisher} method for method, so that
+ * adapting to either is a matter of delegation.
+ * 
+ * @author Will Faithfull
+ *
+ * @param <T>
+ *            The type of element published.
+ */
+public interface Publisher<T> {
+
+	/**
+	 * Asks the publisher to start streaming elements to a subscriber, once
+	 * the subscriber requests them through its {@link Subscription}.
+	 * 
+	 * @param subscriber
+	 *            The subscriber.
+	 */
+	void subscribe(Subscriber<? super T> subscriber);
+}
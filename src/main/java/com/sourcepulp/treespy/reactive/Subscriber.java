@@ -0,0 +1,44 @@
+package com.sourcepulp.treespy.reactive;
+
+/**
+ * Receives the elements of a {@link Publisher} once it has requested them.
+ * Signals are never sent concurrently. Mirrors
+ * {@code org.reactivestreams.Subscriber}.
+ * 
+ * @author Will Faithfull
+ *
+ * @param <T>
+ *            The type of element received.
+ */
+public interface Subscriber<T> {
+
+	/**
+	 * Called once, before any other signal.
+	 * 
+	 * @param subscription
+	 *            The subscription through which to request elements.
+	 */
+	void onSubscribe(Subscription subscription);
+
+	/**
+	 * Called with each element, never more often than requested.
+	 * 
+	 * @param element
+	 *            The element.
+	 */
+	void onNext(T element);
+
+	/**
+	 * Called when the publisher fails. No further signals follow.
+	 * 
+	 * @param error
+	 *            The failure.
+	 */
+	void onError(Throwable error);
+
+	/**
+	 * Called when the publisher has no more elements. No further signals
+	 * follow.
+	 */
+	void onComplete();
+}
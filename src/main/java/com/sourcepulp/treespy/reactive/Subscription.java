@@ -0,0 +1,25 @@
+package com.sourcepulp.treespy.reactive;
+
+/**
+ * The link between one {@link Subscriber} and its {@link Publisher}, through
+ * which demand is signalled. Mirrors {@code org.reactivestreams.Subscription}.
+ * 
+ * @author Will Faithfull
+ *
+ */
+public interface Subscription {
+
+	/**
+	 * Adds to the number of elements the subscriber is ready to receive.
+	 * 
+	 * @param n
+	 *            The number of further elements, which must be positive.
+	 */
+	void request(long n);
+
+	/**
+	 * Stops the publisher sending elements. Elements already in flight may
+	 * still arrive.
+	 */
+	void cancel();
+}
@@ -0,0 +1,279 @@
+package com.sourcepulp.treespy.reactive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpy;
+import com.sourcepulp.treespy.TreeSpyBatchListener;
+
+/**
+ * Publishes the changes to a watched directory to subscribers at the pace
+ * they request them. Each subscription watches the directory through the spy
+ * with a listener of its own, and buffers what the subscriber has not yet
+ * asked for.
+ *
+ * The buffer is bounded, and coalesces by path: a change to a path which is
+ * already waiting is merged into it, as by {@link Events#coalesce}. Should the
+ * buffer still fill up, everything waiting is replaced by a single OVERFLOW
+ * for the watched directory, telling the subscriber to rescan. Memory stays
+ * bounded however fast changes arrive and however slowly they are consumed.
+ *
+ * The sequence never completes by itself; it ends when the subscriber
+ * cancels, or with onError if the directory cannot be watched.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class TreeSpyPublisher implements Publisher<Change> {
+
+	private static final Logger log = LoggerFactory.getLogger(TreeSpyPublisher.class);
+
+	private final TreeSpy spy;
+	private final File directory;
+	private final boolean recursive;
+	private final int capacity;
+	private final String[] globs;
+
+	/**
+	 * @param spy
+	 *            The spy to watch through.
+	 * @param directory
+	 *            The directory to watch.
+	 * @param recursive
+	 *            Whether to watch the whole tree below the directory.
+	 * @param capacity
+	 *            The most changes buffered for a subscriber.
+	 * @param globs
+	 *            The globs restricting which changes are published, if any.
+	 */
+	public TreeSpyPublisher(TreeSpy spy, File directory, boolean recursive, int capacity, String... globs) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		this.spy = spy;
+		this.directory = directory;
+		this.recursive = recursive;
+		this.capacity = capacity;
+		this.globs = globs;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void subscribe(Subscriber<? super Change> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("Subscriber must not be null");
+
+		ChangeSubscription subscription = new ChangeSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		if (subscription.cancelled)
+			return;
+
+		try {
+			if (recursive)
+				spy.watchRecursive(directory, subscription, globs);
+			else
+				spy.watchJust(directory, subscription, globs);
+		} catch (IOException ex) {
+			subscription.fail(ex);
+			return;
+		}
+
+		// Cancelled while the tree was being registered.
+		if (subscription.cancelled)
+			spy.removeListener(subscription);
+	}
+
+	/**
+	 * A buffered change. Changes are held in mutable slots so that coalescing
+	 * can replace a change in place.
+	 */
+	private static final class Slot {
+
+		Change change;
+
+		Slot(Change change) {
+			this.change = change;
+		}
+	}
+
+	/**
+	 * One subscriber's subscription, which is also the listener receiving its
+	 * changes from the spy. Signals are sent by whichever thread finds
+	 * demand and buffered changes together, never by two at once.
+	 */
+	class ChangeSubscription implements Subscription, TreeSpyBatchListener {
+
+		private final Subscriber<? super Change> subscriber;
+
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		volatile boolean cancelled = false;
+		private volatile Throwable error;
+
+		// Guarded by this.
+		private final ArrayDeque<Slot> pending = new ArrayDeque<Slot>();
+		private final Map<Path, Slot> latest = new HashMap<Path, Slot>();
+		private int size = 0;
+
+		ChangeSubscription(Subscriber<? super Change> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void onChanges(List<Change> changes) {
+			if (cancelled)
+				return;
+			synchronized (this) {
+				for (Change change : changes) {
+					offer(change);
+				}
+			}
+			drain();
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("Requested " + n + " changes; requests must be positive"));
+				return;
+			}
+
+			long current;
+			long next;
+			do {
+				current = requested.get();
+				next = current + n < 0 ? Long.MAX_VALUE : current + n;
+			} while (!requested.compareAndSet(current, next));
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			if (cancelled)
+				return;
+			cancelled = true;
+			spy.removeListener(this);
+			drain();
+		}
+
+		/**
+		 * Ends the subscription with an error, once nothing else is being
+		 * signalled.
+		 */
+		void fail(Throwable ex) {
+			error = ex;
+			cancel();
+		}
+
+		private void offer(Change change) {
+			Path path = change.getPath();
+			Slot slot = latest.get(path);
+			if (slot != null && change.getEvent() != Events.MOVE && change.getEvent() != Events.OVERFLOW
+					&& slot.change.getEvent() != Events.MOVE && slot.change.getEvent() != Events.OVERFLOW) {
+				Events merged = Events.coalesce(slot.change.getEvent(), change.getEvent());
+				if (merged == null) {
+					// The slot is usually among the last buffered, and must go
+					// now, so that a path created and deleted over and over
+					// cannot grow the buffer while nothing is requested.
+					pending.removeLastOccurrence(slot);
+					latest.remove(path);
+					size--;
+				} else {
+					slot.change = new Change(path, merged, slot.change.getTimestamp());
+				}
+				return;
+			}
+
+			if (size >= capacity) {
+				log.warn(String.format("Subscriber to %s fell %d changes behind; signalling OVERFLOW", directory,
+						size));
+				pending.clear();
+				latest.clear();
+				size = 0;
+				change = new Change(directory.toPath(), Events.OVERFLOW);
+			}
+
+			slot = new Slot(change);
+			pending.add(slot);
+			size++;
+			latest.put(change.getPath(), slot);
+		}
+
+		private synchronized Change poll() {
+			Slot slot = pending.poll();
+			if (slot == null)
+				return null;
+			latest.remove(slot.change.getPath(), slot);
+			size--;
+			return slot.change;
+		}
+
+		/**
+		 * @return The number of changes buffered for the subscriber.
+		 */
+		synchronized int getBufferedCount() {
+			return pending.size();
+		}
+
+		private synchronized void clear() {
+			pending.clear();
+			latest.clear();
+			size = 0;
+		}
+
+		/**
+		 * Sends as many buffered changes as have been requested. Whichever
+		 * thread gets here first does the sending, and sends on behalf of any
+		 * which arrive meanwhile.
+		 */
+		private void drain() {
+			if (wip.getAndIncrement() != 0)
+				return;
+
+			int missed = 1;
+			do {
+				long demand = requested.get();
+				long sent = 0;
+				while (sent != demand && !cancelled) {
+					Change next = poll();
+					if (next == null)
+						break;
+					try {
+						subscriber.onNext(next);
+					} catch (RuntimeException ex) {
+						log.warn("Subscriber threw from onNext; cancelling", ex);
+						cancel();
+					}
+					sent++;
+				}
+
+				if (cancelled) {
+					clear();
+					Throwable ex = error;
+					if (ex != null) {
+						error = null;
+						subscriber.onError(ex);
+					}
+					return;
+				}
+
+				if (sent != 0 && demand != Long.MAX_VALUE)
+					requested.addAndGet(-sent);
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
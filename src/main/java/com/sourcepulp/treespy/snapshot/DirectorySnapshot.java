@@ -0,0 +1,400 @@
+package com.sourcepulp.treespy.snapshot;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+
+/**
+ * In-memory record of the entries of a single directory, with enough of each
+ * entry's attributes (size, modification time and inode) to tell whether it
+ * has changed since.
+ *
+ * To keep large trees cheap, entries are not objects. Names are interned in a
+ * shared {@link NameTable}, and the attributes of each entry are held in
+ * parallel primitive arrays, sorted by name id so that lookups are a binary
+ * search and two snapshots can be compared in a single pass.
+ *
+ * A file is identified by its device and inode, read through the "unix"
+ * attribute view where the filesystem has one. Entries are taken to be on
+ * the directory's device, which is recorded once per snapshot; only a mount
+ * point can be on another, and a mount point can neither be moved nor
+ * reported as modified. Where there is no "unix" view, inodes are unknown,
+ * and files are told apart by size and modification time alone.
+ *
+ * @author Will Faithfull
+ *
+ */
+public class DirectorySnapshot {
+
+	private static final byte DIRECTORY = 1;
+
+	private static final String UNIX_VIEW = "unix";
+	private static final String UNIX_ATTRIBUTES = "unix:size,lastModifiedTime,isDirectory,ino";
+
+	private final NameTable names;
+	private final long device;
+
+	private int count;
+	private int[] nameIds;
+	private long[] sizes;
+	private long[] modified;
+	private long[] inodes;
+	private byte[] flags;
+
+	private DirectorySnapshot(NameTable names, long device, int capacity) {
+		this.names = names;
+		this.device = device;
+		this.nameIds = new int[capacity];
+		this.sizes = new long[capacity];
+		this.modified = new long[capacity];
+		this.inodes = new long[capacity];
+		this.flags = new byte[capacity];
+	}
+
+	/**
+	 * Lists the specified directory and records the attributes of each entry.
+	 * Symbolic links are not followed.
+	 *
+	 * @param directory
+	 *            The directory to snapshot.
+	 * @param names
+	 *            The table in which to intern entry names.
+	 * @return A snapshot of the directory as it is now.
+	 * @throws IOException
+	 *             If the directory cannot be listed.
+	 */
+	public static DirectorySnapshot scan(Path directory, NameTable names) throws IOException {
+		boolean unix = hasUnixView(directory);
+		long device = unix ? (Long) Files.getAttribute(directory, "unix:dev") : 0;
+
+		DirectorySnapshot snapshot = new DirectorySnapshot(names, device, 16);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path child : stream) {
+				try {
+					snapshot.read(names.intern(child.getFileName().toString()), child, unix);
+				} catch (NoSuchFileException ex) {
+					// Deleted between listing and reading; leave it out.
+				}
+			}
+		}
+		snapshot.trim();
+		return snapshot;
+	}
+
+	/**
+	 * Re-reads the attributes of a single entry, removing it if it no longer
+	 * exists.
+	 *
+	 * @param directory
+	 *            The directory this snapshot was taken of.
+	 * @param name
+	 *            The name of the entry within the directory.
+	 */
+	public synchronized void update(Path directory, String name) {
+		try {
+			read(names.intern(name), directory.resolve(name), device != 0 || hasUnixView(directory));
+		} catch (IOException ex) {
+			int index = indexOf(names.idOf(name));
+			if (index >= 0)
+				removeAt(index);
+		}
+	}
+
+	/**
+	 * Compares this snapshot with a newer snapshot of the same directory.
+	 * Entries only in the newer snapshot are reported as CREATE, entries only
+	 * in this one as DELETE, and files whose size, modification time or inode
+	 * differ as MODIFY. Directories are never reported as modified.
+	 *
+	 * If the directory's device differs between the snapshots, files are
+	 * compared by name, size and modification time alone. Devices are
+	 * renumbered by NFS and btrfs, and across reboots, which would otherwise
+	 * make every file of a restored index look replaced.
+	 *
+	 * @param newer
+	 *            A later snapshot of the same directory. If its names are
+	 *            interned in another table, it is first copied into this
+	 *            snapshot's.
+	 * @param directory
+	 *            The directory both snapshots were taken of.
+	 * @return The changes between the two snapshots.
+	 */
+	public synchronized List<Change> diff(DirectorySnapshot newer, Path directory) {
+		newer = newer.internedIn(names);
+		boolean sameDevice = device == newer.device;
+		List<Change> changes = new ArrayList<Change>();
+		synchronized (newer) {
+			int i = 0, j = 0;
+			while (i < count || j < newer.count) {
+				int before = i < count ? nameIds[i] : Integer.MAX_VALUE;
+				int after = j < newer.count ? newer.nameIds[j] : Integer.MAX_VALUE;
+
+				if (before < after) {
+					changes.add(new Change(directory.resolve(names.name(before)), Events.DELETE));
+					i++;
+				} else if (after < before) {
+					changes.add(new Change(directory.resolve(names.name(after)), Events.CREATE));
+					j++;
+				} else {
+					boolean directoryEntry = (newer.flags[j] & DIRECTORY) != 0;
+					boolean same = sizes[i] == newer.sizes[j] && modified[i] == newer.modified[j]
+							&& (!sameDevice || inodes[i] == newer.inodes[j]);
+					if (!directoryEntry && !same)
+						changes.add(new Change(directory.resolve(names.name(after)), Events.MODIFY));
+					i++;
+					j++;
+				}
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * @param name
+	 *            The name of an entry.
+	 * @return True if the entry exists.
+	 */
+	public synchronized boolean contains(String name) {
+		return indexOf(names.idOf(name)) >= 0;
+	}
+
+	/**
+	 * @param name
+	 *            The name of an entry.
+	 * @return True if the entry exists and is a directory.
+	 */
+	public synchronized boolean isDirectory(String name) {
+		int index = indexOf(names.idOf(name));
+		return index >= 0 && (flags[index] & DIRECTORY) != 0;
+	}
+
+	/**
+	 * @param name
+	 *            The name of an entry.
+	 * @return The size of the entry in bytes, or -1 if it does not exist.
+	 */
+	public synchronized long size(String name) {
+		int index = indexOf(names.idOf(name));
+		return index >= 0 ? sizes[index] : -1;
+	}
+
+	/**
+	 * @param name
+	 *            The name of an entry.
+	 * @return The modification time of the entry in milliseconds since the
+	 *         epoch, or -1 if it does not exist.
+	 */
+	public synchronized long lastModified(String name) {
+		int index = indexOf(names.idOf(name));
+		return index >= 0 ? modified[index] : -1;
+	}
+
+	/**
+	 * @param name
+	 *            The name of an entry.
+	 * @return The inode of the entry, which with the {@link #getDevice()
+	 *         device} identifies the underlying file, or 0 if the entry does
+	 *         not exist or its inode is unknown.
+	 */
+	public synchronized long inode(String name) {
+		int index = indexOf(names.idOf(name));
+		return index >= 0 ? inodes[index] : 0;
+	}
+
+	/**
+	 * @return The device the directory is on, or 0 if it is unknown.
+	 */
+	public long getDevice() {
+		return device;
+	}
+
+	/**
+	 * Copies this snapshot into another name table, so that a table holding
+	 * many names no longer in use can be replaced by a fresh one.
+	 *
+	 * @param table
+	 *            The table in which to intern entry names.
+	 * @return This snapshot, if its names are already interned in the table,
+	 *         or a copy whose names are.
+	 */
+	public synchronized DirectorySnapshot internedIn(NameTable table) {
+		if (table == names)
+			return this;
+
+		DirectorySnapshot copy = new DirectorySnapshot(table, device, count);
+		for (int i = 0; i < count; i++) {
+			copy.put(table.intern(names.name(nameIds[i])), sizes[i], modified[i], inodes[i], flags[i]);
+		}
+		return copy;
+	}
+
+	/**
+	 * @return The names of the entries in the directory.
+	 */
+	public synchronized Set<String> names() {
+		Set<String> result = new LinkedHashSet<String>(count * 2);
+		for (int i = 0; i < count; i++) {
+			result.add(names.name(nameIds[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * @return The number of entries in the directory.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Estimates the memory held by this snapshot, excluding the shared name
+	 * table.
+	 *
+	 * @return The approximate size of the snapshot in bytes.
+	 */
+	public synchronized long estimatedBytes() {
+		// Object header and fields, five array headers, then per slot an int,
+		// three longs and a byte.
+		return 40 + 5 * 16 + (long) nameIds.length * (4 + 8 + 8 + 8 + 1);
+	}
+
+	/**
+	 * @return The number of bytes {@link #writeTo(ByteBuffer)} will write.
+	 */
+	synchronized int serializedBytes() {
+		return 8 + 4 + count * (4 + 8 + 8 + 8 + 1);
+	}
+
+	/**
+	 * Writes the entries of this snapshot, with name ids from its name table.
+	 * 
+	 * @param out
+	 *            The buffer to write to.
+	 */
+	synchronized void writeTo(ByteBuffer out) {
+		out.putLong(device);
+		out.putInt(count);
+		for (int i = 0; i < count; i++) {
+			out.putInt(nameIds[i]);
+			out.putLong(sizes[i]);
+			out.putLong(modified[i]);
+			out.putLong(inodes[i]);
+			out.put(flags[i]);
+		}
+	}
+
+	/**
+	 * Reads a snapshot written by {@link #writeTo(ByteBuffer)}.
+	 * 
+	 * @param in
+	 *            The buffer to read from.
+	 * @param names
+	 *            The table in which entry names are interned.
+	 * @param remap
+	 *            Maps the name ids in the buffer to ids in the table.
+	 * @return The snapshot.
+	 */
+	static DirectorySnapshot readFrom(ByteBuffer in, NameTable names, int[] remap) {
+		long device = in.getLong();
+		int entries = in.getInt();
+		DirectorySnapshot snapshot = new DirectorySnapshot(names, device, entries);
+		for (int i = 0; i < entries; i++) {
+			int nameId = remap[in.getInt()];
+			long size = in.getLong();
+			long lastModified = in.getLong();
+			long inode = in.getLong();
+			snapshot.put(nameId, size, lastModified, inode, in.get());
+		}
+		return snapshot;
+	}
+
+	private int indexOf(int nameId) {
+		if (nameId < 0)
+			return -1;
+		return Arrays.binarySearch(nameIds, 0, count, nameId);
+	}
+
+	private static boolean hasUnixView(Path path) {
+		return path.getFileSystem().supportedFileAttributeViews().contains(UNIX_VIEW);
+	}
+
+	/**
+	 * Reads an entry's attributes, with its inode if the filesystem has a
+	 * "unix" view, in a single call either way.
+	 */
+	private void read(int nameId, Path child, boolean unix) throws IOException {
+		if (unix) {
+			Map<String, Object> attrs = Files.readAttributes(child, UNIX_ATTRIBUTES, NOFOLLOW_LINKS);
+			put(nameId, (Long) attrs.get("size"), ((FileTime) attrs.get("lastModifiedTime")).toMillis(),
+					(Long) attrs.get("ino"), (Boolean) attrs.get("isDirectory") ? DIRECTORY : 0);
+		} else {
+			BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, NOFOLLOW_LINKS);
+			put(nameId, attrs.size(), attrs.lastModifiedTime().toMillis(), 0, attrs.isDirectory() ? DIRECTORY : 0);
+		}
+	}
+
+	private void put(int nameId, long size, long lastModified, long inode, byte flag) {
+		int index = indexOf(nameId);
+		if (index < 0) {
+			index = -(index + 1);
+			insertAt(index);
+			nameIds[index] = nameId;
+		}
+		sizes[index] = size;
+		modified[index] = lastModified;
+		inodes[index] = inode;
+		flags[index] = flag;
+	}
+
+	private void insertAt(int index) {
+		if (count == nameIds.length)
+			resize(Math.max(4, count + (count >> 1)));
+
+		int moved = count - index;
+		System.arraycopy(nameIds, index, nameIds, index + 1, moved);
+		System.arraycopy(sizes, index, sizes, index + 1, moved);
+		System.arraycopy(modified, index, modified, index + 1, moved);
+		System.arraycopy(inodes, index, inodes, index + 1, moved);
+		System.arraycopy(flags, index, flags, index + 1, moved);
+		count++;
+	}
+
+	private void removeAt(int index) {
+		int moved = count - index - 1;
+		System.arraycopy(nameIds, index + 1, nameIds, index, moved);
+		System.arraycopy(sizes, index + 1, sizes, index, moved);
+		System.arraycopy(modified, index + 1, modified, index, moved);
+		System.arraycopy(inodes, index + 1, inodes, index, moved);
+		System.arraycopy(flags, index + 1, flags, index, moved);
+		count--;
+	}
+
+	private void trim() {
+		if (count < nameIds.length)
+			resize(count);
+	}
+
+	private void resize(int capacity) {
+		nameIds = Arrays.copyOf(nameIds, capacity);
+		sizes = Arrays.copyOf(sizes, capacity);
+		modified = Arrays.copyOf(modified, capacity);
+		inodes = Arrays.copyOf(inodes, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+	}
+}
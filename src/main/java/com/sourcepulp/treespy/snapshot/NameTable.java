@@ -0,0 +1,96 @@
+package com.sourcepulp.treespy.snapshot;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns file name segments, assigning each distinct name a small integer
+ * id. Snapshots store these ids rather than names, so a name which occurs in
+ * many directories (index.js, package.json, src and so on) is held only once.
+ *
+ * Lookups are lock free. Ids are never reused, so a table only grows; once
+ * most of its names are no longer in use, it can be replaced by copying the
+ * snapshots which refer to it into a fresh one with
+ * {@link DirectorySnapshot#internedIn(NameTable)}.
+ *
+ * @author Will Faithfull
+ *
+ */
+public final class NameTable {
+
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	private volatile String[] names = new String[256];
+	private int count;
+
+	/**
+	 * @param name
+	 *            A file name segment.
+	 * @return The id of the name, assigning one if it has not been seen.
+	 */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if (id != null)
+			return id;
+
+		synchronized (this) {
+			id = ids.get(name);
+			if (id != null)
+				return id;
+
+			String[] current = names;
+			if (count == current.length)
+				current = Arrays.copyOf(current, count + (count >> 1));
+			current[count] = name;
+			names = current;
+
+			id = count++;
+			// Publishing the id after the name is stored means that anyone
+			// holding an id can see its name.
+			ids.put(name, id);
+			return id;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            A file name segment.
+	 * @return The id of the name, or -1 if it has never been interned.
+	 */
+	public int idOf(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @param id
+	 *            An id returned by {@link #intern(String)}.
+	 * @return The name with that id.
+	 */
+	public String name(int id) {
+		return names[id];
+	}
+
+	/**
+	 * @return The number of distinct names.
+	 */
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Estimates the memory held by the table, assuming compressed references
+	 * and one byte per character.
+	 *
+	 * @return The approximate size of the table in bytes.
+	 */
+	public synchronized long estimatedBytes() {
+		long bytes = 16 + 4L * names.length;
+		for (int i = 0; i < count; i++) {
+			// String, its backing array, and a map node with a boxed id.
+			bytes += 24 + 16 + names[i].length() + 32 + 16;
+		}
+		return bytes;
+	}
+}
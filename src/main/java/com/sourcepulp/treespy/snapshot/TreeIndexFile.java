@@ -0,0 +1,157 @@
+package com.sourcepulp.treespy.snapshot;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists the snapshots of a set of watched directories to a single compact
+ * file, so that a restarted spy can tell what changed while it was not
+ * running.
+ *
+ * The file is written sequentially, and mapped into memory to be read back.
+ * It holds a header, then each directory's path and entries (as written by
+ * {@link DirectorySnapshot}), then the table of entry names the entries refer
+ * to. The names come last so that every name used by a directory is known by
+ * the time they are written.
+ *
+ * @author Will Faithfull
+ *
+ */
+public final class TreeIndexFile {
+
+	private static final long MAGIC = 0x5452454553505958L; // TREESPYX
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 8 + 4 + 8 + 4;
+
+	private TreeIndexFile() {
+	}
+
+	/**
+	 * Writes the specified snapshots to a file, replacing it atomically.
+	 *
+	 * @param file
+	 *            The index file.
+	 * @param snapshots
+	 *            The snapshot of each directory.
+	 * @param names
+	 *            The table the snapshots intern their names in.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public static void write(Path file, Map<Path, DirectorySnapshot> snapshots, NameTable names) throws IOException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.position(HEADER_BYTES);
+
+			int directories = 0;
+			for (Map.Entry<Path, DirectorySnapshot> entry : snapshots.entrySet()) {
+				byte[] path = entry.getKey().toString().getBytes(UTF_8);
+				// Snapshots taken before the table was last replaced are
+				// copied into it.
+				DirectorySnapshot snapshot = entry.getValue().internedIn(names);
+				synchronized (snapshot) {
+					ByteBuffer buffer = ByteBuffer.allocate(4 + path.length + snapshot.serializedBytes());
+					buffer.putInt(path.length).put(path);
+					snapshot.writeTo(buffer);
+					buffer.flip();
+					writeFully(channel, buffer);
+				}
+				directories++;
+			}
+
+			long namesOffset = channel.position();
+			int count = names.size();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			buffer.putInt(count);
+			for (int id = 0; id < count; id++) {
+				byte[] name = names.name(id).getBytes(UTF_8);
+				if (buffer.remaining() < 4 + name.length) {
+					buffer.flip();
+					writeFully(channel, buffer);
+					if (buffer.capacity() < 4 + name.length)
+						buffer = ByteBuffer.allocate(4 + name.length);
+					buffer.clear();
+				}
+				buffer.putInt(name.length).put(name);
+			}
+			buffer.flip();
+			writeFully(channel, buffer);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putLong(MAGIC).putInt(VERSION).putLong(namesOffset).putInt(directories);
+			header.flip();
+			channel.position(0);
+			writeFully(channel, header);
+			channel.force(true);
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads the snapshots from an index file.
+	 *
+	 * @param file
+	 *            The index file.
+	 * @param names
+	 *            The table in which to intern entry names.
+	 * @return The snapshot of each directory in the index.
+	 * @throws IOException
+	 *             If the file cannot be read, or is not an index.
+	 */
+	public static Map<Path, DirectorySnapshot> read(Path file, NameTable names) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_BYTES || size > Integer.MAX_VALUE)
+				throw new IOException(String.format("%s is not a TreeSpy index", file.toString()));
+
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (in.getLong() != MAGIC || in.getInt() != VERSION)
+				throw new IOException(String.format("%s is not a TreeSpy index", file.toString()));
+			long namesOffset = in.getLong();
+			int directories = in.getInt();
+
+			try {
+				// Names first, so that entries can be mapped to this table's ids.
+				in.position((int) namesOffset);
+				int[] remap = new int[in.getInt()];
+				for (int id = 0; id < remap.length; id++) {
+					remap[id] = names.intern(readString(in));
+				}
+
+				in.position(HEADER_BYTES);
+				Map<Path, DirectorySnapshot> snapshots = new HashMap<Path, DirectorySnapshot>(directories * 2);
+				for (int i = 0; i < directories; i++) {
+					Path directory = Paths.get(readString(in));
+					snapshots.put(directory, DirectorySnapshot.readFrom(in, names, remap));
+				}
+				return snapshots;
+			} catch (RuntimeException ex) {
+				throw new IOException(String.format("%s is corrupt", file.toString()), ex);
+			}
+		}
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
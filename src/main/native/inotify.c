@@ -0,0 +1,128 @@
+/*
+ * JNI bindings for com.sourcepulp.treespy.inotify.InotifyNative.
+ *
+ * Build on Linux with, for example:
+ *
+ *   gcc -O2 -shared -fPIC -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" \
+ *       -o libtreespy-inotify.so src/main/native/inotify.c
+ *
+ * and put the library on java.library.path.
+ */
+#include <jni.h>
+#include <errno.h>
+#include <poll.h>
+#include <stdio.h>
+#include <string.h>
+#include <stdint.h>
+#include <sys/eventfd.h>
+#include <sys/inotify.h>
+#include <unistd.h>
+
+static void throwIOException(JNIEnv *env, const char *call)
+{
+	char message[256];
+	jclass type = (*env)->FindClass(env, "java/io/IOException");
+	if (type == NULL)
+		return;
+	snprintf(message, sizeof(message), "%s: %s", call, strerror(errno));
+	(*env)->ThrowNew(env, type, message);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sourcepulp_treespy_inotify_InotifyNative_init(JNIEnv *env, jclass cls)
+{
+	int fd = inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+	if (fd < 0)
+		throwIOException(env, "inotify_init1");
+	return fd;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sourcepulp_treespy_inotify_InotifyNative_initWakeup(JNIEnv *env, jclass cls)
+{
+	int fd = eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+	if (fd < 0)
+		throwIOException(env, "eventfd");
+	return fd;
+}
+
+JNIEXPORT void JNICALL
+Java_com_sourcepulp_treespy_inotify_InotifyNative_wakeup(JNIEnv *env, jclass cls, jint wakeFd)
+{
+	uint64_t one = 1;
+	ssize_t ignored = write(wakeFd, &one, sizeof(one));
+	(void) ignored;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sourcepulp_treespy_inotify_InotifyNative_addWatch(JNIEnv *env, jclass cls, jint fd, jstring path,
+		jint mask)
+{
+	const char *chars = (*env)->GetStringUTFChars(env, path, NULL);
+	int wd;
+	if (chars == NULL)
+		return -1;
+	wd = inotify_add_watch(fd, chars, (uint32_t) mask);
+	(*env)->ReleaseStringUTFChars(env, path, chars);
+	if (wd < 0)
+		throwIOException(env, "inotify_add_watch");
+	return wd;
+}
+
+JNIEXPORT void JNICALL
+Java_com_sourcepulp_treespy_inotify_InotifyNative_removeWatch(JNIEnv *env, jclass cls, jint fd, jint wd)
+{
+	inotify_rm_watch(fd, wd);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_sourcepulp_treespy_inotify_InotifyNative_read(JNIEnv *env, jclass cls, jint fd, jint wakeFd,
+		jobject buffer, jint timeoutMillis)
+{
+	struct pollfd pfd[2];
+	uint64_t wakes;
+	void *address = (*env)->GetDirectBufferAddress(env, buffer);
+	jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+	ssize_t n;
+	int ready;
+
+	if (address == NULL || capacity <= 0) {
+		errno = EINVAL;
+		throwIOException(env, "GetDirectBufferAddress");
+		return -1;
+	}
+
+	pfd[0].fd = fd;
+	pfd[0].events = POLLIN;
+	pfd[0].revents = 0;
+	pfd[1].fd = wakeFd;
+	pfd[1].events = POLLIN;
+	pfd[1].revents = 0;
+	ready = poll(pfd, 2, timeoutMillis);
+	if (ready == 0 || (ready < 0 && errno == EINTR))
+		return 0;
+	if (ready < 0) {
+		throwIOException(env, "poll");
+		return -1;
+	}
+	if (pfd[1].revents != 0) {
+		ssize_t ignored = read(wakeFd, &wakes, sizeof(wakes));
+		(void) ignored;
+		return 0;
+	}
+
+	n = read(fd, address, (size_t) capacity);
+	if (n < 0) {
+		if (errno == EAGAIN || errno == EINTR)
+			return 0;
+		throwIOException(env, "read");
+		return -1;
+	}
+	return (jint) n;
+}
+
+JNIEXPORT void JNICALL
+Java_com_sourcepulp_treespy_inotify_InotifyNative_close(JNIEnv *env, jclass cls, jint fd)
+{
+	close(fd);
+}
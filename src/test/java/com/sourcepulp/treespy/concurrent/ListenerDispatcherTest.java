@@ -0,0 +1,295 @@
+package com.sourcepulp.treespy.concurrent;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+
+public class ListenerDispatcherTest {
+
+	private static final int CHANGES = 5000;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testChangesArriveInOrderAndNeverConcurrently() throws InterruptedException {
+		final List<Path> received = Collections.synchronizedList(new ArrayList<Path>());
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicBoolean overlapped = new AtomicBoolean(false);
+		final CountDownLatch done = new CountDownLatch(CHANGES);
+
+		TreeSpyListener listener = (file, type) -> {
+			if (inFlight.incrementAndGet() > 1)
+				overlapped.set(true);
+			received.add(file);
+			inFlight.decrementAndGet();
+			done.countDown();
+		};
+
+		ListenerDispatcher dispatcher = new ListenerDispatcher(executor, (l, changes) -> {
+			for (Change change : changes)
+				l.onChange(change.getPath(), change.getEvent());
+		}, 16);
+
+		List<Path> sent = new ArrayList<Path>();
+		for (int i = 0; i < CHANGES; i++) {
+			Path path = Paths.get("file" + i);
+			sent.add(path);
+			dispatcher.dispatch(listener, Collections.singletonList(new Change(path, Events.MODIFY)));
+		}
+
+		Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		Assert.assertFalse(overlapped.get());
+		Assert.assertEquals(sent, received);
+	}
+
+	@Test
+	public void testBatchesRespectMaximumSize() throws InterruptedException {
+		final AtomicInteger largest = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(CHANGES);
+
+		TreeSpyListener listener = (file, type) -> {
+		};
+
+		ListenerDispatcher dispatcher = new ListenerDispatcher(executor, (l, changes) -> {
+			largest.accumulateAndGet(changes.size(), Math::max);
+			for (int i = 0; i < changes.size(); i++)
+				done.countDown();
+		}, 10);
+
+		List<Change> changes = new ArrayList<Change>();
+		for (int i = 0; i < CHANGES; i++) {
+			changes.add(new Change(Paths.get("file" + i), Events.CREATE));
+		}
+		dispatcher.dispatch(listener, changes);
+
+		Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals(10, largest.get());
+	}
+
+	@Test
+	public void testDropOldest() {
+		List<Change> received = runFull(BackpressurePolicy.DROP_OLDEST, changes("a", "b", "c", "d"));
+
+		Assert.assertEquals(changes("c", "d"), received);
+	}
+
+	@Test
+	public void testCoalesceMergesSamePath() {
+		List<Change> offered = changes("a", "b");
+		offered.add(new Change(Paths.get("dir", "a"), Events.DELETE));
+
+		List<Change> received = runFull(BackpressurePolicy.COALESCE, offered);
+
+		Assert.assertEquals(2, received.size());
+		Assert.assertEquals(new Change(Paths.get("dir", "a"), Events.DELETE), received.get(0));
+	}
+
+	@Test
+	public void testOverflowCollapsesQueue() {
+		List<Change> received = runFull(BackpressurePolicy.OVERFLOW, changes("a", "b", "c"));
+
+		Assert.assertEquals(1, received.size());
+		Assert.assertEquals(new Change(Paths.get("dir"), Events.OVERFLOW), received.get(0));
+	}
+
+	@Test
+	public void testOverflowNamesEveryDirectoryWithLostChanges() {
+		List<Change> offered = Arrays.asList(new Change(Paths.get("one", "a"), Events.MODIFY),
+				new Change(Paths.get("two", "b"), Events.MODIFY), new Change(Paths.get("one", "c"), Events.MODIFY));
+
+		List<Change> received = runFull(BackpressurePolicy.OVERFLOW, offered);
+
+		Assert.assertEquals(Arrays.asList(new Change(Paths.get("one"), Events.OVERFLOW),
+				new Change(Paths.get("two"), Events.OVERFLOW)), received);
+	}
+
+	@Test
+	public void testOverflowOfMoreDirectoriesThanFitNamesTheirAncestor() {
+		List<Change> offered = Arrays.asList(new Change(Paths.get("root", "one", "a"), Events.MODIFY),
+				new Change(Paths.get("root", "two", "b"), Events.MODIFY),
+				new Change(Paths.get("root", "three", "c"), Events.MODIFY));
+
+		List<Change> received = runFull(BackpressurePolicy.OVERFLOW, offered);
+
+		Assert.assertEquals(Collections.singletonList(new Change(Paths.get("root"), Events.OVERFLOW)), received);
+	}
+
+	@Test(timeout = 10000)
+	public void testListenerErrorDoesNotSilenceIt() throws InterruptedException {
+		final List<Path> received = Collections.synchronizedList(new ArrayList<Path>());
+		final CountDownLatch done = new CountDownLatch(1);
+		TreeSpyListener listener = (file, type) -> {
+			if (file.equals(Paths.get("fails")))
+				throw new AssertionError("Listener failed");
+			received.add(file);
+			done.countDown();
+		};
+		ListenerDispatcher dispatcher = new ListenerDispatcher(executor, (l, changes) -> {
+			for (Change change : changes)
+				l.onChange(change.getPath(), change.getEvent());
+		}, 1, 1, BackpressurePolicy.BLOCK);
+
+		dispatcher.dispatch(listener, Collections.singletonList(new Change(Paths.get("fails"), Events.MODIFY)));
+		dispatcher.dispatch(listener, Collections.singletonList(new Change(Paths.get("next"), Events.MODIFY)));
+		dispatcher.awaitCapacity();
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Collections.singletonList(Paths.get("next")), received);
+	}
+
+	@Test(timeout = 10000)
+	public void testRejectedQueueIsScheduledAgain() throws InterruptedException {
+		final AtomicBoolean reject = new AtomicBoolean(true);
+		Executor flaky = task -> {
+			if (reject.getAndSet(false))
+				throw new RejectedExecutionException("Saturated");
+			executor.execute(task);
+		};
+		final CountDownLatch done = new CountDownLatch(2);
+		TreeSpyListener listener = (file, type) -> done.countDown();
+		ListenerDispatcher dispatcher = new ListenerDispatcher(flaky, (l, changes) -> {
+			for (Change change : changes)
+				l.onChange(change.getPath(), change.getEvent());
+		}, 16, 1, BackpressurePolicy.BLOCK);
+
+		try {
+			dispatcher.dispatch(listener, Collections.singletonList(new Change(Paths.get("first"), Events.MODIFY)));
+			Assert.fail("The rejection should reach the caller");
+		} catch (RejectedExecutionException ex) {
+			// Expected.
+		}
+		// Nothing is on its way, so there is nothing to wait for.
+		dispatcher.dispatch(listener, Collections.singletonList(new Change(Paths.get("second"), Events.MODIFY)));
+		dispatcher.awaitCapacity();
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test(timeout = 10000)
+	public void testBlockingWaitsOutsideTheCallersLocks() throws InterruptedException {
+		final Object lock = new Object();
+		final CountDownLatch done = new CountDownLatch(20);
+		// A callback which needs the lock the dispatching thread holds, as a
+		// listener reconfiguring the spy would.
+		TreeSpyListener listener = (file, type) -> {
+			synchronized (lock) {
+				done.countDown();
+			}
+		};
+
+		ListenerDispatcher dispatcher = new ListenerDispatcher(executor, (l, changes) -> {
+			for (Change change : changes)
+				l.onChange(change.getPath(), change.getEvent());
+		}, 1, 1, BackpressurePolicy.BLOCK);
+
+		for (int i = 0; i < 20; i++) {
+			synchronized (lock) {
+				dispatcher.dispatch(listener, Collections.singletonList(new Change(Paths.get("file" + i), Events.MODIFY)));
+			}
+			dispatcher.awaitCapacity();
+			Assert.assertTrue(dispatcher.getQueueDepth(listener) <= 1);
+		}
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testRemovedListenerAddedBackKeepsItsOrder() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Path> received = Collections.synchronizedList(new ArrayList<Path>());
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicBoolean overlapped = new AtomicBoolean(false);
+		final CountDownLatch done = new CountDownLatch(2);
+
+		TreeSpyListener listener = (file, type) -> {
+			if (inFlight.incrementAndGet() > 1)
+				overlapped.set(true);
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			received.add(file);
+			inFlight.decrementAndGet();
+			done.countDown();
+		};
+
+		ListenerDispatcher dispatcher = new ListenerDispatcher(executor, (l, changes) -> {
+			for (Change change : changes)
+				l.onChange(change.getPath(), change.getEvent());
+		}, 16);
+
+		dispatcher.dispatch(listener, Collections.singletonList(new Change(Paths.get("first"), Events.MODIFY)));
+		Thread.sleep(100);
+		dispatcher.remove(listener);
+		dispatcher.dispatch(listener, Collections.singletonList(new Change(Paths.get("second"), Events.MODIFY)));
+		Thread.sleep(100);
+		release.countDown();
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertFalse(overlapped.get());
+		Assert.assertEquals(Arrays.asList(Paths.get("first"), Paths.get("second")), received);
+	}
+
+	/**
+	 * Offers changes to a dispatcher with room for two, whose executor does
+	 * not run anything until all the changes have been offered.
+	 */
+	private List<Change> runFull(BackpressurePolicy policy, List<Change> offered) {
+		final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		Executor manual = tasks::add;
+
+		final List<Change> received = new ArrayList<Change>();
+		ListenerDispatcher dispatcher = new ListenerDispatcher(manual, (l, changes) -> received.addAll(changes), 100,
+				2, policy);
+
+		TreeSpyListener listener = (file, type) -> {
+		};
+		for (Change change : offered) {
+			dispatcher.dispatch(listener, Collections.singletonList(change));
+		}
+
+		while (!tasks.isEmpty())
+			tasks.poll().run();
+		return received;
+	}
+
+	private List<Change> changes(String... names) {
+		List<Change> changes = new ArrayList<Change>();
+		for (String name : names) {
+			changes.add(new Change(Paths.get("dir", name), Events.MODIFY));
+		}
+		return changes;
+	}
+}
@@ -0,0 +1,186 @@
+package com.sourcepulp.treespy.concurrent;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+
+public class RingBufferEventBusTest {
+
+	private static final int CHANGES = 2000;
+
+	@Test
+	public void testEveryConsumerReceivesItsChangesInOrder() throws InterruptedException {
+		for (WaitStrategy strategy : WaitStrategy.values()) {
+			final List<Path> odd = Collections.synchronizedList(new ArrayList<Path>());
+			final List<Path> all = Collections.synchronizedList(new ArrayList<Path>());
+			final CountDownLatch done = new CountDownLatch(CHANGES + CHANGES / 2);
+			TreeSpyListener oddListener = (file, type) -> {
+				odd.add(file);
+				done.countDown();
+			};
+			TreeSpyListener allListener = (file, type) -> {
+				all.add(file);
+				done.countDown();
+			};
+
+			// A ring much smaller than the stream, so that it wraps many times.
+			RingBufferEventBus bus = new RingBufferEventBus(64, strategy, new TreeSpyThreadFactory(),
+					RingBufferEventBusTest::deliver,
+					(listener, change) -> listener != oddListener || change.getPath().toString().endsWith("1"), 16);
+			Collection<TreeSpyListener> audience = Arrays.asList(oddListener, allListener);
+
+			List<Path> sent = new ArrayList<Path>();
+			List<Path> sentOdd = new ArrayList<Path>();
+			for (int i = 0; i < CHANGES; i++) {
+				Path path = Paths.get("file" + (i % 2) + "-" + i + "-" + (i % 2));
+				sent.add(path);
+				if (i % 2 == 1)
+					sentOdd.add(path);
+				bus.publish(audience, Collections.singletonList(new Change(path, Events.MODIFY)));
+			}
+
+			Assert.assertTrue(strategy.toString(), done.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(sent, all);
+			Assert.assertEquals(sentOdd, odd);
+			bus.shutdown();
+		}
+	}
+
+	@Test
+	public void testSlowConsumerOnlyLagsItself() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch fastDone = new CountDownLatch(100);
+		TreeSpyListener slow = (file, type) -> {
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		TreeSpyListener fast = (file, type) -> fastDone.countDown();
+
+		RingBufferEventBus bus = new RingBufferEventBus(1024, WaitStrategy.PARK, new TreeSpyThreadFactory(),
+				RingBufferEventBusTest::deliver, (listener, change) -> true, 1);
+		Collection<TreeSpyListener> audience = Arrays.asList(slow, fast);
+		for (int i = 0; i < 100; i++) {
+			bus.publish(audience, Collections.singletonList(new Change(Paths.get("f" + i), Events.CREATE)));
+		}
+
+		Assert.assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+		// The last slot is released just after it is delivered.
+		long deadline = System.currentTimeMillis() + 1000;
+		while (bus.getLag(fast) > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Assert.assertEquals(0, bus.getLag(fast));
+		Assert.assertTrue(bus.getLag(slow) > 0);
+		release.countDown();
+		bus.shutdown();
+	}
+
+	@Test
+	public void testListenerAddedBackAsItsConsumerStopsMissesNothing() throws InterruptedException {
+		final List<Path> received = Collections.synchronizedList(new ArrayList<Path>());
+		TreeSpyListener listener = (file, type) -> received.add(file);
+		RingBufferEventBus bus = new RingBufferEventBus(64, WaitStrategy.PARK, new TreeSpyThreadFactory(),
+				RingBufferEventBusTest::deliver, (l, change) -> true, 16);
+		Collection<TreeSpyListener> audience = Collections.singletonList(listener);
+
+		for (int i = 0; i < 200; i++) {
+			Path before = Paths.get("before" + i);
+			bus.publish(audience, Collections.singletonList(new Change(before, Events.CREATE)));
+			awaitReceived(received, before);
+
+			// Published at varying points while the caught-up consumer is on
+			// its way out.
+			bus.remove(listener);
+			long until = System.nanoTime() + (i % 50) * 1000;
+			while (System.nanoTime() < until)
+				Thread.yield();
+			Path after = Paths.get("after" + i);
+			bus.publish(audience, Collections.singletonList(new Change(after, Events.CREATE)));
+			awaitReceived(received, after);
+			Assert.assertTrue(after.toString(), received.contains(after));
+		}
+		bus.shutdown();
+	}
+
+	@Test
+	public void testAudienceIsTheOneAtPublication() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Path> received = Collections.synchronizedList(new ArrayList<Path>());
+		TreeSpyListener listener = (file, type) -> {
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			received.add(file);
+		};
+		RingBufferEventBus bus = new RingBufferEventBus(64, WaitStrategy.PARK, new TreeSpyThreadFactory(),
+				RingBufferEventBusTest::deliver, (l, change) -> true, 1);
+		Collection<TreeSpyListener> audience = new CopyOnWriteArraySet<TreeSpyListener>();
+		audience.add(listener);
+
+		List<Path> sent = new ArrayList<Path>();
+		for (int i = 0; i < 10; i++) {
+			Path path = Paths.get("f" + i);
+			sent.add(path);
+			bus.publish(audience, Collections.singletonList(new Change(path, Events.CREATE)));
+		}
+		// Removed while its consumer is still behind.
+		audience.remove(listener);
+		bus.remove(listener);
+		release.countDown();
+
+		awaitReceived(received, sent.get(sent.size() - 1));
+		Assert.assertEquals(sent, received);
+		bus.shutdown();
+	}
+
+	@Test(timeout = 10000)
+	public void testListenerErrorDoesNotStallThePublisher() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(20);
+		TreeSpyListener failing = (file, type) -> {
+			throw new Error("Listener failed");
+		};
+		TreeSpyListener healthy = (file, type) -> done.countDown();
+		RingBufferEventBus bus = new RingBufferEventBus(4, WaitStrategy.PARK, new TreeSpyThreadFactory(),
+				RingBufferEventBusTest::deliver, (listener, change) -> true, 1);
+
+		// The ring wraps several times, so the publisher waits on every
+		// consumer's cursor, including the dead one's.
+		for (int i = 0; i < 20; i++) {
+			bus.publish(Arrays.asList(failing, healthy),
+					Collections.singletonList(new Change(Paths.get("f" + i), Events.CREATE)));
+		}
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		bus.shutdown();
+	}
+
+	private static void awaitReceived(List<Path> received, Path path) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 2000;
+		while (!received.contains(path) && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+	}
+
+	private static void deliver(TreeSpyListener listener, List<Change> changes) {
+		for (Change change : changes) {
+			listener.onChange(change.getPath(), change.getEvent());
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.sourcepulp.treespy.glob;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+
+public class GlobIndexTest {
+
+	private static final String[] GLOBS = { "*", "*.java", "*.tar.gz", "pom.xml", "Test*.java", "*.{js,ts}",
+			"[a-c]*.txt", "file?.log", "}}}+==--$%566&(6" };
+
+	private static final String[] NAMES = { "Foo.java", "TestFoo.java", "archive.tar.gz", "archive.gz", "pom.xml",
+			"pom.xml.bak", "index.js", "index.ts", "a.txt", "d.txt", "file1.log", "file10.log", ".java", "noext" };
+
+	private GlobIndex index;
+	private TreeSpyListener[] listeners;
+
+	@Before
+	public void setup() {
+		index = new GlobIndex();
+		listeners = new TreeSpyListener[GLOBS.length];
+		for (int i = 0; i < GLOBS.length; i++) {
+			listeners[i] = new TreeSpyListener() {
+				@Override
+				public void onChange(Path file, Events type) {
+				}
+			};
+			index.add(listeners[i], GLOBS[i]);
+		}
+	}
+
+	@Test
+	public void testAgreesWithPathMatcher() {
+		for (String name : NAMES) {
+			Path fileName = Paths.get(name);
+			Set<TreeSpyListener> matched = index.match(fileName);
+			for (int i = 0; i < GLOBS.length; i++) {
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + GLOBS[i]);
+				Assert.assertEquals(GLOBS[i] + " against " + name, matcher.matches(fileName),
+						matched.contains(listeners[i]));
+				Assert.assertEquals(GLOBS[i] + " alone against " + name, matcher.matches(fileName),
+						index.matches(listeners[i], fileName));
+			}
+		}
+	}
+
+	@Test
+	public void testListenerWithoutGlobsMatchesEverything() {
+		TreeSpyListener unfiltered = (file, type) -> {
+		};
+		Assert.assertFalse(index.hasGlobs(unfiltered));
+		Assert.assertTrue(index.matches(unfiltered, Paths.get("anything")));
+	}
+
+	@Test
+	public void testListenerMatchesAnyOfItsOwnGlobs() {
+		TreeSpyListener several = (file, type) -> {
+		};
+		index.add(several, "*.md");
+		index.add(several, "Makefile");
+		index.add(several, "build-*.sh");
+		index.add(several, "src/**");
+
+		Assert.assertTrue(index.matches(several, Paths.get("README.md")));
+		Assert.assertTrue(index.matches(several, Paths.get("Makefile")));
+		Assert.assertTrue(index.matches(several, Paths.get("build-all.sh")));
+		Assert.assertFalse(index.matches(several, Paths.get("Foo.java")));
+		Assert.assertFalse(index.matches(several, Paths.get("src")));
+
+		TreeSpyListener relativeOnly = (file, type) -> {
+		};
+		index.add(relativeOnly, "src/*.java");
+		Assert.assertFalse(index.matches(relativeOnly, Paths.get("Foo.java")));
+	}
+
+	@Test
+	public void testRemove() {
+		index.remove(listeners[1]);
+		Assert.assertFalse(index.hasGlobs(listeners[1]));
+		Assert.assertFalse(index.match(Paths.get("Foo.java")).contains(listeners[1]));
+	}
+
+	@Test
+	public void testRelativeGlobs() {
+		TreeSpyListener sources = new TreeSpyListener() {
+			@Override
+			public void onChange(Path file, Events type) {
+			}
+		};
+		index.add(sources, "src/**/*.java");
+
+		Assert.assertTrue(index.hasGlobs(sources));
+		Assert.assertTrue(index.hasRelativeGlobs(sources));
+		Assert.assertFalse(index.match(Paths.get("Foo.java")).contains(sources));
+		Assert.assertTrue(index.matchesRelative(sources, Paths.get("src", "main", "Foo.java")));
+		Assert.assertFalse(index.matchesRelative(sources, Paths.get("test", "main", "Foo.java")));
+	}
+
+	@Test
+	public void testExcludes() {
+		TreeSpyListener excluding = new TreeSpyListener() {
+			@Override
+			public void onChange(Path file, Events type) {
+			}
+		};
+		index.add(excluding, "!node_modules");
+		index.add(excluding, "!*.tmp");
+		index.add(excluding, "!build/generated");
+
+		Assert.assertFalse(index.hasGlobs(excluding));
+		Assert.assertTrue(index.hasExcludes(excluding));
+		Assert.assertTrue(index.isExcluded(excluding, Paths.get("web", "node_modules")));
+		Assert.assertTrue(index.isExcluded(excluding, Paths.get("scratch.tmp")));
+		Assert.assertTrue(index.isExcluded(excluding, Paths.get("build", "generated")));
+		Assert.assertFalse(index.isExcluded(excluding, Paths.get("src", "generated")));
+		Assert.assertFalse(index.isExcluded(listeners[0], Paths.get("node_modules")));
+	}
+
+	@Test
+	public void testRequiredLiteral() {
+		Assert.assertEquals(".java", GlobIndex.requiredLiteral("Test*.java"));
+		Assert.assertEquals(".txt", GlobIndex.requiredLiteral("[a-c]*.txt"));
+		Assert.assertEquals("file", GlobIndex.requiredLiteral("{x,y}file?"));
+		Assert.assertNull(GlobIndex.requiredLiteral("*"));
+		Assert.assertNull(GlobIndex.requiredLiteral("\\*.txt"));
+	}
+}
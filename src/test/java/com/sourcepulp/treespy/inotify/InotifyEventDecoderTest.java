@@ -0,0 +1,88 @@
+package com.sourcepulp.treespy.inotify;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InotifyEventDecoderTest {
+
+	@Test
+	public void testDecodesRecords() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(256).order(ByteOrder.nativeOrder());
+		int length = 0;
+		length = put(buffer, length, 1, InotifyNative.IN_CREATE, 0, "created.txt", 16);
+		length = put(buffer, length, 2, InotifyNative.IN_MOVED_FROM, 42, "moved", 8);
+		length = put(buffer, length, -1, InotifyNative.IN_Q_OVERFLOW, 0, "", 0);
+
+		final List<String> decoded = new ArrayList<String>();
+		int count = InotifyEventDecoder.decode(buffer, length, new InotifyEventDecoder.Handler() {
+			@Override
+			public void onEvent(int wd, int mask, int cookie, ByteBuffer events, int nameOffset, int nameLength) {
+				byte[] name = new byte[nameLength];
+				for (int i = 0; i < nameLength; i++)
+					name[i] = events.get(nameOffset + i);
+				decoded.add(String.format("%d %x %d %s", wd, mask, cookie, new String(name, StandardCharsets.UTF_8)));
+			}
+		});
+
+		Assert.assertEquals(3, count);
+		Assert.assertEquals("1 100 0 created.txt", decoded.get(0));
+		Assert.assertEquals("2 40 42 moved", decoded.get(1));
+		Assert.assertEquals("-1 4000 0 ", decoded.get(2));
+	}
+
+	@Test
+	public void testIgnoresTruncatedRecord() {
+		ByteBuffer buffer = ByteBuffer.allocate(64).order(ByteOrder.nativeOrder());
+		int length = put(buffer, 0, 1, InotifyNative.IN_DELETE, 0, "gone", 16);
+
+		int count = InotifyEventDecoder.decode(buffer, length - 4, new InotifyEventDecoder.Handler() {
+			@Override
+			public void onEvent(int wd, int mask, int cookie, ByteBuffer events, int nameOffset, int nameLength) {
+				Assert.fail("Truncated record was decoded");
+			}
+		});
+		Assert.assertEquals(0, count);
+	}
+
+	@Test
+	public void testDescriptorTable() {
+		WatchDescriptorTable table = new WatchDescriptorTable();
+		List<InotifyWatchKey> keys = new ArrayList<InotifyWatchKey>();
+		for (int wd = 1; wd <= 1000; wd++) {
+			InotifyWatchKey key = new InotifyWatchKey(null, null, null, wd);
+			keys.add(key);
+			table.put(wd, key);
+		}
+		for (int wd = 1; wd <= 1000; wd += 2)
+			Assert.assertSame(keys.get(wd - 1), table.remove(wd));
+
+		Assert.assertEquals(500, table.size());
+		for (int wd = 1; wd <= 1000; wd++) {
+			if (wd % 2 == 0)
+				Assert.assertSame(keys.get(wd - 1), table.get(wd));
+			else
+				Assert.assertNull(table.get(wd));
+		}
+	}
+
+	/**
+	 * Writes a struct inotify_event with its name padded to the specified
+	 * length, returning the new length of the buffer.
+	 */
+	private int put(ByteBuffer buffer, int offset, int wd, int mask, int cookie, String name, int padded) {
+		buffer.putInt(offset, wd);
+		buffer.putInt(offset + 4, mask);
+		buffer.putInt(offset + 8, cookie);
+		buffer.putInt(offset + 12, padded);
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < padded; i++)
+			buffer.put(offset + 16 + i, i < bytes.length ? bytes[i] : 0);
+		return offset + 16 + padded;
+	}
+}
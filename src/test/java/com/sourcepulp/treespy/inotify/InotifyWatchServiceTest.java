@@ -0,0 +1,97 @@
+package com.sourcepulp.treespy.inotify;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Only runs where the native library is on java.library.path.
+ */
+public class InotifyWatchServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRenameCarriesCookie() throws IOException, InterruptedException {
+		Assume.assumeTrue(InotifyWatchService.isAvailable());
+
+		try (InotifyWatchService service = new InotifyWatchService()) {
+			Path directory = folder.getRoot().toPath();
+			WatchKey key = service.register(directory, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+
+			Path file = Files.createFile(directory.resolve("before.txt"));
+			Files.move(file, directory.resolve("after.txt"));
+
+			List<WatchEvent<?>> events = new ArrayList<WatchEvent<?>>();
+			while (events.size() < 3) {
+				Assert.assertSame(key, service.poll(5, TimeUnit.SECONDS));
+				events.addAll(key.pollEvents());
+				key.reset();
+			}
+
+			InotifyEvent created = (InotifyEvent) events.get(0);
+			InotifyEvent from = (InotifyEvent) events.get(1);
+			InotifyEvent to = (InotifyEvent) events.get(2);
+			Assert.assertFalse(created.isMove());
+			Assert.assertEquals(ENTRY_DELETE, from.kind());
+			Assert.assertEquals(Paths.get("before.txt"), from.context());
+			Assert.assertEquals(ENTRY_CREATE, to.kind());
+			Assert.assertEquals(Paths.get("after.txt"), to.context());
+			Assert.assertTrue(from.isMove());
+			Assert.assertEquals(from.getCookie(), to.getCookie());
+		}
+	}
+
+	@Test
+	public void testCloseWakesTheReaderToReleaseTheDescriptor() throws IOException, InterruptedException {
+		Assume.assumeTrue(InotifyWatchService.isAvailable());
+
+		int before = countInotifyDescriptors();
+		InotifyWatchService service = new InotifyWatchService();
+		WatchKey key = service.register(folder.getRoot().toPath(), ENTRY_CREATE);
+		Assert.assertEquals(before + 1, countInotifyDescriptors());
+
+		service.close();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (countInotifyDescriptors() > before && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Assert.assertEquals(before, countInotifyDescriptors());
+
+		// Nothing left to remove the watch from.
+		key.cancel();
+		Assert.assertFalse(key.isValid());
+	}
+
+	private static int countInotifyDescriptors() throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> descriptors = Files.newDirectoryStream(Paths.get("/proc/self/fd"))) {
+			for (Path descriptor : descriptors) {
+				try {
+					if (Files.readSymbolicLink(descriptor).toString().contains("inotify"))
+						count++;
+				} catch (IOException ex) {
+					// Closed while listing.
+				}
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,128 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.TreeSpyListener;
+
+public class ContentFilterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final TreeSpyListener listener = (file, type) -> {
+	};
+
+	private final BlockingQueue<List<Change>> delivered = new LinkedBlockingQueue<>();
+	private final BlockingQueue<Thread> deliveredOn = new LinkedBlockingQueue<>();
+	private volatile boolean failNext = false;
+
+	private final ContentFilter filter = new ContentFilter(2, 1024 * 1024, (listener, changes) -> {
+		deliveredOn.add(Thread.currentThread());
+		if (failNext) {
+			failNext = false;
+			throw new AssertionError("Listener failed");
+		}
+		delivered.add(changes);
+	});
+
+	@After
+	public void shutdown() {
+		filter.shutdown();
+	}
+
+	@Test
+	public void testBatchOfManyFilesKeepsOnlyTheChangedOnes() throws Exception {
+		filter.add(listener);
+		List<Path> files = new ArrayList<>();
+		List<Change> created = new ArrayList<>();
+		for (int i = 0; i < 16; i++) {
+			Path file = folder.newFile("file" + i + ".txt").toPath();
+			Files.write(file, ("original content of file " + i).getBytes());
+			files.add(file);
+			created.add(new Change(file, Events.CREATE));
+		}
+		filter.deliver(listener, created, filter.examine(created));
+		Assert.assertEquals(16, delivered.poll(5, TimeUnit.SECONDS).size());
+
+		List<Change> modified = new ArrayList<>();
+		for (int i = 0; i < files.size(); i++) {
+			if (i % 2 == 0)
+				Files.write(files.get(i), ("rewritten content of file " + i).getBytes());
+			modified.add(new Change(files.get(i), Events.MODIFY));
+		}
+		CompletableFuture<Set<Change>> unchanged = filter.examine(modified);
+		filter.deliver(listener, modified, unchanged);
+
+		List<Change> surviving = delivered.poll(5, TimeUnit.SECONDS);
+		Assert.assertEquals(8, surviving.size());
+		for (Change change : surviving) {
+			int i = files.indexOf(change.getPath());
+			Assert.assertEquals(0, i % 2);
+		}
+		Assert.assertEquals(8, unchanged.get().size());
+	}
+
+	@Test
+	public void testListenerErrorDoesNotHoldUpLaterBatches() throws Exception {
+		filter.add(listener);
+		Path file = folder.newFile("a.txt").toPath();
+		Files.write(file, "some content".getBytes());
+
+		failNext = true;
+		List<Change> first = Collections.singletonList(new Change(file, Events.CREATE));
+		CompletableFuture<Set<Change>> examined = filter.examine(first);
+		filter.deliver(listener, first, examined);
+		examined.get(5, TimeUnit.SECONDS);
+
+		Files.write(file, "other content".getBytes());
+		List<Change> second = Arrays.asList(new Change(file, Events.MODIFY));
+		filter.deliver(listener, second, filter.examine(second));
+
+		Assert.assertEquals(second, delivered.poll(5, TimeUnit.SECONDS));
+		Assert.assertNotEquals(Thread.currentThread(), deliveredOn.take());
+		Assert.assertNotEquals(Thread.currentThread(), deliveredOn.take());
+	}
+
+	@Test
+	public void testChangesToOnePathAreExaminedInOrder() throws Exception {
+		filter.add(listener);
+		Path file = folder.newFile("a.txt").toPath();
+		Files.write(file, "first content".getBytes());
+
+		List<Change> created = Collections.singletonList(new Change(file, Events.CREATE));
+		filter.examine(created);
+		List<Change> deleted = Collections.singletonList(new Change(file, Events.DELETE));
+		filter.examine(deleted);
+		List<Change> recreated = Collections.singletonList(new Change(file, Events.MODIFY));
+		// Forgotten by the DELETE, so the MODIFY cannot be judged unchanged.
+		Assert.assertTrue(filter.examine(recreated).get(5, TimeUnit.SECONDS).isEmpty());
+	}
+
+	@Test
+	public void testFilesOutsideTheGlobsAreNotExamined() throws Exception {
+		filter.add(listener, "*.java");
+		Path file = folder.newFile("notes.txt").toPath();
+		List<Change> modified = Collections.singletonList(new Change(file, Events.MODIFY));
+		Assert.assertTrue(filter.examine(modified).isDone());
+		Assert.assertEquals(0, filter.getFingerprints().size());
+	}
+}
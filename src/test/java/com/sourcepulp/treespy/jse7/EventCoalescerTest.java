@@ -0,0 +1,70 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sourcepulp.treespy.Events;
+
+public class EventCoalescerTest {
+
+	private static final long QUIET = 100;
+
+	private final Path directory = Paths.get("watched");
+	private final Path a = directory.resolve("a.txt");
+	private final Path b = directory.resolve("b.txt");
+
+	@Test
+	public void testCreateThenModifyIsCreate() {
+		EventCoalescer coalescer = new EventCoalescer(QUIET);
+		coalescer.offer(directory, a, Events.CREATE, 0);
+		coalescer.offer(directory, a, Events.MODIFY, 10);
+		coalescer.offer(directory, a, Events.MODIFY, 20);
+
+		List<EventCoalescer.Pending> due = coalescer.drain(20 + QUIET);
+		Assert.assertEquals(1, due.size());
+		Assert.assertEquals(a, due.get(0).path);
+		Assert.assertEquals(Events.CREATE, due.get(0).event);
+	}
+
+	@Test
+	public void testCreateThenDeleteCancels() {
+		EventCoalescer coalescer = new EventCoalescer(QUIET);
+		coalescer.offer(directory, a, Events.CREATE, 0);
+		coalescer.offer(directory, a, Events.DELETE, 10);
+
+		Assert.assertTrue(coalescer.drain(1000).isEmpty());
+	}
+
+	@Test
+	public void testDeleteThenCreateIsModify() {
+		EventCoalescer coalescer = new EventCoalescer(QUIET);
+		coalescer.offer(directory, a, Events.DELETE, 0);
+		coalescer.offer(directory, a, Events.CREATE, 10);
+
+		List<EventCoalescer.Pending> due = coalescer.drain(1000);
+		Assert.assertEquals(1, due.size());
+		Assert.assertEquals(Events.MODIFY, due.get(0).event);
+	}
+
+	@Test
+	public void testOnlyQuietPathsAreDrained() {
+		EventCoalescer coalescer = new EventCoalescer(QUIET);
+		coalescer.offer(directory, a, Events.MODIFY, 0);
+		coalescer.offer(directory, b, Events.MODIFY, 50);
+		coalescer.offer(directory, a, Events.MODIFY, 60);
+
+		Assert.assertEquals(QUIET - 50, coalescer.nanosUntilNextFlush(100));
+
+		List<EventCoalescer.Pending> due = coalescer.drain(150);
+		Assert.assertEquals(1, due.size());
+		Assert.assertEquals(b, due.get(0).path);
+
+		due = coalescer.drain(160);
+		Assert.assertEquals(1, due.size());
+		Assert.assertEquals(a, due.get(0).path);
+	}
+}
@@ -0,0 +1,54 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FingerprintCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRewriteWithSameContentIsUnchanged() throws IOException {
+		FingerprintCache cache = new FingerprintCache(1024 * 1024);
+		Path file = folder.newFile("a.txt").toPath();
+		Files.write(file, "same content, over eight bytes".getBytes());
+
+		Assert.assertTrue(cache.contentChanged(file));
+		Files.write(file, "same content, over eight bytes".getBytes());
+		Assert.assertFalse(cache.contentChanged(file));
+
+		// Same length, different content, and a modification time the cache
+		// would otherwise trust.
+		Files.write(file, "same content, over eight byteZ".getBytes());
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 60000));
+		Assert.assertTrue(cache.contentChanged(file));
+		Assert.assertFalse(cache.contentChanged(file));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedAreEvicted() throws IOException {
+		Path first = folder.newFile("first").toPath();
+		Path second = folder.newFile("second").toPath();
+		Path third = folder.newFile("third").toPath();
+		long perEntry = 120 + 2L * first.toString().length();
+		FingerprintCache cache = new FingerprintCache(2 * perEntry);
+
+		cache.contentChanged(first);
+		cache.contentChanged(second);
+		cache.contentChanged(first);
+		cache.contentChanged(third);
+
+		Assert.assertEquals(2, cache.size());
+		Assert.assertTrue(cache.estimatedBytes() <= 2 * perEntry);
+		Assert.assertFalse(cache.contentChanged(first));
+		Assert.assertTrue(cache.contentChanged(second));
+	}
+}
@@ -0,0 +1,86 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.snapshot.DirectorySnapshot;
+import com.sourcepulp.treespy.snapshot.NameTable;
+
+public class IndexCatchUpTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final NameTable names = new NameTable();
+	private final ConcurrentMap<Path, DirectorySnapshot> restored = new ConcurrentHashMap<Path, DirectorySnapshot>();
+
+	private Path root;
+	private Path sub;
+	private Path gone;
+
+	@Before
+	public void setup() throws IOException {
+		root = folder.getRoot().toPath();
+		sub = folder.newFolder("sub").toPath();
+		gone = folder.newFolder("gone").toPath();
+		Files.write(root.resolve("a.txt"), "before".getBytes());
+
+		restored.put(root, DirectorySnapshot.scan(root, names));
+		restored.put(sub, DirectorySnapshot.scan(sub, names));
+		restored.put(gone, DirectorySnapshot.scan(gone, names));
+	}
+
+	@Test
+	public void testFindsChangesMadeWhileNotWatched() throws IOException {
+		Files.write(root.resolve("a.txt"), "after, and longer".getBytes());
+		Files.delete(gone);
+		Path created = Files.createDirectory(root.resolve("created"));
+		Files.createDirectory(created.resolve("nested"));
+		Files.write(created.resolve("nested").resolve("b.txt"), new byte[] { 1 });
+
+		IndexCatchUp catchUp = new IndexCatchUp(restored, root, true);
+		catchUp.compare(root, DirectorySnapshot.scan(root, names));
+		catchUp.compare(sub, DirectorySnapshot.scan(sub, names));
+		catchUp.compare(created, DirectorySnapshot.scan(created, names));
+		catchUp.compare(created.resolve("nested"), DirectorySnapshot.scan(created.resolve("nested"), names));
+		List<Change> missed = catchUp.finish();
+
+		Set<Change> expected = new HashSet<Change>();
+		expected.add(new Change(root.resolve("a.txt"), Events.MODIFY));
+		expected.add(new Change(gone, Events.DELETE));
+		expected.add(new Change(created, Events.CREATE));
+		expected.add(new Change(created.resolve("nested"), Events.CREATE));
+		expected.add(new Change(created.resolve("nested").resolve("b.txt"), Events.CREATE));
+		Assert.assertEquals(expected, new HashSet<Change>(missed));
+		Assert.assertEquals(expected.size(), missed.size());
+
+		// What the index held for the deleted directory is forgotten too.
+		Assert.assertTrue(restored.isEmpty());
+	}
+
+	@Test
+	public void testDirectoryMissingFromTheIndexIsIgnoredUnlessFoundNew() throws IOException {
+		Path unrelated = folder.newFolder("sub", "unrelated").toPath();
+		Files.write(unrelated.resolve("c.txt"), new byte[] { 1 });
+
+		IndexCatchUp catchUp = new IndexCatchUp(restored, unrelated, false);
+		catchUp.compare(unrelated, DirectorySnapshot.scan(unrelated, names));
+
+		Assert.assertTrue(catchUp.finish().isEmpty());
+		Assert.assertEquals(3, restored.size());
+	}
+}
@@ -0,0 +1,49 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MoveDetectorTest {
+
+	private static final long WINDOW = 100;
+	private static final long DEVICE = 1;
+
+	private final Path directory = Paths.get("watched");
+	private final Path a = directory.resolve("a.txt");
+	private final Path b = directory.resolve("b.txt");
+
+	@Test
+	public void testCreateCompletesTheDeleteOfTheSameFile() {
+		MoveDetector moves = new MoveDetector(WINDOW);
+		moves.offerDelete(directory, a, DEVICE, 42, false, 0);
+
+		Assert.assertNull(moves.matchCreate(DEVICE + 1, 42));
+		Assert.assertNull(moves.matchCreate(DEVICE, 0));
+		Assert.assertEquals(a, moves.matchCreate(DEVICE, 42).path);
+		Assert.assertNull(moves.matchCreate(DEVICE, 42));
+	}
+
+	@Test
+	public void testReofferedDeleteExpiresInItsNewPlace() {
+		MoveDetector moves = new MoveDetector(WINDOW);
+		moves.offerDelete(directory, a, DEVICE, 1, false, 0);
+		moves.offerDelete(directory, b, DEVICE, 2, false, 10);
+
+		// The same inode again, later, displacing the first DELETE.
+		MoveDetector.PendingDelete displaced = moves.offerDelete(directory, a, DEVICE, 1, false, 20);
+		Assert.assertEquals(a, displaced.path);
+
+		Assert.assertEquals(WINDOW + 10 - 50, moves.nanosUntilNextExpiry(50));
+		List<MoveDetector.PendingDelete> expired = moves.expire(10 + WINDOW);
+		Assert.assertEquals(1, expired.size());
+		Assert.assertEquals(b, expired.get(0).path);
+
+		expired = moves.expire(20 + WINDOW);
+		Assert.assertEquals(1, expired.size());
+		Assert.assertEquals(a, expired.get(0).path);
+	}
+}
@@ -0,0 +1,179 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.SpyFactory;
+import com.sourcepulp.treespy.TreeSpy;
+import com.sourcepulp.treespy.TreeSpyListener;
+import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+
+public class SharedWatchEngineTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<Thread> pollers = new CopyOnWriteArrayList<Thread>();
+	private SharedWatchEngine engine;
+	private Path root;
+
+	@Before
+	public void setup() {
+		final ThreadFactory factory = new TreeSpyThreadFactory();
+		engine = new SharedWatchEngine(2, runnable -> {
+			Thread thread = factory.newThread(runnable);
+			pollers.add(thread);
+			return thread;
+		});
+		root = folder.getRoot().toPath();
+	}
+
+	@After
+	public void teardown() throws IOException {
+		engine.close();
+	}
+
+	@Test
+	public void testSpiesWatchingTheSameDirectoryShareItsKey() throws IOException, InterruptedException {
+		TreeSpy first = SpyFactory.getSpy(engine);
+		TreeSpy second = SpyFactory.getSpy(engine);
+		RecordingListener firstListener = new RecordingListener();
+		RecordingListener secondListener = new RecordingListener();
+
+		first.watchJust(folder.getRoot(), firstListener);
+		second.watchJust(folder.getRoot(), secondListener);
+		Assert.assertEquals(1, engine.getWatchKeyCount());
+		Assert.assertEquals(2, engine.getAttachedSpyCount());
+
+		Path file = Files.createFile(root.resolve("a.txt"));
+		firstListener.await(file);
+		secondListener.await(file);
+		Assert.assertTrue(firstListener.created.contains(file));
+		Assert.assertTrue(secondListener.created.contains(file));
+
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testKeyIsCancelledOnlyOnceEverySpyReleasesIt() throws IOException, InterruptedException {
+		TreeSpy first = SpyFactory.getSpy(engine);
+		TreeSpy second = SpyFactory.getSpy(engine);
+		RecordingListener firstListener = new RecordingListener();
+		RecordingListener secondListener = new RecordingListener();
+		first.watchJust(folder.getRoot(), firstListener);
+		second.watchJust(folder.getRoot(), secondListener);
+
+		first.close();
+		Assert.assertEquals(1, engine.getWatchKeyCount());
+		Assert.assertEquals(1, engine.getAttachedSpyCount());
+
+		Path file = Files.createFile(root.resolve("b.txt"));
+		secondListener.await(file);
+		Assert.assertTrue(secondListener.created.contains(file));
+		Assert.assertTrue(firstListener.created.isEmpty());
+
+		second.unwatch(folder.getRoot(), secondListener);
+		Assert.assertEquals(0, engine.getWatchKeyCount());
+		second.close();
+	}
+
+	@Test
+	public void testInterruptedPollersKeepPolling() throws IOException, InterruptedException {
+		TreeSpy spy = SpyFactory.getSpy(engine);
+		RecordingListener listener = new RecordingListener();
+		spy.watchJust(folder.getRoot(), listener);
+
+		Assert.assertFalse(pollers.isEmpty());
+		for (Thread poller : pollers) {
+			poller.interrupt();
+		}
+		Thread.sleep(200);
+
+		Path file = Files.createFile(root.resolve("c.txt"));
+		listener.await(file);
+		Assert.assertTrue(listener.created.contains(file));
+		for (Thread poller : pollers) {
+			Assert.assertTrue(poller.isAlive());
+		}
+		spy.close();
+	}
+
+	@Test
+	public void testSpyIsTickedByOneThreadAtATime() throws IOException, InterruptedException {
+		SharedWatchEngine busy = new SharedWatchEngine(4);
+		final AtomicInteger ticking = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final AtomicInteger ticks = new AtomicInteger();
+		final Set<Thread> tickers = new CopyOnWriteArraySet<Thread>();
+		TreeSpyJSE7StdLib spy = new TreeSpyJSE7StdLib(busy) {
+			@Override
+			void tick(long now) {
+				if (ticking.incrementAndGet() > 1)
+					overlaps.incrementAndGet();
+				tickers.add(Thread.currentThread());
+				ticks.incrementAndGet();
+				try {
+					super.tick(now);
+				} finally {
+					ticking.decrementAndGet();
+				}
+			}
+		};
+		spy.setCoalescingWindow(100, TimeUnit.MILLISECONDS);
+		RecordingListener listener = new RecordingListener();
+		try {
+			spy.watchJust(folder.getRoot(), listener);
+
+			// Far more keys drained than ticks due.
+			long started = System.nanoTime();
+			Path last = null;
+			for (int i = 0; i < 200; i++) {
+				last = Files.createFile(root.resolve("f" + i));
+			}
+			listener.await(last);
+			long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+			Assert.assertTrue(listener.created.contains(last));
+			Assert.assertEquals(0, overlaps.get());
+			Assert.assertEquals(1, tickers.size());
+			Assert.assertTrue("Ticks: " + ticks.get(), ticks.get() <= elapsedMillis / 50 + 2);
+		} finally {
+			spy.close();
+			busy.close();
+		}
+	}
+
+	private static class RecordingListener implements TreeSpyListener {
+
+		final List<Path> created = new CopyOnWriteArrayList<Path>();
+
+		@Override
+		public void onChange(Path file, Events type) {
+			if (type == Events.CREATE)
+				created.add(file);
+		}
+
+		void await(Path file) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!created.contains(file) && System.currentTimeMillis() < deadline)
+				Thread.sleep(20);
+		}
+	}
+}
@@ -0,0 +1,569 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.SpyFactory;
+import com.sourcepulp.treespy.TreeSpyBatchListener;
+import com.sourcepulp.treespy.TreeSpyListener;
+import com.sourcepulp.treespy.concurrent.RingBufferEventBus;
+import com.sourcepulp.treespy.concurrent.TreeSpyExecutor;
+import com.sourcepulp.treespy.concurrent.TreeSpyThreadFactory;
+import com.sourcepulp.treespy.concurrent.WaitStrategy;
+import com.sourcepulp.treespy.poll.PollingWatchService;
+
+public class TreeSpyJSE7StdLibTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TreeSpyJSE7StdLib spy;
+	private Path root;
+
+	@Before
+	public void setup() throws IOException {
+		spy = (TreeSpyJSE7StdLib) SpyFactory.getSpy();
+		root = folder.getRoot().toPath();
+		folder.newFolder("src", "main");
+		folder.newFolder("web", "node_modules", "left-pad");
+		folder.newFolder("build", "generated");
+		folder.newFolder("build", "classes");
+	}
+
+	@After
+	public void teardown() throws IOException {
+		spy.reset();
+	}
+
+	@Test
+	public void testExcludedTreesAreNotWatched() throws IOException {
+		File directory = folder.getRoot();
+		spy.watchRecursive(directory, (f, t) -> {
+		}, "!node_modules", "!build/generated");
+
+		Assert.assertTrue(spy.isWatched(root));
+		Assert.assertTrue(spy.isWatched(root.resolve("src").resolve("main")));
+		Assert.assertTrue(spy.isWatched(root.resolve("web")));
+		Assert.assertFalse(spy.isWatched(root.resolve("web").resolve("node_modules")));
+		Assert.assertFalse(spy.isWatched(root.resolve("web").resolve("node_modules").resolve("left-pad")));
+		Assert.assertFalse(spy.isWatched(root.resolve("build").resolve("generated")));
+		Assert.assertTrue(spy.isWatched(root.resolve("build").resolve("classes")));
+	}
+
+	@Test
+	public void testParallelWalkRegistersTheSameDirectoriesAsSerial() throws IOException, InterruptedException {
+		// Enough directories for progress to be reported along the way.
+		for (int i = 0; i < 40; i++) {
+			for (int j = 0; j < 30; j++) {
+				Files.createDirectories(root.resolve("d" + i).resolve("e" + j));
+			}
+		}
+		final List<Path> directories = new CopyOnWriteArrayList<Path>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				directories.add(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		final List<String> progress = new CopyOnWriteArrayList<String>();
+		TreeSpyJSE7StdLib parallel = (TreeSpyJSE7StdLib) SpyFactory.getSpy();
+		try {
+			parallel.setRegistrationParallelism(4);
+			parallel.setRegistrationProgressListener((tree, count, complete) -> progress.add(count + " " + complete));
+			parallel.watchRecursive(folder.getRoot(), new NoopListener());
+			spy.watchRecursive(folder.getRoot(), new NoopListener());
+
+			Assert.assertEquals(directories.size(), spy.getWatchedDirectoryCount());
+			Assert.assertEquals(directories.size(), parallel.getWatchedDirectoryCount());
+			for (Path directory : directories) {
+				Assert.assertTrue(directory.toString(), spy.isWatched(directory));
+				Assert.assertTrue(directory.toString(), parallel.isWatched(directory));
+			}
+			Assert.assertEquals(Arrays.asList("1000 false", directories.size() + " true"), progress);
+		} finally {
+			parallel.close();
+		}
+	}
+
+	@Test
+	public void testUnwatchKeepsDirectoriesOtherListenersNeed() throws IOException {
+		TreeSpyListener whole = new NoopListener();
+		TreeSpyListener sources = new NoopListener();
+		Path src = root.resolve("src");
+
+		spy.watchRecursive(folder.getRoot(), whole);
+		spy.watchRecursive(src.toFile(), sources);
+		WatchKey key = spy.getWatchKey(src);
+
+		spy.unwatch(folder.getRoot(), whole);
+
+		Assert.assertFalse(spy.isWatched(root));
+		Assert.assertFalse(spy.isWatched(root.resolve("web")));
+		Assert.assertTrue(spy.isWatched(src));
+		Assert.assertTrue(spy.isWatched(src.resolve("main")));
+		Assert.assertTrue(key.isValid());
+
+		spy.unwatch(src.toFile(), sources);
+
+		Assert.assertFalse(spy.isWatched(src));
+		Assert.assertFalse(key.isValid());
+	}
+
+	@Test
+	public void testRemoveListener() throws IOException {
+		TreeSpyListener first = new NoopListener();
+		TreeSpyListener second = new NoopListener();
+
+		spy.watchRecursive(folder.getRoot(), first, "*.txt");
+		spy.watchJust(folder.getRoot(), second);
+
+		spy.removeListener(first);
+
+		Assert.assertTrue(spy.isWatched(root));
+		Assert.assertFalse(spy.isWatched(root.resolve("src")));
+
+		spy.removeListener(second);
+
+		Assert.assertFalse(spy.isWatched(root));
+	}
+
+	@Test
+	public void testDeletedSubtreeIsPruned() throws IOException, InterruptedException {
+		spy.watchRecursive(folder.getRoot(), new NoopListener());
+		int before = spy.getWatchedDirectoryCount();
+		Assert.assertEquals(9, before);
+
+		Path web = root.resolve("web");
+		Files.delete(web.resolve("node_modules").resolve("left-pad"));
+		Files.delete(web.resolve("node_modules"));
+		Files.delete(web);
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (spy.getWatchedDirectoryCount() > before - 3 && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+
+		Assert.assertEquals(before - 3, spy.getWatchedDirectoryCount());
+		Assert.assertFalse(spy.isWatched(web));
+		Assert.assertTrue(spy.isWatched(root.resolve("src")));
+	}
+
+	@Test
+	public void testMovedInTreeIsRegisteredAndReported() throws IOException, InterruptedException {
+		final Set<Path> created = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+		spy.watchRecursive(folder.getRoot(), (f, t) -> {
+			if (t == Events.CREATE)
+				created.add(f);
+		});
+
+		Path outside = Files.createTempDirectory("treespy");
+		Path nested = Files.createDirectories(outside.resolve("repo").resolve("nested"));
+		Files.write(nested.resolve("README"), "hello".getBytes());
+
+		Path moved = root.resolve("repo");
+		Files.move(outside.resolve("repo"), moved);
+		Files.delete(outside);
+
+		Path file = moved.resolve("nested").resolve("README");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!created.contains(file) && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+
+		Assert.assertTrue(created.contains(moved));
+		Assert.assertTrue(created.contains(moved.resolve("nested")));
+		Assert.assertTrue(created.contains(file));
+		Assert.assertTrue(spy.isWatched(moved.resolve("nested")));
+	}
+
+	@Test
+	public void testRenameIsReportedAsMove() throws IOException, InterruptedException {
+		spy.setMoveDetection(200, TimeUnit.MILLISECONDS);
+		Path before = folder.newFile("before.txt").toPath();
+		RecordingListener listener = new RecordingListener();
+		spy.watchRecursive(folder.getRoot(), listener);
+
+		Path after = root.resolve("src").resolve("after.txt");
+		Files.move(before, after);
+
+		listener.await(1);
+		Assert.assertEquals(Collections.singletonList("MOVE " + before + " -> " + after), listener.received);
+	}
+
+	@Test
+	public void testMovedDirectoryStaysWatched() throws IOException, InterruptedException {
+		spy.setMoveDetection(200, TimeUnit.MILLISECONDS);
+		RecordingListener listener = new RecordingListener();
+		spy.watchRecursive(folder.getRoot(), listener);
+		int watched = spy.getWatchedDirectoryCount();
+
+		Path before = root.resolve("build");
+		Path after = root.resolve("out");
+		Files.move(before, after);
+		listener.await(1);
+
+		Assert.assertEquals("MOVE " + before + " -> " + after, listener.received.get(0));
+		Assert.assertEquals(watched, spy.getWatchedDirectoryCount());
+		Assert.assertTrue(spy.isWatched(after.resolve("classes")));
+		Assert.assertFalse(spy.isWatched(before.resolve("classes")));
+
+		Path file = after.resolve("classes").resolve("Main.class");
+		Files.write(file, new byte[] { 1 });
+		listener.await(2);
+		Assert.assertEquals("CREATE " + file, listener.received.get(1));
+	}
+
+	@Test
+	public void testRenamedDirectoryIsRegisteredAgainWhenItsKeyDoesNotFollow()
+			throws IOException, InterruptedException {
+		// Claims its keys follow renames, but they watch paths.
+		PollingWatchService misreporting = new PollingWatchService(10, 50, TimeUnit.MILLISECONDS, 1) {
+			@Override
+			public boolean followsRenames() {
+				return true;
+			}
+		};
+		TreeSpyJSE7StdLib polling = new TreeSpyJSE7StdLib(new TreeSpyExecutor(new TreeSpyThreadFactory()),
+				misreporting);
+		try {
+			polling.setMoveDetection(500, TimeUnit.MILLISECONDS);
+			RecordingListener listener = new RecordingListener();
+			polling.watchRecursive(folder.getRoot(), listener);
+
+			Path before = root.resolve("build");
+			Path after = root.resolve("out");
+			Files.move(before, after);
+			listener.await(1);
+			Assert.assertEquals("MOVE " + before + " -> " + after, listener.received.get(0));
+
+			Path file = after.resolve("classes").resolve("Main.class");
+			Files.write(file, new byte[] { 1 });
+			listener.await(2);
+			Assert.assertEquals("CREATE " + file, listener.received.get(1));
+			Assert.assertTrue(polling.isWatched(after.resolve("classes")));
+		} finally {
+			polling.reset();
+		}
+	}
+
+	@Test
+	public void testUnpairedDeleteIsDeliveredAfterWindow() throws IOException, InterruptedException {
+		spy.setMoveDetection(100, TimeUnit.MILLISECONDS);
+		Path doomed = folder.newFile("doomed.txt").toPath();
+		RecordingListener listener = new RecordingListener();
+		spy.watchRecursive(folder.getRoot(), listener);
+
+		Files.delete(doomed);
+
+		listener.await(1);
+		Assert.assertEquals(Collections.singletonList("DELETE " + doomed), listener.received);
+	}
+
+	@Test
+	public void testBatchesAreSplitAtTheMaximumSize() throws IOException, InterruptedException {
+		spy.setMaxBatchSize(10);
+		final List<Integer> sizes = new CopyOnWriteArrayList<Integer>();
+		final AtomicInteger delivered = new AtomicInteger();
+		final AtomicInteger calls = new AtomicInteger();
+		spy.watchJust(folder.getRoot(), (TreeSpyBatchListener) changes -> {
+			sizes.add(changes.size());
+			delivered.addAndGet(changes.size());
+		});
+		spy.watchJust(folder.getRoot(), (file, type) -> calls.incrementAndGet());
+
+		// Stopped, so that every event is drained from the key at once.
+		spy.stop();
+		for (int i = 0; i < 25; i++) {
+			Files.createFile(root.resolve("f" + i));
+		}
+		Thread.sleep(200);
+		spy.start();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((delivered.get() < 25 || calls.get() < 25) && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+		Assert.assertEquals(Arrays.asList(10, 10, 5), sizes);
+		Assert.assertEquals(25, calls.get());
+	}
+
+	@Test
+	public void testBatchListenerTakesAMoveWithoutASource() {
+		final List<Change> received = new CopyOnWriteArrayList<Change>();
+		TreeSpyBatchListener listener = received::addAll;
+
+		listener.onChange(root.resolve("target"), Events.MOVE);
+
+		Assert.assertEquals(Collections.singletonList(new Change(root.resolve("target"), Events.CREATE)), received);
+	}
+
+	@Test
+	public void testOverflowIsRecoveredAsMissedChanges() throws IOException, InterruptedException {
+		spy.setOverflowRecovery(true);
+		Path kept = Files.write(root.resolve("kept.txt"), "before".getBytes());
+		Path doomed = folder.newFile("doomed.txt").toPath();
+		RecordingListener listener = new RecordingListener();
+		spy.watchJust(folder.getRoot(), listener);
+
+		// With nothing draining the key, more events than the WatchService
+		// queues for one key overflow it, and the rest are lost.
+		spy.stop();
+		int count = 600;
+		for (int i = 0; i < count; i++) {
+			Files.createFile(root.resolve("f" + i));
+		}
+		Files.delete(doomed);
+		Files.write(kept, "after, and longer".getBytes());
+		Thread.sleep(200);
+		spy.start();
+
+		listener.await(count + 2);
+		for (int i = 0; i < count; i++) {
+			Assert.assertTrue(listener.received.contains("CREATE " + root.resolve("f" + i)));
+		}
+		Assert.assertTrue(listener.received.contains("DELETE " + doomed));
+		Assert.assertTrue(listener.received.contains("MODIFY " + kept));
+		Assert.assertFalse(listener.received.contains("OVERFLOW " + root));
+	}
+
+	@Test
+	public void testRestartKeepsExactlyOnePoller() throws IOException, InterruptedException {
+		final AtomicInteger launched = new AtomicInteger();
+		final AtomicInteger live = new AtomicInteger();
+		Executor counting = task -> {
+			launched.incrementAndGet();
+			new Thread(() -> {
+				live.incrementAndGet();
+				try {
+					task.run();
+				} finally {
+					live.decrementAndGet();
+				}
+			}).start();
+		};
+
+		TreeSpyJSE7StdLib restarted = new TreeSpyJSE7StdLib(counting, FileSystems.getDefault().newWatchService());
+		try {
+			restarted.watchRecursive(folder.getRoot(), new NoopListener());
+			for (int i = 0; i < 20; i++) {
+				long started = System.nanoTime();
+				restarted.stop();
+				Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 1000);
+				Assert.assertEquals(TreeSpyJSE7StdLib.State.STOPPED, restarted.getState());
+				restarted.start();
+				restarted.start();
+			}
+			// One poller for the first start, and one per restart.
+			Assert.assertEquals(21, launched.get());
+		} finally {
+			restarted.close();
+		}
+
+		// The poller has exited; give its thread a moment to finish.
+		long deadline = System.currentTimeMillis() + 1000;
+		while (live.get() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Assert.assertEquals(0, live.get());
+	}
+
+	@Test
+	public void testCloseReleasesWatchService() throws IOException {
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		TreeSpyJSE7StdLib closed = new TreeSpyJSE7StdLib(
+				new TreeSpyExecutor(new TreeSpyThreadFactory()), watcher);
+		closed.watchRecursive(folder.getRoot(), new NoopListener());
+
+		closed.close();
+
+		Assert.assertEquals(TreeSpyJSE7StdLib.State.CLOSED, closed.getState());
+		Assert.assertEquals(0, closed.getWatchedDirectoryCount());
+		try {
+			watcher.poll();
+			Assert.fail("WatchService should be closed");
+		} catch (ClosedWatchServiceException ex) {
+			// Expected.
+		}
+		try {
+			closed.watchJust(folder.getRoot(), new NoopListener());
+			Assert.fail("A closed spy should refuse to watch");
+		} catch (IllegalStateException ex) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testIndexReportsChangesMadeWhileNotWatching() throws IOException, InterruptedException {
+		Path index = Files.createTempFile("treespy", ".idx");
+		Files.delete(index);
+		Path kept = folder.newFile("kept.txt").toPath();
+		try {
+			TreeSpyJSE7StdLib before = (TreeSpyJSE7StdLib) SpyFactory.getSpy();
+			before.setPersistentIndex(index);
+			before.watchRecursive(folder.getRoot(), new NoopListener());
+			before.close();
+			Assert.assertTrue(Files.exists(index));
+
+			Path created = Files.createFile(root.resolve("src").resolve("new.txt"));
+			Files.write(kept, "changed".getBytes());
+			Path deleted = root.resolve("build").resolve("classes");
+			Files.delete(deleted);
+			Path lib = Files.createDirectory(root.resolve("web").resolve("lib"));
+			Path script = Files.createFile(lib.resolve("a.js"));
+
+			spy.setPersistentIndex(index);
+			RecordingListener listener = new RecordingListener();
+			spy.watchRecursive(folder.getRoot(), listener);
+			listener.await(5);
+
+			Set<String> expected = new HashSet<String>(Arrays.asList("CREATE " + created, "MODIFY " + kept,
+					"DELETE " + deleted, "CREATE " + lib, "CREATE " + script));
+			Assert.assertEquals(expected, new HashSet<String>(listener.received));
+		} finally {
+			Files.deleteIfExists(index);
+		}
+	}
+
+	@Test
+	public void testUnchangedModifiesAreSuppressed() throws IOException, InterruptedException {
+		spy.setCoalescingWindow(100, TimeUnit.MILLISECONDS);
+		Path notes = folder.newFile("notes.txt").toPath();
+		Path image = folder.newFile("image.png").toPath();
+		RecordingListener filtered = new RecordingListener();
+		RecordingListener all = new RecordingListener();
+		spy.watchRecursive(folder.getRoot(), filtered);
+		spy.watchRecursive(folder.getRoot(), all);
+		spy.suppressUnchangedModifies(filtered, "*.txt");
+
+		Files.write(notes, "draft".getBytes());
+		all.await(1);
+		filtered.await(1);
+		Files.write(notes, "draft".getBytes());
+		Files.write(image, "draft".getBytes());
+		all.await(3);
+		filtered.await(2);
+		Files.write(notes, "final".getBytes());
+		all.await(4);
+		filtered.await(3);
+
+		Assert.assertEquals(Arrays.asList("MODIFY " + notes, "MODIFY " + notes, "MODIFY " + image, "MODIFY " + notes),
+				all.received);
+		Assert.assertEquals(Arrays.asList("MODIFY " + notes, "MODIFY " + image, "MODIFY " + notes),
+				filtered.received);
+	}
+
+	@Test
+	public void testEventBusDeliversMatchingChanges() throws IOException, InterruptedException {
+		spy.setEventBus(256, WaitStrategy.PARK);
+		RecordingListener java = new RecordingListener();
+		RecordingListener all = new RecordingListener();
+		spy.watchRecursive(folder.getRoot(), java, "*.java");
+		spy.watchRecursive(folder.getRoot(), all);
+
+		Path source = Files.createFile(root.resolve("src").resolve("Main.java"));
+		Path notes = Files.createFile(root.resolve("notes.txt"));
+		all.await(2);
+
+		Assert.assertEquals(Collections.singletonList("CREATE " + source), java.received);
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("CREATE " + source, "CREATE " + notes)),
+				new HashSet<String>(all.received));
+	}
+
+	@Test
+	public void testEventBusIsRebuiltByResetButReleasedByClose() throws IOException {
+		spy.setEventBus(256, WaitStrategy.PARK);
+		RingBufferEventBus first = spy.getEventBus();
+
+		spy.reset();
+		RingBufferEventBus rebuilt = spy.getEventBus();
+		Assert.assertNotNull(rebuilt);
+		Assert.assertNotSame(first, rebuilt);
+		Assert.assertEquals(first.getCapacity(), rebuilt.getCapacity());
+
+		spy.close();
+		Assert.assertNull(spy.getEventBus());
+	}
+
+	@Test
+	public void testDirectoriesBeyondBudgetArePolledThenPromoted() throws IOException, InterruptedException {
+		spy.setWatchBudget(2, 300, TimeUnit.MILLISECONDS);
+		RecordingListener listener = new RecordingListener();
+		spy.watchRecursive(folder.getRoot(), listener);
+
+		Path classes = root.resolve("build").resolve("classes");
+		Assert.assertEquals(9, spy.getWatchedDirectoryCount());
+		Assert.assertEquals(7, spy.getPolledDirectoryCount());
+		Assert.assertTrue(spy.isPolled(classes));
+
+		Path file = Files.createFile(classes.resolve("Main.class"));
+		listener.await(1);
+		Assert.assertEquals(Collections.singletonList("CREATE " + file), listener.received);
+
+		// The next rebalance promotes the active directory, demoting a quiet
+		// one in its place.
+		long deadline = System.currentTimeMillis() + 5000;
+		while (spy.isPolled(classes) && System.currentTimeMillis() < deadline)
+			Thread.sleep(20);
+		Assert.assertFalse(spy.isPolled(classes));
+		Assert.assertEquals(7, spy.getPolledDirectoryCount());
+
+		Path second = Files.createFile(classes.resolve("Other.class"));
+		listener.await(2);
+		Assert.assertEquals(Arrays.asList("CREATE " + file, "CREATE " + second), listener.received);
+	}
+
+	private static class RecordingListener implements TreeSpyListener {
+
+		final List<String> received = new CopyOnWriteArrayList<String>();
+
+		@Override
+		public void onChange(Path file, Events type) {
+			received.add(type + " " + file);
+		}
+
+		@Override
+		public void onMove(Path source, Path target) {
+			received.add("MOVE " + source + " -> " + target);
+		}
+
+		void await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (received.size() < count && System.currentTimeMillis() < deadline)
+				Thread.sleep(20);
+			// Give anything unexpected the chance to arrive too.
+			Thread.sleep(300);
+		}
+	}
+
+	private static class NoopListener implements TreeSpyListener {
+		@Override
+		public void onChange(Path file, Events type) {
+		}
+	}
+}
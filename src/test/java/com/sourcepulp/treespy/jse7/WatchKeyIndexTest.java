@@ -0,0 +1,112 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WatchKeyIndexTest {
+
+	private final WatchKeyIndex index = new WatchKeyIndex();
+
+	@Test
+	public void testLooksUpBothWays() {
+		WatchKey key = new StubKey();
+		Path directory = Paths.get("/a");
+		index.put(key, directory);
+
+		Assert.assertEquals(directory, index.directoryOf(key));
+		Assert.assertEquals(key, index.keyOf(directory));
+		Assert.assertTrue(index.contains(directory));
+		Assert.assertEquals(1, index.size());
+		Assert.assertNull(index.keyOf(Paths.get("/b")));
+	}
+
+	@Test
+	public void testPutReplacesEitherSide() {
+		WatchKey first = new StubKey();
+		WatchKey second = new StubKey();
+		index.put(first, Paths.get("/a"));
+
+		// A directory registered again gets a new key.
+		index.put(second, Paths.get("/a"));
+		Assert.assertEquals(second, index.keyOf(Paths.get("/a")));
+		Assert.assertNull(index.directoryOf(first));
+		Assert.assertEquals(1, index.size());
+
+		// A key which follows its directory to a new path.
+		index.put(second, Paths.get("/b"));
+		Assert.assertEquals(Paths.get("/b"), index.directoryOf(second));
+		Assert.assertFalse(index.contains(Paths.get("/a")));
+		Assert.assertEquals(1, index.size());
+	}
+
+	@Test
+	public void testRemoveByKeyOrDirectory() {
+		WatchKey a = new StubKey();
+		WatchKey b = new StubKey();
+		index.put(a, Paths.get("/a"));
+		index.put(b, Paths.get("/b"));
+
+		Assert.assertEquals(Paths.get("/a"), index.remove(a));
+		Assert.assertFalse(index.contains(Paths.get("/a")));
+		Assert.assertEquals(b, index.remove(Paths.get("/b")));
+		Assert.assertNull(index.directoryOf(b));
+		Assert.assertEquals(0, index.size());
+		Assert.assertNull(index.remove(a));
+		Assert.assertNull(index.remove(Paths.get("/b")));
+	}
+
+	@Test
+	public void testSubtreeFindsWatchedDescendantsThroughUnwatchedOnes() {
+		index.put(new StubKey(), Paths.get("/a"));
+		index.put(new StubKey(), Paths.get("/a/b/c"));
+		index.put(new StubKey(), Paths.get("/a/d"));
+		index.put(new StubKey(), Paths.get("/ab"));
+
+		List<Path> subtree = index.subtree(Paths.get("/a"));
+		Assert.assertEquals(3, subtree.size());
+		Assert.assertEquals(Paths.get("/a"), subtree.get(0));
+		Assert.assertTrue(subtree.containsAll(Arrays.asList(Paths.get("/a/b/c"), Paths.get("/a/d"))));
+
+		Assert.assertEquals(Collections.singletonList(Paths.get("/a/b/c")), index.subtree(Paths.get("/a/b")));
+
+		index.remove(Paths.get("/a/b/c"));
+		Assert.assertEquals(Collections.emptyList(), index.subtree(Paths.get("/a/b")));
+		Assert.assertEquals(Arrays.asList(Paths.get("/a"), Paths.get("/a/d")), index.subtree(Paths.get("/a")));
+	}
+
+	private static class StubKey implements WatchKey {
+
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+
+		@Override
+		public List<WatchEvent<?>> pollEvents() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean reset() {
+			return true;
+		}
+
+		@Override
+		public void cancel() {
+		}
+
+		@Override
+		public Watchable watchable() {
+			return null;
+		}
+	}
+}
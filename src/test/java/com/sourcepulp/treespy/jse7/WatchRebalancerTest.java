@@ -0,0 +1,135 @@
+package com.sourcepulp.treespy.jse7;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WatchRebalancerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final WatchBudget budget = new WatchBudget(1, TimeUnit.MILLISECONDS.toNanos(10));
+	private final WatchKeyIndex index = new WatchKeyIndex();
+	private final List<WatchKey> cancelled = new ArrayList<WatchKey>();
+	private boolean refuseNative = false;
+
+	private WatchRebalancer rebalancer;
+	private Path quiet;
+	private Path busy;
+
+	@Before
+	public void setup() throws IOException {
+		quiet = folder.newFolder("quiet").toPath();
+		busy = folder.newFolder("busy").toPath();
+		rebalancer = new WatchRebalancer(budget, new WatchRebalancer.Keys() {
+			@Override
+			public WatchKey registerNative(Path directory) throws IOException {
+				if (refuseNative)
+					throw new IOException("No space left on device");
+				return new StubKey();
+			}
+
+			@Override
+			public void cancel(WatchKey key) {
+				cancelled.add(key);
+				budget.released(key);
+			}
+
+			@Override
+			public void process(WatchKey key, List<WatchEvent<?>> events) {
+			}
+
+			@Override
+			public boolean isListened(Path directory) {
+				return true;
+			}
+		});
+	}
+
+	@After
+	public void teardown() throws IOException {
+		budget.close();
+	}
+
+	@Test
+	public void testDirectoriesBeyondTheBudgetArePolled() throws IOException {
+		WatchKey first = rebalancer.register(quiet);
+		WatchKey second = rebalancer.register(busy);
+
+		Assert.assertFalse(budget.isCold(first));
+		Assert.assertTrue(budget.isCold(second));
+		Assert.assertEquals(1, budget.getNativeCount());
+		Assert.assertEquals(1, budget.getColdCount());
+	}
+
+	@Test
+	public void testRefusedDirectoryIsPolledAndShrinksTheBudget() throws IOException {
+		refuseNative = true;
+		WatchKey key = rebalancer.register(quiet);
+
+		Assert.assertTrue(budget.isCold(key));
+		Assert.assertEquals(0, budget.getNativeCount());
+		Assert.assertEquals(0, budget.getLimit());
+	}
+
+	@Test
+	public void testBusyPolledDirectorySwapsWithQuietNativeOne() throws IOException {
+		WatchKey quietKey = rebalancer.register(quiet);
+		WatchKey busyKey = rebalancer.register(busy);
+		index.put(quietKey, quiet);
+		index.put(busyKey, busy);
+
+		long now = System.nanoTime();
+		budget.touch(busy, now);
+		rebalancer.rebalance(index, now + TimeUnit.MILLISECONDS.toNanos(10));
+
+		Assert.assertFalse(budget.isCold(index.keyOf(busy)));
+		Assert.assertTrue(budget.isCold(index.keyOf(quiet)));
+		Assert.assertEquals(2, cancelled.size());
+		Assert.assertTrue(cancelled.contains(quietKey));
+		Assert.assertTrue(cancelled.contains(busyKey));
+		Assert.assertEquals(1, budget.getNativeCount());
+		Assert.assertEquals(1, budget.getColdCount());
+	}
+
+	private static class StubKey implements WatchKey {
+
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+
+		@Override
+		public List<WatchEvent<?>> pollEvents() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean reset() {
+			return true;
+		}
+
+		@Override
+		public void cancel() {
+		}
+
+		@Override
+		public Watchable watchable() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.sourcepulp.treespy.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.SpyFactory;
+import com.sourcepulp.treespy.TreeSpyListener;
+import com.sourcepulp.treespy.jse7.TreeSpyJSE7StdLib;
+
+public class StripedTreeSpyMetricsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testHistogramPercentiles() {
+		Log2Histogram histogram = new Log2Histogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000);
+		}
+
+		Assert.assertEquals(100, histogram.getCount());
+		Assert.assertEquals(100000, histogram.getMax());
+		Assert.assertEquals(50500.0, histogram.getMean(), 0.001);
+
+		// Within a factor of two of the true value, never below it.
+		long median = histogram.getPercentile(0.5);
+		Assert.assertTrue("Median: " + median, median >= 50000 && median < 100000);
+		Assert.assertEquals(100000, histogram.getPercentile(1.0));
+
+		histogram.reset();
+		Assert.assertEquals(0, histogram.getCount());
+		Assert.assertEquals(0, histogram.getPercentile(0.99));
+	}
+
+	@Test
+	public void testSpyReportsEventsAndLatency() throws IOException, InterruptedException {
+		StripedTreeSpyMetrics metrics = new StripedTreeSpyMetrics();
+		TreeSpyJSE7StdLib spy = (TreeSpyJSE7StdLib) SpyFactory.getSpy();
+		spy.setMetrics(metrics);
+
+		final CountDownLatch created = new CountDownLatch(1);
+		folder.newFolder("sub");
+		spy.watchRecursive(folder.getRoot(), (file, type) -> {
+			if (type == Events.CREATE)
+				created.countDown();
+		});
+		try {
+			Files.write(folder.getRoot().toPath().resolve("file.txt"), new byte[] { 1 });
+			Assert.assertTrue(created.await(5, TimeUnit.SECONDS));
+			// The callback is timed once it returns, just after the latch.
+			long deadline = System.currentTimeMillis() + 1000;
+			while (metrics.getCallbackHistogram().getCount() == 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+
+			Assert.assertTrue(metrics.getEventCount(Events.CREATE) >= 1);
+			Assert.assertTrue(metrics.getDeliveryHistogram().getCount() >= 1);
+			Assert.assertTrue(metrics.getCallbackHistogram().getCount() >= 1);
+			Assert.assertEquals(1, metrics.getCallbackLatencyByListener().size());
+			Assert.assertEquals(2, metrics.getDirectoriesRegistered());
+			Assert.assertEquals(Long.valueOf(2), metrics.getGauges().get("watchedDirectories"));
+		} finally {
+			spy.reset();
+		}
+	}
+
+	@Test
+	public void testRemovedListenerIsForgotten() throws IOException, InterruptedException {
+		StripedTreeSpyMetrics metrics = new StripedTreeSpyMetrics();
+		TreeSpyJSE7StdLib spy = (TreeSpyJSE7StdLib) SpyFactory.getSpy();
+		spy.setMetrics(metrics);
+
+		final CountDownLatch created = new CountDownLatch(1);
+		TreeSpyListener listener = (file, type) -> created.countDown();
+		spy.watchJust(folder.getRoot(), listener);
+		try {
+			Files.write(folder.getRoot().toPath().resolve("file.txt"), new byte[] { 1 });
+			Assert.assertTrue(created.await(5, TimeUnit.SECONDS));
+			long deadline = System.currentTimeMillis() + 1000;
+			while (metrics.getCallbackLatencyByListener().isEmpty() && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			Assert.assertEquals(1, metrics.getCallbackLatencyByListener().size());
+
+			spy.removeListener(listener);
+			Assert.assertTrue(metrics.getCallbackLatencyByListener().isEmpty());
+			Assert.assertTrue(metrics.getCallbackHistogram().getCount() >= 1);
+		} finally {
+			spy.reset();
+		}
+	}
+
+	@Test
+	public void testExposedOverJmx() throws JMException {
+		StripedTreeSpyMetrics metrics = new StripedTreeSpyMetrics();
+		metrics.eventReceived(Events.OVERFLOW);
+		metrics.changeDelivered(5000);
+
+		ObjectName name = metrics.registerMBean("test");
+		try {
+			Object overflows = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "OverflowCount");
+			Assert.assertEquals(1L, overflows);
+
+			CompositeData latency = (CompositeData) ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+					"DeliveryLatency");
+			Assert.assertEquals(1L, latency.get("count"));
+		} finally {
+			metrics.unregisterMBean(name);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.sourcepulp.treespy.poll;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.SpyFactory;
+import com.sourcepulp.treespy.TreeSpy;
+
+public class PollingWatchServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private PollingWatchService service;
+	private Path directory;
+
+	@Before
+	public void setup() {
+		service = new PollingWatchService(10, 100, TimeUnit.MILLISECONDS, 2);
+		directory = folder.getRoot().toPath();
+	}
+
+	@After
+	public void teardown() throws IOException {
+		service.close();
+	}
+
+	@Test
+	public void testCreateModifyDelete() throws IOException, InterruptedException {
+		WatchKey key = service.register(directory, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		Path file = directory.resolve("polled.txt");
+
+		Files.write(file, "a".getBytes());
+		Assert.assertEquals(ENTRY_CREATE, next(key).kind());
+
+		Files.write(file, "changed".getBytes());
+		Assert.assertEquals(ENTRY_MODIFY, next(key).kind());
+
+		Files.delete(file);
+		WatchEvent<?> deleted = next(key);
+		Assert.assertEquals(ENTRY_DELETE, deleted.kind());
+		Assert.assertEquals(Paths.get("polled.txt"), deleted.context());
+	}
+
+	@Test
+	public void testOnlyRequestedKindsAreSignalled() throws IOException, InterruptedException {
+		Path deleted = folder.newFile("deleted.txt").toPath();
+		WatchKey key = service.register(directory, ENTRY_DELETE);
+		Files.write(directory.resolve("ignored.txt"), "a".getBytes());
+		Files.delete(deleted);
+
+		WatchKey signalled = service.poll(5, TimeUnit.SECONDS);
+		Assert.assertSame(key, signalled);
+		for (WatchEvent<?> event : key.pollEvents())
+			Assert.assertEquals(ENTRY_DELETE, event.kind());
+	}
+
+	@Test
+	public void testDeletedDirectoryInvalidatesKey() throws IOException, InterruptedException {
+		Path sub = folder.newFolder("sub").toPath();
+		WatchKey key = service.register(sub, ENTRY_CREATE);
+
+		Files.delete(sub);
+
+		Assert.assertSame(key, service.poll(5, TimeUnit.SECONDS));
+		Assert.assertFalse(key.reset());
+		Assert.assertEquals(0, service.getDirectoryCount());
+	}
+
+	@Test
+	public void testPollingSpy() throws IOException, InterruptedException {
+		final CountDownLatch created = new CountDownLatch(1);
+		TreeSpy spy = SpyFactory.getPollingSpy(10, 100, TimeUnit.MILLISECONDS);
+		try {
+			spy.watchRecursive(folder.getRoot(), (f, t) -> {
+				if (t == Events.CREATE && f.getFileName().toString().equals("spied.txt"))
+					created.countDown();
+			});
+			folder.newFile("spied.txt");
+
+			Assert.assertTrue(created.await(5, TimeUnit.SECONDS));
+		} finally {
+			spy.reset();
+		}
+	}
+
+	/**
+	 * Waits for the key to be signalled and returns the last of its events.
+	 */
+	private WatchEvent<?> next(WatchKey key) throws InterruptedException {
+		Assert.assertSame(key, service.poll(5, TimeUnit.SECONDS));
+		List<WatchEvent<?>> events = new ArrayList<WatchEvent<?>>(key.pollEvents());
+		Assert.assertTrue(key.reset());
+		Assert.assertFalse(events.isEmpty());
+		return events.get(events.size() - 1);
+	}
+}
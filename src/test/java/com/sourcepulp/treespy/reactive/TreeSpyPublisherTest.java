@@ -0,0 +1,142 @@
+package com.sourcepulp.treespy.reactive;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+import com.sourcepulp.treespy.SpyFactory;
+import com.sourcepulp.treespy.TreeSpy;
+
+public class TreeSpyPublisherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TreeSpy spy;
+	private Path root;
+
+	@Before
+	public void setup() throws IOException {
+		spy = SpyFactory.getSpy();
+		root = folder.getRoot().toPath();
+	}
+
+	@After
+	public void teardown() throws IOException {
+		spy.reset();
+	}
+
+	@Test
+	public void testOnlyRequestedChangesAreSent() throws IOException, InterruptedException {
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		new TreeSpyPublisher(spy, folder.getRoot(), true, 16).subscribe(subscriber);
+		subscriber.subscription.request(1);
+
+		Files.createFile(root.resolve("a.txt"));
+		Files.createFile(root.resolve("b.txt"));
+		Files.createFile(root.resolve("c.txt"));
+		subscriber.await(1);
+		Assert.assertEquals(1, subscriber.received.size());
+
+		subscriber.subscription.request(2);
+		subscriber.await(3);
+		Assert.assertEquals(3, subscriber.received.size());
+		Assert.assertEquals(root.resolve("a.txt"), subscriber.received.get(0).getPath());
+	}
+
+	@Test
+	public void testFullBufferSignalsOverflow() throws IOException, InterruptedException {
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		new TreeSpyPublisher(spy, folder.getRoot(), true, 2).subscribe(subscriber);
+
+		for (int i = 0; i < 5; i++) {
+			Files.createFile(root.resolve("f" + i));
+		}
+		Thread.sleep(500);
+		subscriber.subscription.request(Long.MAX_VALUE);
+		subscriber.await(1);
+
+		Assert.assertEquals(new Change(root, Events.OVERFLOW), subscriber.received.get(0));
+		Assert.assertTrue(subscriber.received.size() <= 2);
+	}
+
+	@Test
+	public void testCreateDeleteChurnLeavesTheBufferBounded() {
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		new TreeSpyPublisher(spy, folder.getRoot(), true, 4).subscribe(subscriber);
+		TreeSpyPublisher.ChangeSubscription subscription = (TreeSpyPublisher.ChangeSubscription) subscriber.subscription;
+
+		Path churn = root.resolve("churn.tmp");
+		for (int i = 0; i < 10000; i++) {
+			subscription.onChanges(Arrays.asList(new Change(churn, Events.CREATE), new Change(churn, Events.DELETE)));
+		}
+		Assert.assertEquals(0, subscription.getBufferedCount());
+
+		subscription.onChanges(Collections.singletonList(new Change(root.resolve("kept.txt"), Events.CREATE)));
+		for (int i = 0; i < 10000; i++) {
+			subscription.onChanges(Arrays.asList(new Change(churn, Events.CREATE), new Change(churn, Events.DELETE)));
+		}
+		Assert.assertEquals(1, subscription.getBufferedCount());
+
+		subscription.request(Long.MAX_VALUE);
+		Assert.assertEquals(Collections.singletonList(new Change(root.resolve("kept.txt"), Events.CREATE)),
+				subscriber.received);
+	}
+
+	@Test
+	public void testNonPositiveRequestIsAnError() {
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		new TreeSpyPublisher(spy, folder.getRoot(), true, 16).subscribe(subscriber);
+
+		subscriber.subscription.request(0);
+
+		Assert.assertTrue(subscriber.error instanceof IllegalArgumentException);
+	}
+
+	private static class RecordingSubscriber implements Subscriber<Change> {
+
+		final List<Change> received = new CopyOnWriteArrayList<Change>();
+		volatile Subscription subscription;
+		volatile Throwable error;
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(Change change) {
+			received.add(change);
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			this.error = error;
+		}
+
+		@Override
+		public void onComplete() {
+		}
+
+		void await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (received.size() < count && System.currentTimeMillis() < deadline)
+				Thread.sleep(20);
+			// Give anything unexpected the chance to arrive too.
+			Thread.sleep(300);
+		}
+	}
+}
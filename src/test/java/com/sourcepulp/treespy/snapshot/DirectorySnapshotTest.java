@@ -0,0 +1,196 @@
+package com.sourcepulp.treespy.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sourcepulp.treespy.Change;
+import com.sourcepulp.treespy.Events;
+
+public class DirectorySnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+	private NameTable names;
+
+	@Before
+	public void setup() throws IOException {
+		directory = folder.getRoot().toPath();
+		names = new NameTable();
+		folder.newFile("kept.txt");
+		folder.newFile("deleted.txt");
+		folder.newFile("modified.txt");
+		folder.newFolder("sub");
+	}
+
+	@Test
+	public void testScan() throws IOException {
+		DirectorySnapshot snapshot = DirectorySnapshot.scan(directory, names);
+
+		Assert.assertEquals(4, snapshot.size());
+		Assert.assertTrue(snapshot.isDirectory("sub"));
+		Assert.assertFalse(snapshot.isDirectory("kept.txt"));
+		Assert.assertTrue(snapshot.contains("kept.txt"));
+		Assert.assertFalse(snapshot.contains("missing.txt"));
+		Assert.assertEquals(0, snapshot.size("kept.txt"));
+	}
+
+	@Test
+	public void testDiff() throws IOException {
+		DirectorySnapshot before = DirectorySnapshot.scan(directory, names);
+
+		Files.delete(directory.resolve("deleted.txt"));
+		Files.write(directory.resolve("modified.txt"), "changed".getBytes());
+		folder.newFile("created.txt");
+
+		DirectorySnapshot after = DirectorySnapshot.scan(directory, names);
+
+		Set<Change> changes = new HashSet<Change>(before.diff(after, directory));
+		Set<Change> expected = new HashSet<Change>();
+		expected.add(new Change(directory.resolve("deleted.txt"), Events.DELETE));
+		expected.add(new Change(directory.resolve("modified.txt"), Events.MODIFY));
+		expected.add(new Change(directory.resolve("created.txt"), Events.CREATE));
+		Assert.assertEquals(expected, changes);
+	}
+
+	@Test
+	public void testUpdate() throws IOException {
+		DirectorySnapshot snapshot = DirectorySnapshot.scan(directory, names);
+
+		File created = folder.newFile("created.txt");
+		snapshot.update(directory, "created.txt");
+		Assert.assertTrue(snapshot.contains("created.txt"));
+
+		created.delete();
+		snapshot.update(directory, "created.txt");
+		Assert.assertFalse(snapshot.contains("created.txt"));
+
+		List<Change> changes = snapshot.diff(DirectorySnapshot.scan(directory, names), directory);
+		Assert.assertTrue(changes.isEmpty());
+	}
+
+	@Test
+	public void testInodeFollowsTheFileNotTheName() throws IOException {
+		Assume.assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("unix"));
+		DirectorySnapshot before = DirectorySnapshot.scan(directory, names);
+		long inode = before.inode("kept.txt");
+		Assert.assertNotEquals(0, inode);
+
+		// Same size and modification time, but another file.
+		Path replacement = folder.newFile("replacement.txt").toPath();
+		FileTime time = Files.getLastModifiedTime(directory.resolve("modified.txt"));
+		Files.setLastModifiedTime(replacement, time);
+		Files.move(replacement, directory.resolve("modified.txt"), StandardCopyOption.REPLACE_EXISTING);
+		Files.move(directory.resolve("kept.txt"), directory.resolve("renamed.txt"));
+
+		DirectorySnapshot after = DirectorySnapshot.scan(directory, names);
+		Assert.assertEquals(inode, after.inode("renamed.txt"));
+		Assert.assertEquals(before.getDevice(), after.getDevice());
+		Assert.assertTrue(before.diff(after, directory)
+				.contains(new Change(directory.resolve("modified.txt"), Events.MODIFY)));
+	}
+
+	@Test
+	public void testInternedInKeepsOnlyTheNamesInUse() throws IOException {
+		for (int i = 0; i < 100; i++) {
+			names.intern("gone" + i);
+		}
+		DirectorySnapshot before = DirectorySnapshot.scan(directory, names);
+
+		NameTable fresh = new NameTable();
+		DirectorySnapshot copy = before.internedIn(fresh);
+		Assert.assertSame(before, before.internedIn(names));
+		Assert.assertEquals(4, fresh.size());
+		Assert.assertEquals(before.names(), copy.names());
+		Assert.assertEquals(before.inode("kept.txt"), copy.inode("kept.txt"));
+		Assert.assertTrue(copy.isDirectory("sub"));
+
+		// Snapshots in different tables can still be compared.
+		Files.delete(directory.resolve("deleted.txt"));
+		folder.newFile("created.txt");
+		Set<Change> changes = new HashSet<Change>(copy.diff(DirectorySnapshot.scan(directory, names), directory));
+		Set<Change> expected = new HashSet<Change>();
+		expected.add(new Change(directory.resolve("deleted.txt"), Events.DELETE));
+		expected.add(new Change(directory.resolve("created.txt"), Events.CREATE));
+		Assert.assertEquals(expected, changes);
+	}
+
+	@Test
+	public void testIndexRoundTrip() throws IOException {
+		Map<Path, DirectorySnapshot> snapshots = new HashMap<Path, DirectorySnapshot>();
+		snapshots.put(directory, DirectorySnapshot.scan(directory, names));
+		snapshots.put(directory.resolve("sub"), DirectorySnapshot.scan(directory.resolve("sub"), names));
+
+		Path index = Files.createTempFile("treespy", ".idx");
+		Map<Path, DirectorySnapshot> restored;
+		NameTable fresh = new NameTable();
+		try {
+			TreeIndexFile.write(index, snapshots, names);
+
+			// A fresh table assigns different ids, which must not matter.
+			fresh.intern("unrelated");
+			restored = TreeIndexFile.read(index, fresh);
+		} finally {
+			Files.delete(index);
+		}
+
+		Assert.assertEquals(snapshots.keySet(), restored.keySet());
+		DirectorySnapshot before = snapshots.get(directory);
+		DirectorySnapshot after = restored.get(directory);
+		Assert.assertEquals(before.names(), after.names());
+		Assert.assertTrue(after.isDirectory("sub"));
+		Assert.assertEquals(before.getDevice(), after.getDevice());
+		Assert.assertEquals(before.inode("kept.txt"), after.inode("kept.txt"));
+		Assert.assertTrue(after.diff(DirectorySnapshot.scan(directory, fresh), directory).isEmpty());
+	}
+
+	@Test
+	public void testRenumberedDeviceComparesByNameSizeAndTime() throws IOException {
+		DirectorySnapshot before = DirectorySnapshot.scan(directory, names);
+		ByteBuffer buffer = ByteBuffer.allocate(before.serializedBytes());
+		before.writeTo(buffer);
+		buffer.putLong(0, before.getDevice() + 1);
+		buffer.flip();
+		int[] remap = new int[names.size()];
+		for (int i = 0; i < remap.length; i++) {
+			remap[i] = i;
+		}
+		DirectorySnapshot renumbered = DirectorySnapshot.readFrom(buffer, names, remap);
+
+		Assert.assertTrue(renumbered.diff(DirectorySnapshot.scan(directory, names), directory).isEmpty());
+
+		Files.write(directory.resolve("modified.txt"), "changed".getBytes());
+		List<Change> changes = renumbered.diff(DirectorySnapshot.scan(directory, names), directory);
+		Assert.assertEquals(1, changes.size());
+		Assert.assertEquals(new Change(directory.resolve("modified.txt"), Events.MODIFY), changes.get(0));
+	}
+
+	@Test
+	public void testFootprint() throws IOException {
+		for (int i = 0; i < 1000; i++) {
+			folder.newFile("file" + i + ".txt");
+		}
+		DirectorySnapshot snapshot = DirectorySnapshot.scan(directory, names);
+
+		double bytesPerEntry = (double) snapshot.estimatedBytes() / snapshot.size();
+		Assert.assertTrue("Bytes per entry: " + bytesPerEntry, bytesPerEntry < 32);
+	}
+}